@@ -17,15 +17,22 @@ package codeu.chat;
 
 import java.io.IOException;
 import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.server.NoOpRelay;
 import codeu.chat.server.RemoteRelay;
+import codeu.chat.server.SelectorFrontEnd;
 import codeu.chat.server.Server;
 import codeu.chat.util.Logger;
 import codeu.chat.util.RemoteAddress;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.WriteAheadLog;
 import codeu.chat.util.connections.ClientConnectionSource;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
@@ -55,6 +62,63 @@ final class ServerMain {
     File persistentPath = null;
     RemoteAddress relayAddress = null;
 
+    // Options are given as "--name=value" and can appear anywhere in the
+    // argument list. Everything else is a positional argument.
+    final Map<String, String> options = new HashMap<>();
+    final List<String> positional = new ArrayList<>();
+    for (final String arg : args) {
+      if (arg.startsWith("--") && arg.contains("=")) {
+        options.put(arg.substring(2, arg.indexOf('=')), arg.substring(arg.indexOf('=') + 1));
+      } else {
+        positional.add(arg);
+      }
+    }
+    args = positional.toArray(new String[positional.size()]);
+
+    // The front end decides how connections are accepted and read:
+    //   blocking : accept with a server socket and read each request on a
+    //              worker thread (the original behaviour).
+    //   nio      : accept and read every connection from one selector thread.
+    //   threads  : serve every connection on its own thread. Virtual threads
+    //              are used when the Java runtime has them.
+    final String frontEnd = options.containsKey("frontend") ? options.get("frontend") : "blocking";
+
+    if (!"blocking".equals(frontEnd) && !"nio".equals(frontEnd) && !"threads".equals(frontEnd)) {
+      LOG.error("Unknown front end '%s'", frontEnd);
+      System.exit(1);
+    }
+
+    // The number of threads used to run client commands.
+    int workers = Runtime.getRuntime().availableProcessors();
+
+    try {
+      if (options.containsKey("workers")) {
+        workers = Integer.parseInt(options.get("workers"));
+      }
+    } catch (NumberFormatException ex) {
+      LOG.error(ex, "Failed to read worker count");
+      System.exit(1);
+    }
+
+    if (workers < 1) {
+      LOG.error("Worker count must be at least 1");
+      System.exit(1);
+    }
+
+    // When changes written to the log must reach the disk:
+    //   periodic : within a second. A crash can lose the last second.
+    //   sync     : before the client is answered.
+    WriteAheadLog.Durability durability = WriteAheadLog.Durability.PERIODIC;
+
+    try {
+      if (options.containsKey("durability")) {
+        durability = WriteAheadLog.Durability.valueOf(options.get("durability").toUpperCase());
+      }
+    } catch (IllegalArgumentException ex) {
+      LOG.error(ex, "Unknown durability '%s'", options.get("durability"));
+      System.exit(1);
+    }
+
     try {
       id = Uuid.parse(args[0]);
       secret = Secret.parse(args[1]);
@@ -71,13 +135,39 @@ final class ServerMain {
       System.exit(1);
     }
 
+    if ("nio".equals(frontEnd)) {
+      try (
+          final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
+      ) {
+
+        LOG.info("Starting server with selector front end...");
+        runSelectorServer(
+            createServer(id, secret, relaySource, workers, persistentPath, durability),
+            port);
+
+      } catch (IOException ex) {
+
+        LOG.error(ex, "Failed to establish connections");
+
+      }
+      return;
+    }
+
     try (
         final ConnectionSource serverSource = ServerConnectionSource.forPort(port);
         final ConnectionSource relaySource = relayAddress == null ? null : new ClientConnectionSource(relayAddress.host, relayAddress.port)
     ) {
 
       LOG.info("Starting server...");
-      runServer(id, secret, serverSource, relaySource);
+      if ("threads".equals(frontEnd)) {
+        runThreadServer(
+            createServer(id, secret, relaySource, workers, persistentPath, durability),
+            serverSource);
+      } else {
+        runServer(
+            createServer(id, secret, relaySource, workers, persistentPath, durability),
+            serverSource);
+      }
 
     } catch (IOException ex) {
 
@@ -86,18 +176,32 @@ final class ServerMain {
     }
   }
 
-  private static void runServer(Uuid id,
-                                Secret secret,
-                                ConnectionSource serverSource,
-                                ConnectionSource relaySource) {
+  private static Server createServer(Uuid id,
+                                     Secret secret,
+                                     ConnectionSource relaySource,
+                                     int workers,
+                                     File persistentPath,
+                                     WriteAheadLog.Durability durability) {
 
     final Relay relay = relaySource == null ?
                         new NoOpRelay() :
                         new RemoteRelay(relaySource);
 
-    final Server server = new Server(id, secret, relay);
+    Server server = null;
+
+    try {
+      server = new Server(id, secret, relay, workers, persistentPath, durability);
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to open the log in %s", persistentPath);
+      System.exit(1);
+    }
+
+    LOG.info("Created server (workers=%d durability=%s).", workers, durability);
 
-    LOG.info("Created server.");
+    return server;
+  }
+
+  private static void runServer(Server server, ConnectionSource serverSource) {
 
     while (true) {
 
@@ -114,4 +218,68 @@ final class ServerMain {
       }
     }
   }
+
+  private static void runThreadServer(final Server server, ConnectionSource serverSource) {
+
+    final ThreadFactory threads = connectionThreads();
+
+    while (true) {
+
+      try {
+
+        LOG.info("Established connection...");
+        final Connection connection = serverSource.connect();
+        LOG.info("Connection established.");
+
+        threads.newThread(new Runnable() {
+          @Override
+          public void run() {
+            server.serveConnection(connection);
+          }
+        }).start();
+
+      } catch (IOException ex) {
+        LOG.error(ex, "Failed to establish connection.");
+      }
+    }
+  }
+
+  // CONNECTION THREADS
+  //
+  // Create the factory for connection threads. Virtual threads only exist on
+  // newer Java runtimes, so they are looked up by reflection to keep the
+  // project building on older ones. If they are not there, plain daemon
+  // threads are used instead.
+  private static ThreadFactory connectionThreads() {
+
+    try {
+
+      final Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+      final ThreadFactory factory = (ThreadFactory) Class.forName("java.lang.Thread$Builder")
+          .getMethod("factory")
+          .invoke(builder);
+
+      LOG.info("Using virtual threads for connections.");
+      return factory;
+
+    } catch (Exception ex) {
+
+      LOG.info("Virtual threads are not available, using platform threads for connections.");
+      return new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+          final Thread thread = new Thread(task);
+          thread.setDaemon(true);
+          return thread;
+        }
+      };
+    }
+  }
+
+  private static void runSelectorServer(Server server, int port) throws IOException {
+
+    try (final SelectorFrontEnd frontEnd = new SelectorFrontEnd(server, port)) {
+      frontEnd.run();
+    }
+  }
 }
@@ -17,9 +17,11 @@ package codeu.chat.client.commandline;
 import codeu.chat.client.core.Context;
 import codeu.chat.client.core.ConversationContext;
 import codeu.chat.client.core.MessageContext;
+import codeu.chat.client.core.MessageSubscription;
 import codeu.chat.client.core.UserContext;
 import codeu.chat.common.InterestStatus;
 import codeu.chat.common.InterestType;
+import codeu.chat.common.Message;
 import codeu.chat.common.ServerInfo;
 import codeu.chat.common.User;
 import codeu.chat.common.UserType;
@@ -36,6 +38,7 @@ import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.Stack;
+import java.util.concurrent.atomic.AtomicReference;
 
 public final class Chat {
 
@@ -56,6 +59,11 @@ public final class Chat {
   // The time when the conversation was last updated.
   private Time lastUpdate = Time.minTime();
 
+  // New messages in the most recently joined conversation. When the server
+  // cannot push messages, or the subscription has ended, this is null and the
+  // conversation is polled instead.
+  private final AtomicReference<MessageSubscription> subscription = new AtomicReference<>();
+
   private Context context;
 
   public Chat(Context context) {
@@ -674,15 +682,8 @@ public final class Chat {
   private void listMessages(final ConversationContext conversation, List<String> args) {
     if (hasAccess(conversation.getUser(), conversation)) {
       System.out.println("--- start of conversation ---");
-      for (MessageContext message = conversation.firstMessage();
-          message != null;
-          message = message.next()) {
-        System.out.println();
-        System.out.format("USER : %s\n", message.message.author);
-        System.out.format("SENT : %s\n", message.message.creation);
-        System.out.println();
-        System.out.println(message.message.content);
-        System.out.println();
+      for (final MessageContext message : conversation.messages()) {
+        printMessage(message.message);
       }
       System.out.println("---  end of conversation  ---");
     } else {
@@ -690,10 +691,71 @@ public final class Chat {
     }
   }
 
+  private static void printMessage(Message message) {
+    System.out.println();
+    System.out.format("USER : %s\n", message.author);
+    System.out.format("SENT : %s\n", message.creation);
+    System.out.println();
+    System.out.println(message.content);
+    System.out.println();
+  }
+
+  // SUBSCRIBE
+  //
+  // Have new messages in the conversation printed as soon as the server has
+  // them, for as long as the panel is the current panel. Only one conversation
+  // is followed at a time.
+  private void subscribe(final ConversationContext conversation, final Panel panel) {
+
+    try {
+      final MessageSubscription last = subscription.getAndSet(null);
+      if (last != null) {
+        last.close();
+      }
+    } catch (IOException ex) {
+      System.out.println("ERROR: Failed to stop following the last conversation.");
+    }
+
+    final MessageSubscription opened;
+    try {
+      opened = context.subscribe(conversation, new MessageSubscription.Listener() {
+        @Override
+        public void onMessage(Message message) {
+          if (!panels.isEmpty() && panels.peek() == panel) {
+            printMessage(message);
+            System.out.print(">>> ");
+          }
+        }
+
+        @Override
+        public void onClose() {
+          dropEndedSubscription();
+        }
+      });
+    } catch (IOException ex) {
+      // Fall back to polling for new messages.
+      return;
+    }
+
+    subscription.set(opened);
+    // The subscription may have ended before it was set.
+    dropEndedSubscription();
+  }
+
+  // Go back to polling once the subscription has ended.
+  private void dropEndedSubscription() {
+    final MessageSubscription current = subscription.get();
+    if (current != null && !current.isOpen()) {
+      subscription.compareAndSet(current, null);
+    }
+  }
+
   private Panel createConversationPanel(final ConversationContext conversation) {
 
     final Panel panel = new Panel();
 
+    subscribe(conversation, panel);
+
     // HELP
     //
     // Add a command that will print all the commands and their descriptions
@@ -731,20 +793,31 @@ public final class Chat {
           }
         });
 
-    // List messages automatically every 5 seconds.
+    // List messages as soon as there are new ones. This is only needed when
+    // the server cannot push new messages to us. The server holds each check
+    // for up to 5 seconds and answers as soon as a message arrives, so the
+    // check runs again right after it returns.
     panel.register(
         new Duration(MESSAGE_REFRESH_RATE),
         new Scheduled.Action() {
 
           @Override
           public void invoke() {
-            // Get the time before sending the has new message request.
-            Time now = Time.now();
-            if (conversation.hasNewMessage(lastUpdate)) {
+            if (subscription.get() != null) {
+              return;
+            }
+            // Get the time before sending the wait for new message request.
+            final Time now = Time.now();
+            if (context.waitForNewMessage(
+                    conversation, lastUpdate, new Duration(MESSAGE_REFRESH_RATE))) {
+              // Messages that arrived during the wait are listed now, so they
+              // should not wake the next wait.
+              lastUpdate = Time.now();
               listMessages(conversation, null);
               System.out.print(">>> ");
+            } else {
+              lastUpdate = now;
             }
-            lastUpdate = now;
           }
         });
 
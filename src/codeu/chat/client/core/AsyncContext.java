@@ -0,0 +1,173 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.Message;
+import codeu.chat.common.MessageDraft;
+import codeu.chat.common.ServerInfo;
+import codeu.chat.common.User;
+import codeu.chat.common.UserType;
+import codeu.chat.util.Duration;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.Supplier;
+
+// ASYNC CONTEXT
+//
+// The same calls as the view and controller, but each one returns at once
+// with a future for its result. Calls run on the given executor, so many
+// independent requests can be in flight together (for example, reading the
+// payloads of every conversation at once) and share the pooled sessions of a
+// SessionConnectionSource. Results match the blocking calls: a failed call
+// completes with the same empty collection or null that the blocking call
+// would have returned.
+//
+// The executor belongs to the caller, who must shut it down when done.
+public final class AsyncContext {
+
+  private final View view;
+  private final Controller controller;
+  private final Executor executor;
+
+  AsyncContext(View view, Controller controller, Executor executor) {
+    this.view = view;
+    this.controller = controller;
+    this.executor = executor;
+  }
+
+  public CompletableFuture<ServerInfo> getInfo() {
+    return run(new Supplier<ServerInfo>() {
+      @Override
+      public ServerInfo get() {
+        return view.getInfo();
+      }
+    });
+  }
+
+  public CompletableFuture<Collection<User>> getUsers() {
+    return run(new Supplier<Collection<User>>() {
+      @Override
+      public Collection<User> get() {
+        return view.getUsers();
+      }
+    });
+  }
+
+  public CompletableFuture<Collection<ConversationHeader>> getConversations() {
+    return run(new Supplier<Collection<ConversationHeader>>() {
+      @Override
+      public Collection<ConversationHeader> get() {
+        return view.getConversations();
+      }
+    });
+  }
+
+  public CompletableFuture<Collection<ConversationPayload>> getConversationPayloads(
+      final Collection<Uuid> ids) {
+    return run(new Supplier<Collection<ConversationPayload>>() {
+      @Override
+      public Collection<ConversationPayload> get() {
+        return view.getConversationPayloads(ids);
+      }
+    });
+  }
+
+  public CompletableFuture<Collection<Message>> getMessages(final Collection<Uuid> ids) {
+    return run(new Supplier<Collection<Message>>() {
+      @Override
+      public Collection<Message> get() {
+        return view.getMessages(ids);
+      }
+    });
+  }
+
+  public CompletableFuture<Collection<Message>> getMessages(
+      final Uuid conversation, final Uuid cursor, final int limit) {
+    return run(new Supplier<Collection<Message>>() {
+      @Override
+      public Collection<Message> get() {
+        return view.getMessages(conversation, cursor, limit);
+      }
+    });
+  }
+
+  public CompletableFuture<Collection<Message>> searchMessages(
+      final Uuid user, final Uuid conversation, final String query, final int limit) {
+    return run(new Supplier<Collection<Message>>() {
+      @Override
+      public Collection<Message> get() {
+        return view.searchMessages(user, conversation, query, limit);
+      }
+    });
+  }
+
+  public CompletableFuture<User> newUser(final String name) {
+    return run(new Supplier<User>() {
+      @Override
+      public User get() {
+        return controller.newUser(name);
+      }
+    });
+  }
+
+  public CompletableFuture<ConversationHeader> newConversation(
+      final String title, final Uuid owner, final UserType defaultAccess) {
+    return run(new Supplier<ConversationHeader>() {
+      @Override
+      public ConversationHeader get() {
+        return controller.newConversation(title, owner, defaultAccess);
+      }
+    });
+  }
+
+  public CompletableFuture<Message> newMessage(
+      final Uuid author, final Uuid conversation, final String body) {
+    return run(new Supplier<Message>() {
+      @Override
+      public Message get() {
+        return controller.newMessage(author, conversation, body);
+      }
+    });
+  }
+
+  public CompletableFuture<List<Message>> newMessages(final List<MessageDraft> drafts) {
+    return run(new Supplier<List<Message>>() {
+      @Override
+      public List<Message> get() {
+        return controller.newMessages(drafts);
+      }
+    });
+  }
+
+  public CompletableFuture<Boolean> waitForNewMessage(
+      final Uuid conversation, final Time lastUpdate, final Duration maxWait) {
+    return run(new Supplier<Boolean>() {
+      @Override
+      public Boolean get() {
+        return controller.waitForNewMessage(conversation, lastUpdate, maxWait);
+      }
+    });
+  }
+
+  private <T> CompletableFuture<T> run(Supplier<T> call) {
+    return CompletableFuture.supplyAsync(call, executor);
+  }
+}
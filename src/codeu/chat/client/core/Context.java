@@ -14,13 +14,20 @@
 
 package codeu.chat.client.core;
 
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.concurrent.Executor;
 
 import codeu.chat.client.core.View;
+import codeu.chat.common.Message;
 import codeu.chat.common.ServerInfo;
 
 import codeu.chat.common.User;
+import codeu.chat.util.Duration;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.ConnectionSource;
 
 public final class Context {
@@ -50,6 +57,50 @@ public final class Context {
     return users;
   }
 
+  // SUBSCRIBE
+  //
+  // Have new messages in the conversation pushed to the listener as soon as
+  // the server adds them. Close the subscription to stop.
+  public MessageSubscription subscribe(
+      ConversationContext conversation, MessageSubscription.Listener listener)
+      throws IOException {
+    return view.subscribe(Arrays.asList(conversation.conversation.id), listener);
+  }
+
+  // WAIT FOR NEW MESSAGE
+  //
+  // Block until the conversation has a message newer than "lastUpdate" or
+  // until "maxWait" has passed. Returns whether there is a new message. This
+  // is lighter than a subscription when only a yes or no is needed.
+  public boolean waitForNewMessage(
+      ConversationContext conversation, Time lastUpdate, Duration maxWait) {
+    return controller.waitForNewMessage(conversation.conversation.id, lastUpdate, maxWait);
+  }
+
+  // SEARCH MESSAGES
+  //
+  // The newest messages, at most "limit" of them, that have every word in the
+  // query. The first form searches every conversation the user belongs to
+  // and the second searches only the one conversation. Results are newest
+  // first. Servers before session version 6 cannot search and find nothing.
+  public Collection<Message> searchMessages(UserContext user, String query, int limit) {
+    return view.searchMessages(user.user.id, Uuid.NULL, query, limit);
+  }
+
+  public Collection<Message> searchMessages(
+      ConversationContext conversation, String query, int limit) {
+    return view.searchMessages(
+        conversation.user.id, conversation.conversation.id, query, limit);
+  }
+
+  // ASYNC
+  //
+  // The same calls, returning futures. They run on the given executor and
+  // share this context's connections and cache.
+  public AsyncContext async(Executor executor) {
+    return new AsyncContext(view, controller, executor);
+  }
+
   public View getView() {
     return view;
   }
@@ -19,23 +19,31 @@ import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.InterestStatus;
 import codeu.chat.common.InterestType;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageDraft;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.User;
 import codeu.chat.common.UserType;
+import codeu.chat.util.Duration;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
+import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 
 public final class Controller implements BasicController {
 
   private static final Logger.Log LOG = Logger.newLog(Controller.class);
 
+  // The most drafts sent in one NEW_MESSAGES_BATCH request.
+  private static final int BATCH_SIZE = 500;
+
   private final ConnectionSource source;
 
   public Controller(ConnectionSource source) {
@@ -71,6 +79,66 @@ public final class Controller implements BasicController {
     return response;
   }
 
+  // NEW MESSAGES
+  //
+  // Add many messages at once, in order. The result has one entry per draft,
+  // which is null where that draft could not be added. Servers that do not
+  // support batches are sent one request per message.
+  public List<Message> newMessages(List<MessageDraft> drafts) {
+
+    final List<Message> messages = new ArrayList<>(drafts.size());
+
+    if (version() < 5) {
+      for (final MessageDraft draft : drafts) {
+        messages.add(newMessage(draft.author, draft.conversation, draft.body));
+      }
+      return messages;
+    }
+
+    for (int start = 0; start < drafts.size(); start += BATCH_SIZE) {
+
+      final List<MessageDraft> batch =
+          drafts.subList(start, Math.min(drafts.size(), start + BATCH_SIZE));
+
+      try (final Connection connection = source.connect()) {
+
+        Serializers.INTEGER.write(connection.out(), NetworkCode.NEW_MESSAGES_BATCH_REQUEST);
+        Serializers.COLLECTION(MessageDraft.SERIALIZER).write(connection.out(), batch);
+
+        if (Serializers.INTEGER.read(connection.in()) == NetworkCode.NEW_MESSAGES_BATCH_RESPONSE) {
+          messages.addAll(Serializers.COLLECTION(Serializers.NULLABLE(Message.SERIALIZER))
+              .read(connection.in()));
+          continue;
+        }
+
+        LOG.error("Response from server failed.");
+      } catch (Exception ex) {
+        System.out.println("ERROR: Exception during call on server. Check log for details.");
+        LOG.error(ex, "Exception during call on server.");
+      }
+
+      // Whether or not any of the batch was added is unknown.
+      for (int i = 0; i < batch.size(); i++) {
+        messages.add(null);
+      }
+    }
+
+    return messages;
+  }
+
+  // The session version agreed with the server, or 0 when there is no
+  // session to ask.
+  private int version() {
+    try {
+      return source instanceof SessionConnectionSource
+          ? ((SessionConnectionSource) source).version()
+          : 0;
+    } catch (IOException ex) {
+      LOG.error(ex, "Exception while starting a session.");
+      return 0;
+    }
+  }
+
   @Override
   public User newUser(String name) {
 
@@ -182,6 +250,36 @@ public final class Controller implements BasicController {
     return false;
   }
 
+  // WAIT FOR NEW MESSAGE
+  //
+  // The same as hasNewMessage, but when there is no new message yet the server
+  // holds the request for up to "maxWait" and answers as soon as one arrives.
+  // This blocks the caller for as long as the server waits.
+  //
+  // Over a session the parked request is just one more frame in flight, and
+  // the session's other requests carry on around it. Servers that started
+  // sessions before version 3 do not all park session frames, so with them
+  // the request uses a connection of its own.
+  public boolean waitForNewMessage(Uuid conversationId, Time lastUpdate, Duration maxWait) {
+    final ConnectionSource waitSource = source instanceof SessionConnectionSource && version() < 3
+        ? ((SessionConnectionSource) source).transport()
+        : source;
+    try (final Connection connection = waitSource.connect()) {
+      Serializers.INTEGER.write(connection.out(), NetworkCode.WAIT_FOR_NEW_MESSAGE_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), conversationId);
+      Time.SERIALIZER.write(connection.out(), lastUpdate);
+      Serializers.LONG.write(connection.out(), maxWait.millis);
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.HAS_NEW_MESSAGE_RESPONSE) {
+        return Serializers.BOOLEAN.read(connection.in());
+      } else {
+        LOG.error("Response from server failed.");
+      }
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception during call on server.");
+    }
+    return false;
+  }
+
   public Collection<InterestStatus> statusUpdate(UserContext user) {
     Collection<InterestStatus> allInterests = null;
     try (final Connection connection = source.connect()) {
@@ -27,9 +27,14 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Iterator;
 import java.util.Map;
+import java.util.NoSuchElementException;
 
 public final class ConversationContext {
 
+  // How many messages to ask the server for at a time when paging through a
+  // conversation.
+  private static final int PAGE_SIZE = 100;
+
   public final User user;
   public final ConversationHeader conversation;
 
@@ -70,6 +75,53 @@ public final class ConversationContext {
     return updated == null ? null : getMessage(updated.lastMessage);
   }
 
+  // MESSAGES
+  //
+  // All the messages in the conversation, in order. Messages are fetched from
+  // the server a page at a time as the iterator reaches them, so listing a
+  // conversation costs one call per page rather than one per message.
+  public Iterable<MessageContext> messages() {
+    return new Iterable<MessageContext>() {
+      @Override
+      public Iterator<MessageContext> iterator() {
+        return new MessagePager();
+      }
+    };
+  }
+
+  private final class MessagePager implements Iterator<MessageContext> {
+
+    private Iterator<Message> page = null;
+    private Uuid cursor = Uuid.NULL;
+    private boolean lastPage = false;
+
+    @Override
+    public boolean hasNext() {
+      while ((page == null || !page.hasNext()) && !lastPage) {
+        final Collection<Message> messages = view.getMessages(conversation.id, cursor, PAGE_SIZE);
+        // A short page means that the end of the conversation was reached.
+        lastPage = messages.size() < PAGE_SIZE;
+        page = messages.iterator();
+      }
+      return page.hasNext();
+    }
+
+    @Override
+    public MessageContext next() {
+      if (!hasNext()) {
+        throw new NoSuchElementException();
+      }
+      final Message message = page.next();
+      cursor = message.id;
+      return new MessageContext(message, view);
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+
   private ConversationPayload getUpdated() {
     final Collection<Uuid> ids = Arrays.asList(conversation.id);
     final Iterator<ConversationPayload> payloads = view.getConversationPayloads(ids).iterator();
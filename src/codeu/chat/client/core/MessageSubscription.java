@@ -0,0 +1,125 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.IOException;
+import java.util.Collection;
+
+// MESSAGE SUBSCRIPTION
+//
+// A connection that the server keeps open to push new messages to the client
+// as soon as they are added. Messages are handed to the listener on the
+// subscription's own thread. Closing the subscription closes the connection.
+public final class MessageSubscription implements Closeable {
+
+  private static final Logger.Log LOG = Logger.newLog(MessageSubscription.class);
+
+  public interface Listener {
+    void onMessage(Message message);
+
+    // Called once, on the reader thread, when no more messages will come:
+    // the subscription was closed, the server ended it or the connection
+    // failed.
+    void onClose();
+  }
+
+  private final Connection connection;
+
+  private volatile boolean closed = false;
+  private volatile boolean ended = false;
+
+  private MessageSubscription(Connection connection) {
+    this.connection = connection;
+  }
+
+  // OPEN
+  //
+  // Subscribe to new messages in the given conversations. This blocks until
+  // the server has accepted the subscription and throws if the server does not
+  // support subscriptions.
+  static MessageSubscription open(
+      ConnectionSource source, Collection<Uuid> conversations, final Listener listener)
+      throws IOException {
+
+    final Connection connection = source.connect();
+
+    try {
+      Serializers.INTEGER.write(connection.out(), NetworkCode.SUBSCRIBE_REQUEST);
+      Serializers.COLLECTION(Uuid.SERIALIZER).write(connection.out(), conversations);
+
+      if (Serializers.INTEGER.read(connection.in()) != NetworkCode.SUBSCRIBE_RESPONSE) {
+        throw new IOException("Server does not support subscriptions");
+      }
+    } catch (IOException ex) {
+      connection.close();
+      throw ex;
+    }
+
+    final MessageSubscription subscription = new MessageSubscription(connection);
+
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        subscription.read(listener);
+      }
+    };
+
+    reader.setDaemon(true);
+    reader.start();
+
+    return subscription;
+  }
+
+  private void read(Listener listener) {
+    try {
+      while (true) {
+        final int type = Serializers.INTEGER.read(connection.in());
+        if (type != NetworkCode.NEW_MESSAGE_EVENT) {
+          throw new IOException(String.format("Unexpected event %d from server", type));
+        }
+        listener.onMessage(Message.SERIALIZER.read(connection.in()));
+      }
+    } catch (EOFException ex) {
+      LOG.info("Subscription closed by server.");
+    } catch (IOException ex) {
+      if (!closed) {
+        LOG.error(ex, "Exception while reading subscription.");
+      }
+    } finally {
+      ended = true;
+      listener.onClose();
+    }
+  }
+
+  // Whether new messages may still arrive.
+  public boolean isOpen() {
+    return !closed && !ended;
+  }
+
+  @Override
+  public void close() throws IOException {
+    closed = true;
+    connection.close();
+  }
+}
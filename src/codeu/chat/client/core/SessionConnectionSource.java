@@ -0,0 +1,632 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.client.core;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.Frame;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+// SESSION CONNECTION SOURCE
+//
+// Implements the ConnectionSource interface on top of a small pool of
+// long-lived connections. Each call to "connect" returns a light-weight
+// connection that buffers the request in memory. The first time the response
+// is needed, the request is sent as one frame over one of the pooled sessions
+// and the matching response frame is handed back. This means callers keep
+// using the normal "connect, write, read, close" pattern while only paying
+// for the TCP handshake once.
+//
+// Requests are pipelined: a session does not wait for one response before
+// sending the next request. Every frame carries an id and a reader thread per
+// session gives each response to the request with the same id. A new session
+// is only opened when every session already has requests in flight, and
+// sessions beyond the first are closed once they have been idle for a while.
+//
+// If the server does not understand sessions, the source falls back to
+// opening a new transport connection for every call.
+//
+// From version 7 on, every response ends with the server's generation. It is
+// taken off before the caller sees the response and kept for "generation".
+//
+// A server with too much queued answers with SERVER_BUSY_RESPONSE without
+// doing anything, and one that is limiting this client's rate answers with
+// RATE_LIMITED_RESPONSE. Those requests are sent again after a randomized,
+// growing delay, so a busy server sees less traffic instead of more.
+public final class SessionConnectionSource implements ConnectionSource {
+
+  private static final Logger.Log LOG = Logger.newLog(SessionConnectionSource.class);
+
+  // The version of the session protocol that this source speaks. The server
+  // replies with the version it will use for the rest of the session.
+  public static final int VERSION = 7;
+
+  public static final int DEFAULT_POOL_SIZE = 2;
+  public static final long DEFAULT_IDLE_MS = 30000;
+
+  // How many times a request is sent to a busy server before giving up, and
+  // the limits of the delay between tries.
+  private static final int MAX_ATTEMPTS = 6;
+  private static final long MIN_BACKOFF_MS = 50;
+  private static final long MAX_BACKOFF_MS = 2000;
+
+  // Thrown when the server is too busy to start a new session.
+  private static final class ServerBusyException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    public ServerBusyException() {
+      super("Server is busy");
+    }
+  }
+
+  // PENDING
+  //
+  // A request that has been sent and is waiting for its response.
+  private static final class Pending {
+
+    private byte[] response;
+    private IOException error;
+    private boolean done = false;
+
+    public synchronized void complete(byte[] response) {
+      this.response = response;
+      this.done = true;
+      notifyAll();
+    }
+
+    public synchronized void fail(IOException error) {
+      this.error = error;
+      this.done = true;
+      notifyAll();
+    }
+
+    public synchronized byte[] await() throws IOException {
+      while (!done) {
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for a response");
+        }
+      }
+      if (error != null) {
+        throw new IOException("Session failed before the response arrived", error);
+      }
+      return response;
+    }
+  }
+
+  // SESSION
+  //
+  // One pooled connection. Writes are guarded by the output stream so frames
+  // from different callers never interleave. Its reader thread is the only
+  // one that reads from it.
+  private final class Session implements Runnable {
+
+    public final Connection connection;
+    public final InputStream in;
+    public final OutputStream out;
+    public final int version;
+
+    // Guarded by the SessionConnectionSource.
+    public final Map<Integer, Pending> pending = new HashMap<>();
+    public long idleSince = System.currentTimeMillis();
+
+    public Session(Connection connection, InputStream in, OutputStream out, int version) {
+      this.connection = connection;
+      this.in = in;
+      this.out = out;
+      this.version = version;
+    }
+
+    public void write(Frame frame) throws IOException {
+      synchronized (out) {
+        Frame.SERIALIZER.write(out, frame);
+        out.flush();
+      }
+    }
+
+    @Override
+    public void run() {
+      try {
+        while (true) {
+
+          final Frame frame = Frame.SERIALIZER.read(in);
+          final Pending request;
+
+          synchronized (SessionConnectionSource.this) {
+            request = pending.remove(frame.id);
+            if (pending.isEmpty()) {
+              idleSince = System.currentTimeMillis();
+            }
+          }
+
+          final byte[] payload = version >= 7 ? takeGeneration(frame.payload) : frame.payload;
+
+          if (request == null) {
+            LOG.warning("Session response %d does not match any request", frame.id);
+          } else {
+            request.complete(payload);
+          }
+        }
+      } catch (IOException ex) {
+        drop(this, ex);
+      }
+    }
+  }
+
+  private final ConnectionSource transport;
+  private final int poolSize;
+  private final long idleMs;
+
+  // All of the fields below are guarded by "this". Sessions are connected
+  // without holding "this", so a slow server does not hold up requests on
+  // the sessions that are already open. "opening" counts the sessions being
+  // connected, which take up room in the pool until they are done.
+  private final List<Session> sessions = new ArrayList<>();
+  private int opening = 0;
+  private int sessionVersion = 0;
+  private int nextId = 0;
+  private boolean fallback = false;
+
+  // The server's generation from the last response that had one, and when
+  // (in System.nanoTime()) it arrived.
+  private boolean generationKnown = false;
+  private long generation;
+  private long generationArrived;
+
+  public SessionConnectionSource(ConnectionSource transport) {
+    this(transport, DEFAULT_POOL_SIZE, DEFAULT_IDLE_MS);
+  }
+
+  public SessionConnectionSource(ConnectionSource transport, int poolSize, long idleMs) {
+
+    if (poolSize < 1) {
+      throw new IllegalArgumentException("Pool size must be at least one");
+    }
+
+    this.transport = transport;
+    this.poolSize = poolSize;
+    this.idleMs = idleMs;
+  }
+
+  @Override
+  public Connection connect() throws IOException {
+
+    synchronized (this) {
+      if (fallback) {
+        return transport.connect();
+      }
+    }
+
+    return new Connection() {
+
+      private final ByteArrayOutputStream request = new ByteArrayOutputStream();
+      private InputStream response;
+
+      @Override
+      public InputStream in() throws IOException {
+        if (response == null) {
+          response = new ByteArrayInputStream(send(request.toByteArray()));
+        }
+        return response;
+      }
+
+      @Override
+      public OutputStream out() throws IOException {
+        return request;
+      }
+
+      @Override
+      public InetAddress remoteAddress() {
+        // Requests go over whichever pooled session is free.
+        return null;
+      }
+
+      @Override
+      public void close() throws IOException {
+        // A caller may write a request without reading the response. The
+        // request still needs to reach the server.
+        if (response == null && request.size() > 0) {
+          in();
+        }
+      }
+    };
+  }
+
+  // The connection source that sessions are opened on. Connections that do not
+  // fit the request/response pattern (like subscriptions) use it directly.
+  ConnectionSource transport() {
+    return transport;
+  }
+
+  // VERSION
+  //
+  // The session version agreed with the server, starting a session if there
+  // is not one yet. This is 0 when the server does not support sessions.
+  public int version() throws IOException {
+    synchronized (this) {
+      if (fallback || !sessions.isEmpty()) {
+        return fallback ? 0 : sessionVersion;
+      }
+    }
+    acquire(0, null);
+    synchronized (this) {
+      return fallback ? 0 : sessionVersion;
+    }
+  }
+
+  // GENERATION
+  //
+  // The server's generation as of the last response, or null if no response
+  // has carried one within the last "maxAgeMs". Only version 7 sessions
+  // send it. Responses from different sessions may arrive out of order, so
+  // this can be a little behind, which at worst costs the caller a check it
+  // did not need.
+  public synchronized Long generation(long maxAgeMs) {
+    if (!generationKnown
+        || System.nanoTime() - generationArrived > TimeUnit.MILLISECONDS.toNanos(maxAgeMs)) {
+      return null;
+    }
+    return generation;
+  }
+
+  // Record the generation at the end of a version 7 response and return the
+  // response without it.
+  private byte[] takeGeneration(byte[] payload) throws IOException {
+
+    if (payload.length < 8) {
+      throw new IOException("Session response is too short to carry a generation");
+    }
+
+    final long current = ByteBuffer.wrap(payload, payload.length - 8, 8).getLong();
+
+    synchronized (this) {
+      generation = current;
+      generationArrived = System.nanoTime();
+      generationKnown = true;
+    }
+
+    return Arrays.copyOf(payload, payload.length - 8);
+  }
+
+  @Override
+  public void close() throws IOException {
+
+    final Collection<Session> closing;
+
+    synchronized (this) {
+      closing = new ArrayList<>(sessions);
+      sessions.clear();
+    }
+
+    // Closing the connection ends its reader thread, which fails anything
+    // still waiting on it.
+    for (final Session session : closing) {
+      close(session);
+    }
+
+    transport.close();
+  }
+
+  private byte[] send(byte[] payload) throws IOException {
+
+    for (int attempt = 1; ; attempt++) {
+
+      byte[] response = null;
+
+      try {
+        response = sendOnce(payload);
+        if (!isBusy(response)) {
+          return response;
+        }
+      } catch (ServerBusyException ex) {
+        if (attempt >= MAX_ATTEMPTS) {
+          throw ex;
+        }
+      }
+
+      if (attempt >= MAX_ATTEMPTS) {
+        LOG.warning("Server was still busy after %d attempts.", attempt);
+        return response;
+      }
+
+      backOff(attempt);
+    }
+  }
+
+  private static boolean isBusy(byte[] response) throws IOException {
+    if (response.length != 4) {
+      return false;
+    }
+    final int code = Serializers.INTEGER.read(new ByteArrayInputStream(response));
+    return code == NetworkCode.SERVER_BUSY_RESPONSE || code == NetworkCode.RATE_LIMITED_RESPONSE;
+  }
+
+  // Wait before the next attempt. The delay doubles with every attempt and is
+  // randomized so that clients turned away together do not all come back
+  // together.
+  private static void backOff(int attempt) throws IOException {
+    final long limit = Math.min(MAX_BACKOFF_MS, MIN_BACKOFF_MS << Math.min(attempt - 1, 16));
+    try {
+      Thread.sleep(limit / 2 + ThreadLocalRandom.current().nextLong(limit / 2 + 1));
+    } catch (InterruptedException ex) {
+      Thread.currentThread().interrupt();
+      throw new InterruptedIOException("Interrupted while waiting for a busy server");
+    }
+  }
+
+  private byte[] sendOnce(byte[] payload) throws IOException {
+
+    final Pending request = new Pending();
+    final int id;
+
+    synchronized (this) {
+      id = nextId++;
+    }
+
+    final Session session = acquire(id, request);
+
+    if (session == null) {
+      return sendOneShot(payload);
+    }
+
+    try {
+      session.write(new Frame(id, payload));
+    } catch (IOException ex) {
+      // The session can no longer be trusted. Drop it so that the next
+      // request will use (or start) another one.
+      drop(session, ex);
+      throw ex;
+    }
+
+    return request.await();
+  }
+
+  // ACQUIRE
+  //
+  // Pick the session for the next request and register the request with it:
+  // the session with the fewest requests in flight, unless they are all busy
+  // and the pool has room for another. A new session is connected without
+  // holding "this" and only added to the pool once it is ready. This is null
+  // if the server does not support sessions. The request may be null to only
+  // make sure that there is a session.
+  private Session acquire(int id, Pending request) throws IOException {
+
+    Session best;
+
+    synchronized (this) {
+      while (true) {
+
+        if (fallback) {
+          return null;
+        }
+
+        evictIdle();
+
+        best = null;
+        for (final Session session : sessions) {
+          if (best == null || session.pending.size() < best.pending.size()) {
+            best = session;
+          }
+        }
+
+        final boolean full = sessions.size() + opening >= poolSize;
+
+        if (best != null && (best.pending.isEmpty() || full)) {
+          register(best, id, request);
+          return best;
+        }
+
+        if (!full) {
+          opening++;
+          break;
+        }
+
+        // The pool is full of sessions that are still being connected.
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for a session");
+        }
+      }
+    }
+
+    Session opened = null;
+    IOException failure = null;
+
+    try {
+      opened = open();
+    } catch (IOException ex) {
+      failure = ex;
+    }
+
+    synchronized (this) {
+
+      opening--;
+      notifyAll();
+
+      if (opened != null) {
+        sessions.add(opened);
+        sessionVersion = opened.version;
+        register(opened, id, request);
+
+        final Thread reader = new Thread(opened, "session-reader");
+        reader.setDaemon(true);
+        reader.start();
+
+        return opened;
+      }
+
+      if (failure == null) {
+        LOG.warning("Server does not support sessions, falling back to one connection per request.");
+        fallback = true;
+        return null;
+      }
+
+      // The server will not take another session right now, but the ones
+      // already open can still be used.
+      if (failure instanceof ServerBusyException && best != null && sessions.contains(best)) {
+        register(best, id, request);
+        return best;
+      }
+    }
+
+    throw failure;
+  }
+
+  // Must be called while holding "this".
+  private static void register(Session session, int id, Pending request) {
+    if (request != null) {
+      session.pending.put(id, request);
+    }
+  }
+
+  // Close sessions that have had nothing to do for too long. The first session
+  // is always kept so that the next request does not pay for a new handshake.
+  // Must be called while holding "this".
+  private void evictIdle() {
+
+    final long now = System.currentTimeMillis();
+    final Iterator<Session> it = sessions.iterator();
+
+    // Skip the first session.
+    if (it.hasNext()) {
+      it.next();
+    }
+
+    while (it.hasNext()) {
+      final Session session = it.next();
+      if (session.pending.isEmpty() && now - session.idleSince >= idleMs) {
+        LOG.info("Closing idle session.");
+        it.remove();
+        close(session);
+      }
+    }
+  }
+
+  private byte[] sendOneShot(byte[] payload) throws IOException {
+
+    final ByteArrayOutputStream response = new ByteArrayOutputStream();
+
+    try (final Connection connection = transport.connect()) {
+      connection.out().write(payload);
+      connection.out().flush();
+
+      final byte[] buffer = new byte[4096];
+      for (int read = connection.in().read(buffer);
+           read >= 0;
+           read = connection.in().read(buffer)) {
+        response.write(buffer, 0, read);
+      }
+    }
+
+    return response.toByteArray();
+  }
+
+  // OPEN
+  //
+  // Connect a new session and agree on its version. This is null if the
+  // server does not support sessions. It does not touch the pool, so it is
+  // called without holding "this".
+  private Session open() throws IOException {
+
+    final Connection connection = transport.connect();
+    final InputStream in = new BufferedInputStream(connection.in());
+    final OutputStream out = new BufferedOutputStream(connection.out());
+
+    final int response;
+    final int version;
+
+    try {
+      Serializers.INTEGER.write(out, NetworkCode.SESSION_REQUEST);
+      Serializers.INTEGER.write(out, VERSION);
+      out.flush();
+      response = Serializers.INTEGER.read(in);
+      version = response == NetworkCode.SESSION_RESPONSE ? Serializers.INTEGER.read(in) : 0;
+    } catch (IOException ex) {
+      connection.close();
+      throw ex;
+    }
+
+    if (response == NetworkCode.SERVER_BUSY_RESPONSE) {
+      connection.close();
+      throw new ServerBusyException();
+    }
+
+    if (response != NetworkCode.SESSION_RESPONSE) {
+      connection.close();
+      return null;
+    }
+
+    LOG.info("Session started (version=%d)", version);
+
+    return new Session(connection, in, out, version);
+  }
+
+  // DROP
+  //
+  // Remove a broken session from the pool and fail every request that was
+  // waiting on it.
+  private void drop(Session session, IOException cause) {
+
+    final Collection<Pending> failed;
+
+    synchronized (this) {
+      if (sessions.remove(session)) {
+        LOG.error(cause, "Session failed.");
+      }
+      failed = new ArrayList<>(session.pending.values());
+      session.pending.clear();
+    }
+
+    close(session);
+
+    for (final Pending request : failed) {
+      request.fail(cause);
+    }
+  }
+
+  private static void close(Session session) {
+    try {
+      session.connection.close();
+    } catch (IOException ex) {
+      LOG.error(ex, "Exception while closing session.");
+    }
+  }
+}
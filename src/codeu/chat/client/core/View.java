@@ -15,19 +15,28 @@
 package codeu.chat.client.core;
 
 import codeu.chat.common.BasicView;
+import codeu.chat.common.Changes;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.Message;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.ServerInfo;
 import codeu.chat.common.User;
+import codeu.chat.util.CompactSerializers;
 import codeu.chat.util.Logger;
+import codeu.chat.util.LruCache;
 import codeu.chat.util.Serializers;
+import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
+import java.io.IOException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 // VIEW
 //
@@ -38,8 +47,53 @@ final class View implements BasicView {
 
   private static final Logger.Log LOG = Logger.newLog(View.class);
 
+  // The most payloads and messages that are kept in memory at once.
+  private static final int CACHE_SIZE = 1024;
+
+  // How long the generation that came with the last response is trusted.
+  // Past that the server is asked before the cache is used, so that changes
+  // made by other clients show up even when this one has sent nothing else.
+  private static final long TRUST_MS = 1000;
+
   private final ConnectionSource source;
 
+  // CACHE
+  //
+  // What was read from the server is kept until the server's generation
+  // says it may have changed. The generation moves on whenever the server's
+  // data changes.
+  //
+  // Servers before session version 7 can only be asked for the generation,
+  // which costs a small request before every cached read, and everything is
+  // dropped whenever it moves on. From version 7 on, every response carries
+  // the generation, so while it matches the cache's there is nothing to ask.
+  // When it does not, the server is asked what changed since the cache's
+  // generation, and only the users, payloads and messages of conversations
+  // that changed are dropped. Messages other than the last of a conversation
+  // never change, so only the last is dropped unless the conversation was
+  // removed.
+  //
+  // Values are only cached if the cache's generation has not moved on since
+  // before they were read. All of the cache is guarded by "this", which is
+  // never held while talking to the server so that calls from different
+  // threads can run at the same time.
+  private boolean generationKnown = false;
+  private long generation;
+
+  private Collection<User> userCache = null;
+  private final LruCache<Uuid, ConversationPayload> payloadCache = new LruCache<>(CACHE_SIZE);
+  private final LruCache<Uuid, Message> messageCache = new LruCache<>(CACHE_SIZE);
+
+  // Whether the conversation list may have changed since the last sync.
+  private boolean conversationsStale = true;
+
+  // The conversation list as of the last sync and the server time to sync
+  // from next. Only used when the server supports GET_CONVERSATIONS_SINCE. A
+  // sync changes both, so syncs run one at a time while holding
+  // "conversations".
+  private final Map<Uuid, ConversationHeader> conversations = new LinkedHashMap<>();
+  private Time conversationsSynced = Time.minTime();
+
   public View(ConnectionSource source) {
     this.source = source;
   }
@@ -48,9 +102,181 @@ final class View implements BasicView {
     return source;
   }
 
+  // SUBSCRIBE
+  //
+  // Have the server push new messages in the given conversations to the
+  // listener. A subscription needs a connection of its own, so it does not go
+  // through the session.
+  public MessageSubscription subscribe(
+      Collection<Uuid> conversations, MessageSubscription.Listener listener) throws IOException {
+    final ConnectionSource transport = source instanceof SessionConnectionSource
+        ? ((SessionConnectionSource) source).transport()
+        : source;
+    return MessageSubscription.open(transport, conversations, listener);
+  }
+
+  // The session version agreed with the server. Newer commands can only be
+  // sent over a session, so this is 0 for any other source.
+  private int version() throws IOException {
+    return source instanceof SessionConnectionSource
+        ? ((SessionConnectionSource) source).version()
+        : 0;
+  }
+
+  // Whether the server understands the compact versions of the bulk reads.
+  private boolean compact() throws IOException {
+    return version() >= 2;
+  }
+
+  // REVALIDATE
+  //
+  // Bring the cache up to the server's generation, dropping whatever may
+  // have changed. Returns the generation, or null if the server cannot say,
+  // in which case nothing should be read from or added to the cache.
+  private Long revalidate() {
+
+    final Long from;
+    final Changes changes;
+
+    try {
+
+      final int version = version();
+
+      if (version < 4) {
+        return null;
+      }
+
+      synchronized (this) {
+        from = generationKnown ? generation : null;
+      }
+
+      if (version < 7) {
+        final Long current = getGeneration();
+        if (current == null) {
+          return null;
+        }
+        changes = current.equals(from) ? Changes.none(current) : Changes.all(current);
+      } else {
+        if (from != null && from.equals(((SessionConnectionSource) source).generation(TRUST_MS))) {
+          return from;
+        }
+        changes = getChanges(from == null ? 0 : from);
+        if (changes == null) {
+          return null;
+        }
+      }
+
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while checking the server's generation.");
+      return null;
+    }
+
+    synchronized (this) {
+
+      // Another call brought the cache up to date first, so these changes
+      // may not cover everything since the cache's generation.
+      if (from == null ? generationKnown : !current(from)) {
+        return null;
+      }
+
+      drop(from == null ? Changes.all(changes.generation) : changes);
+
+      generation = changes.generation;
+      generationKnown = true;
+
+      return generation;
+    }
+  }
+
+  // Drop everything in the cache that "changes" says may be out of date.
+  // Must be called while holding "this".
+  private void drop(Changes changes) {
+
+    if (changes.all) {
+      userCache = null;
+      payloadCache.clear();
+      messageCache.clear();
+      conversationsStale = true;
+      return;
+    }
+
+    if (changes.users) {
+      userCache = null;
+    }
+
+    if (changes.conversationList) {
+      conversationsStale = true;
+    }
+
+    for (final Uuid id : changes.conversations) {
+      payloadCache.remove(id);
+    }
+
+    for (final Message message : messageCache.values()) {
+      if (changes.removed.contains(message.conversationHeader)
+          || (changes.conversations.contains(message.conversationHeader)
+              && Uuid.equals(message.next, Uuid.NULL))) {
+        messageCache.remove(message.id);
+      }
+    }
+  }
+
+  // The server's generation, or null if it could not be read.
+  private Long getGeneration() throws IOException {
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_GENERATION_REQUEST);
+
+      if (Serializers.INTEGER.read(connection.in()) != NetworkCode.GET_GENERATION_RESPONSE) {
+        LOG.error("Response from server failed.");
+        return null;
+      }
+
+      return Serializers.LONG.read(connection.in());
+    }
+  }
+
+  // What changed on the server since generation "from", or null if it could
+  // not be read.
+  private Changes getChanges(long from) throws IOException {
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.GET_CHANGES_REQUEST);
+      Serializers.LONG.write(connection.out(), from);
+
+      if (Serializers.INTEGER.read(connection.in()) != NetworkCode.GET_CHANGES_RESPONSE) {
+        LOG.error("Response from server failed.");
+        return null;
+      }
+
+      return Changes.SERIALIZER.read(connection.in());
+    }
+  }
+
+  // The generation of the cache right now, or null if it is not known.
+  private synchronized Long cachedGeneration() {
+    return generationKnown ? generation : null;
+  }
+
+  // Whether the cache is still at the given generation. Must be called while
+  // holding "this".
+  private boolean current(Long seen) {
+    return seen != null && generationKnown && generation == seen;
+  }
+
   @Override
   public Collection<User> getUsers() {
 
+    final Long seen = revalidate();
+
+    synchronized (this) {
+      if (current(seen) && userCache != null) {
+        return new ArrayList<>(userCache);
+      }
+    }
+
     final Collection<User> users = new ArrayList<>();
 
     try (final Connection connection = source.connect()) {
@@ -59,6 +285,11 @@ final class View implements BasicView {
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_USERS_RESPONSE) {
         users.addAll(Serializers.COLLECTION(User.SERIALIZER).read(connection.in()));
+        synchronized (this) {
+          if (current(seen)) {
+            userCache = new ArrayList<>(users);
+          }
+        }
       } else {
         LOG.error("Response from server failed.");
       }
@@ -74,10 +305,40 @@ final class View implements BasicView {
   @Override
   public Collection<ConversationHeader> getConversations() {
 
+    final Long seen = revalidate();
     final Collection<ConversationHeader> summaries = new ArrayList<>();
 
     try (final Connection connection = source.connect()) {
 
+      if (version() >= 3) {
+
+        synchronized (conversations) {
+          if ((seen == null || takeConversationsStale()) && !syncConversations(connection)) {
+            synchronized (this) {
+              conversationsStale = true;
+            }
+          }
+          summaries.addAll(conversations.values());
+        }
+
+        return summaries;
+      }
+
+      if (compact()) {
+
+        Serializers.INTEGER.write(
+            connection.out(), NetworkCode.GET_ALL_CONVERSATIONS_COMPACT_REQUEST);
+
+        if (Serializers.INTEGER.read(connection.in())
+            == NetworkCode.GET_ALL_CONVERSATIONS_COMPACT_RESPONSE) {
+          summaries.addAll(ConversationHeader.COMPACT_COLLECTION_SERIALIZER.read(connection.in()));
+        } else {
+          LOG.error("Response from server failed.");
+        }
+
+        return summaries;
+      }
+
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_ALL_CONVERSATIONS_REQUEST);
 
       if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_ALL_CONVERSATIONS_RESPONSE) {
@@ -95,9 +356,87 @@ final class View implements BasicView {
     return summaries;
   }
 
+  // Whether the conversation list needs to be synced, which it no longer
+  // will once the caller has synced it.
+  private synchronized boolean takeConversationsStale() {
+    final boolean stale = conversationsStale;
+    conversationsStale = false;
+    return stale;
+  }
+
+  // SYNC CONVERSATIONS
+  //
+  // Bring the local conversation list up to date by applying only what was
+  // added and removed since the last sync. Nothing changes if the response
+  // cannot be read in full. Returns whether the sync worked. Must be called
+  // while holding "conversations".
+  private boolean syncConversations(Connection connection) throws IOException {
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.GET_CONVERSATIONS_SINCE_REQUEST);
+    Time.SERIALIZER.write(connection.out(), conversationsSynced);
+
+    if (Serializers.INTEGER.read(connection.in())
+        != NetworkCode.GET_CONVERSATIONS_SINCE_RESPONSE) {
+      LOG.error("Response from server failed.");
+      return false;
+    }
+
+    final Time synced = Time.SERIALIZER.read(connection.in());
+    final Collection<ConversationHeader> added =
+        ConversationHeader.COMPACT_COLLECTION_SERIALIZER.read(connection.in());
+    final Collection<Uuid> removed =
+        CompactSerializers.COLLECTION(Uuid.SERIALIZER).read(connection.in());
+
+    for (final ConversationHeader conversation : added) {
+      conversations.put(conversation.id, conversation);
+    }
+    for (final Uuid id : removed) {
+      conversations.remove(id);
+    }
+
+    conversationsSynced = synced;
+    return true;
+  }
+
   @Override
   public Collection<ConversationPayload> getConversationPayloads(Collection<Uuid> ids) {
 
+    final Long seen = revalidate();
+
+    final Collection<ConversationPayload> found = new ArrayList<>();
+    final Collection<Uuid> missing = new ArrayList<>();
+
+    synchronized (this) {
+      for (final Uuid id : ids) {
+        final ConversationPayload payload = current(seen) ? payloadCache.get(id) : null;
+        if (payload == null) {
+          missing.add(id);
+        } else {
+          found.add(payload);
+        }
+      }
+    }
+
+    if (missing.isEmpty()) {
+      return found;
+    }
+
+    final Collection<ConversationPayload> fetched = fetchConversationPayloads(missing);
+
+    synchronized (this) {
+      for (final ConversationPayload payload : fetched) {
+        found.add(payload);
+        if (current(seen)) {
+          payloadCache.put(payload.id, payload);
+        }
+      }
+    }
+
+    return found;
+  }
+
+  private Collection<ConversationPayload> fetchConversationPayloads(Collection<Uuid> ids) {
+
     final Collection<ConversationPayload> conversations = new ArrayList<>();
 
     try (final Connection connection = source.connect()) {
@@ -123,10 +462,61 @@ final class View implements BasicView {
   @Override
   public Collection<Message> getMessages(Collection<Uuid> ids) {
 
+    final Long seen = revalidate();
+
+    final Collection<Message> found = new ArrayList<>();
+    final Collection<Uuid> missing = new ArrayList<>();
+
+    synchronized (this) {
+      for (final Uuid id : ids) {
+        final Message message = current(seen) ? messageCache.get(id) : null;
+        if (message == null) {
+          missing.add(id);
+        } else {
+          found.add(message);
+        }
+      }
+    }
+
+    if (missing.isEmpty()) {
+      return found;
+    }
+
+    final Collection<Message> fetched = fetchMessages(missing);
+
+    synchronized (this) {
+      for (final Message message : fetched) {
+        found.add(message);
+        if (current(seen)) {
+          messageCache.put(message.id, message);
+        }
+      }
+    }
+
+    return found;
+  }
+
+  private Collection<Message> fetchMessages(Collection<Uuid> ids) {
+
     final Collection<Message> messages = new ArrayList<>();
 
     try (final Connection connection = source.connect()) {
 
+      if (compact()) {
+
+        Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_ID_COMPACT_REQUEST);
+        CompactSerializers.COLLECTION(Uuid.SERIALIZER).write(connection.out(), ids);
+
+        if (Serializers.INTEGER.read(connection.in())
+            == NetworkCode.GET_MESSAGES_BY_ID_COMPACT_RESPONSE) {
+          messages.addAll(Message.COMPACT_COLLECTION_SERIALIZER.read(connection.in()));
+        } else {
+          LOG.error("Response from server failed.");
+        }
+
+        return messages;
+      }
+
       Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_BY_ID_REQUEST);
       Serializers.COLLECTION(Uuid.SERIALIZER).write(connection.out(), ids);
 
@@ -143,6 +533,122 @@ final class View implements BasicView {
     return messages;
   }
 
+  @Override
+  public Collection<Message> getMessages(Uuid conversation, Uuid cursor, int limit) {
+
+    // A page is at least as new as the cache was before it was read, so it
+    // can be cached without asking for the generation again.
+    final Long seen = cachedGeneration();
+    final Collection<Message> messages = new ArrayList<>();
+
+    try {
+
+      // Not every version 2 server has GET_MESSAGES_RANGE, but every server
+      // that speaks version 3 does.
+      if (version() < 3) {
+        return walkMessages(conversation, cursor, limit);
+      }
+
+      try (final Connection connection = source.connect()) {
+
+        Serializers.INTEGER.write(connection.out(), NetworkCode.GET_MESSAGES_RANGE_REQUEST);
+        Uuid.SERIALIZER.write(connection.out(), conversation);
+        Uuid.SERIALIZER.write(connection.out(), cursor);
+        Serializers.INTEGER.write(connection.out(), limit);
+
+        if (Serializers.INTEGER.read(connection.in()) == NetworkCode.GET_MESSAGES_RANGE_RESPONSE) {
+          messages.addAll(Message.COMPACT_COLLECTION_SERIALIZER.read(connection.in()));
+          synchronized (this) {
+            if (current(seen)) {
+              for (final Message message : messages) {
+                messageCache.put(message.id, message);
+              }
+            }
+          }
+        } else {
+          LOG.error("Response from server failed.");
+        }
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
+  // WALK MESSAGES
+  //
+  // The same page as GET_MESSAGES_RANGE for servers that do not have it:
+  // start at the conversation's first message (or the one after the cursor)
+  // and follow each message's "next" link, one message at a time.
+  private Collection<Message> walkMessages(Uuid conversation, Uuid cursor, int limit) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    Uuid next;
+
+    if (Uuid.equals(cursor, Uuid.NULL)) {
+      final Iterator<ConversationPayload> payloads =
+          getConversationPayloads(Arrays.asList(conversation)).iterator();
+      next = payloads.hasNext() ? payloads.next().firstMessage : Uuid.NULL;
+    } else {
+      final Iterator<Message> found = getMessages(Arrays.asList(cursor)).iterator();
+      next = found.hasNext() ? found.next().next : Uuid.NULL;
+    }
+
+    while (messages.size() < limit && !Uuid.equals(next, Uuid.NULL)) {
+      final Iterator<Message> found = getMessages(Arrays.asList(next)).iterator();
+      if (!found.hasNext()) {
+        break;
+      }
+      final Message message = found.next();
+      messages.add(message);
+      next = message.next;
+    }
+
+    return messages;
+  }
+
+  // SEARCH MESSAGES
+  //
+  // The newest messages that have every word in the query, from the
+  // conversations the user belongs to (or only "conversation" when it is not
+  // Uuid.NULL). The server returns at most 100.
+  public Collection<Message> searchMessages(
+      Uuid user, Uuid conversation, String query, int limit) {
+
+    final Collection<Message> messages = new ArrayList<>();
+
+    try {
+
+      if (version() < 6) {
+        LOG.warning("Server does not support search.");
+        return messages;
+      }
+
+      try (final Connection connection = source.connect()) {
+
+        Serializers.INTEGER.write(connection.out(), NetworkCode.SEARCH_MESSAGES_REQUEST);
+        Uuid.SERIALIZER.write(connection.out(), user);
+        Uuid.SERIALIZER.write(connection.out(), conversation);
+        Serializers.STRING.write(connection.out(), query);
+        Serializers.INTEGER.write(connection.out(), limit);
+
+        if (Serializers.INTEGER.read(connection.in()) == NetworkCode.SEARCH_MESSAGES_RESPONSE) {
+          messages.addAll(Message.COMPACT_COLLECTION_SERIALIZER.read(connection.in()));
+        } else {
+          LOG.error("Response from server failed.");
+        }
+      }
+    } catch (Exception ex) {
+      System.out.println("ERROR: Exception during call on server. Check log for details.");
+      LOG.error(ex, "Exception during call on server.");
+    }
+
+    return messages;
+  }
+
   public ServerInfo getInfo() {
     ServerInfo info = null;
     try (final Connection connection = this.source.connect()) {
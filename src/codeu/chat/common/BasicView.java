@@ -52,4 +52,12 @@ public interface BasicView {
   //   Return all messages whose id is found in the given collection.
   Collection<Message> getMessages(Collection<Uuid> ids);
 
+  // GET MESSAGES RANGE
+  //
+  //   Return up to "limit" messages from a conversation, in order, starting
+  //   with the message after "cursor". Use Uuid.NULL as the cursor to start
+  //   at the first message. To get the next page, use the id of the last
+  //   message returned as the cursor.
+  Collection<Message> getMessages(Uuid conversation, Uuid cursor, int limit);
+
 }
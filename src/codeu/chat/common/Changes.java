@@ -0,0 +1,99 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import codeu.chat.util.CompactSerializers;
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+
+// CHANGES
+//
+// What changed on the server up to one of its generations: whether the users
+// or the conversation list changed, which conversations had their payload or
+// messages changed and which were removed. A client uses this to drop only
+// the parts of its cache that may be out of date. When "all" is set the
+// server could not say what changed, so everything should be dropped.
+public final class Changes {
+
+  public static final Serializer<Changes> SERIALIZER = new Serializer<Changes>() {
+
+    private final Serializer<Collection<Uuid>> ids = CompactSerializers.COLLECTION(Uuid.SERIALIZER);
+
+    @Override
+    public void write(OutputStream out, Changes value) throws IOException {
+      Serializers.LONG.write(out, value.generation);
+      Serializers.BOOLEAN.write(out, value.all);
+      Serializers.BOOLEAN.write(out, value.users);
+      Serializers.BOOLEAN.write(out, value.conversationList);
+      ids.write(out, value.conversations);
+      ids.write(out, value.removed);
+    }
+
+    @Override
+    public Changes read(InputStream in) throws IOException {
+      return new Changes(
+          Serializers.LONG.read(in),
+          Serializers.BOOLEAN.read(in),
+          Serializers.BOOLEAN.read(in),
+          Serializers.BOOLEAN.read(in),
+          ids.read(in),
+          ids.read(in));
+    }
+  };
+
+  // The generation that these changes bring a client up to.
+  public final long generation;
+
+  public final boolean all;
+  public final boolean users;
+  public final boolean conversationList;
+  public final Collection<Uuid> conversations;
+  public final Collection<Uuid> removed;
+
+  public Changes(
+      long generation,
+      boolean all,
+      boolean users,
+      boolean conversationList,
+      Collection<Uuid> conversations,
+      Collection<Uuid> removed) {
+
+    this.generation = generation;
+    this.all = all;
+    this.users = users;
+    this.conversationList = conversationList;
+    this.conversations = Collections.unmodifiableCollection(new LinkedHashSet<>(conversations));
+    this.removed = Collections.unmodifiableCollection(new LinkedHashSet<>(removed));
+  }
+
+  // Nothing changed up to "generation".
+  public static Changes none(long generation) {
+    return new Changes(
+        generation, false, false, false, Collections.<Uuid>emptySet(), Collections.<Uuid>emptySet());
+  }
+
+  // Anything may have changed up to "generation".
+  public static Changes all(long generation) {
+    return new Changes(
+        generation, true, true, true, Collections.<Uuid>emptySet(), Collections.<Uuid>emptySet());
+  }
+}
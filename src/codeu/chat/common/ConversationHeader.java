@@ -14,6 +14,9 @@
 
 package codeu.chat.common;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.CompactSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
@@ -21,6 +24,9 @@ import codeu.chat.util.Uuid;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 
 public final class ConversationHeader {
 
@@ -49,6 +55,79 @@ public final class ConversationHeader {
         }
       };
 
+  public static final BufferSerializer<ConversationHeader> BUFFER_SERIALIZER =
+      new BufferSerializer<ConversationHeader>() {
+
+        @Override
+        public void write(ByteBuffer out, ConversationHeader value) throws IOException {
+
+          Uuid.BUFFER_SERIALIZER.write(out, value.id);
+          Uuid.BUFFER_SERIALIZER.write(out, value.creator);
+          Time.BUFFER_SERIALIZER.write(out, value.creation);
+          BufferSerializers.STRING.write(out, value.title);
+          UserType.BUFFER_SERIALIZER.write(out, value.defaultAccess);
+        }
+
+        @Override
+        public ConversationHeader read(ByteBuffer in) throws IOException {
+
+          return new ConversationHeader(
+              Uuid.BUFFER_SERIALIZER.read(in),
+              Uuid.BUFFER_SERIALIZER.read(in),
+              Time.BUFFER_SERIALIZER.read(in),
+              BufferSerializers.STRING.read(in),
+              UserType.BUFFER_SERIALIZER.read(in));
+        }
+      };
+
+  // A list of headers in the compact format. Each creation time is written as
+  // the gap from the header before it. Uuids keep their fixed width as their
+  // ids are random and would not get any smaller as varints.
+  public static final Serializer<Collection<ConversationHeader>> COMPACT_COLLECTION_SERIALIZER =
+      new Serializer<Collection<ConversationHeader>>() {
+
+        @Override
+        public void write(OutputStream out, Collection<ConversationHeader> value)
+            throws IOException {
+
+          CompactSerializers.VARINT.write(out, value.size());
+
+          long last = 0;
+
+          for (final ConversationHeader header : value) {
+            Uuid.SERIALIZER.write(out, header.id);
+            Uuid.SERIALIZER.write(out, header.creator);
+            CompactSerializers.VARLONG.write(out, header.creation.inMs() - last);
+            CompactSerializers.STRING.write(out, header.title);
+            CompactSerializers.VARINT.write(out, header.defaultAccess.fId);
+
+            last = header.creation.inMs();
+          }
+        }
+
+        @Override
+        public Collection<ConversationHeader> read(InputStream in) throws IOException {
+
+          final int size = CompactSerializers.VARINT.read(in);
+          final Collection<ConversationHeader> headers = new ArrayList<>();
+
+          long last = 0;
+
+          for (int i = 0; i < size; i++) {
+            final Uuid id = Uuid.SERIALIZER.read(in);
+            final Uuid creator = Uuid.SERIALIZER.read(in);
+            final Time creation = Time.fromMs(last + CompactSerializers.VARLONG.read(in));
+            final String title = CompactSerializers.STRING.read(in);
+            final UserType defaultAccess = UserType.fromId(CompactSerializers.VARINT.read(in));
+
+            headers.add(new ConversationHeader(id, creator, creation, title, defaultAccess));
+            last = creation.inMs();
+          }
+
+          return headers;
+        }
+      };
+
   public final Uuid id;
   public final Uuid creator;
   public final Time creation;
@@ -14,11 +14,13 @@
 
 package codeu.chat.common;
 
+import codeu.chat.util.BufferSerializer;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Uuid;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public final class ConversationPayload {
 
@@ -41,6 +43,27 @@ public final class ConversationPayload {
         }
       };
 
+  public static final BufferSerializer<ConversationPayload> BUFFER_SERIALIZER =
+      new BufferSerializer<ConversationPayload>() {
+
+        @Override
+        public void write(ByteBuffer out, ConversationPayload value) throws IOException {
+
+          Uuid.BUFFER_SERIALIZER.write(out, value.id);
+          Uuid.BUFFER_SERIALIZER.write(out, value.firstMessage);
+          Uuid.BUFFER_SERIALIZER.write(out, value.lastMessage);
+        }
+
+        @Override
+        public ConversationPayload read(ByteBuffer in) throws IOException {
+
+          return new ConversationPayload(
+              Uuid.BUFFER_SERIALIZER.read(in),
+              Uuid.BUFFER_SERIALIZER.read(in),
+              Uuid.BUFFER_SERIALIZER.read(in));
+        }
+      };
+
   public final Uuid id;
 
   // These are allowed to be updated and therefore are not marked final
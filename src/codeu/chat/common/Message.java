@@ -17,7 +17,13 @@ package codeu.chat.common;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.CompactSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
@@ -53,6 +59,87 @@ public final class Message {
     }
   };
 
+  public static final BufferSerializer<Message> BUFFER_SERIALIZER =
+      new BufferSerializer<Message>() {
+
+    @Override
+    public void write(ByteBuffer out, Message value) throws IOException {
+
+      Uuid.BUFFER_SERIALIZER.write(out, value.id);
+      Uuid.BUFFER_SERIALIZER.write(out, value.next);
+      Uuid.BUFFER_SERIALIZER.write(out, value.previous);
+      Time.BUFFER_SERIALIZER.write(out, value.creation);
+      Uuid.BUFFER_SERIALIZER.write(out, value.author);
+      BufferSerializers.STRING.write(out, value.content);
+      Uuid.BUFFER_SERIALIZER.write(out, value.conversationHeader);
+
+    }
+
+    @Override
+    public Message read(ByteBuffer in) throws IOException {
+
+      return new Message(Uuid.BUFFER_SERIALIZER.read(in),
+                         Uuid.BUFFER_SERIALIZER.read(in),
+                         Uuid.BUFFER_SERIALIZER.read(in),
+                         Time.BUFFER_SERIALIZER.read(in),
+                         Uuid.BUFFER_SERIALIZER.read(in),
+                         BufferSerializers.STRING.read(in),
+                         Uuid.BUFFER_SERIALIZER.read(in));
+    }
+  };
+
+  // A list of messages in the compact format. Each creation time is written as
+  // the gap from the message before it, as messages that are fetched together
+  // are usually close in time. Uuids keep their fixed width as their ids are
+  // random and would not get any smaller as varints.
+  public static final Serializer<Collection<Message>> COMPACT_COLLECTION_SERIALIZER =
+      new Serializer<Collection<Message>>() {
+
+    @Override
+    public void write(OutputStream out, Collection<Message> value) throws IOException {
+
+      CompactSerializers.VARINT.write(out, value.size());
+
+      long last = 0;
+
+      for (final Message message : value) {
+        Uuid.SERIALIZER.write(out, message.id);
+        Uuid.SERIALIZER.write(out, message.next);
+        Uuid.SERIALIZER.write(out, message.previous);
+        CompactSerializers.VARLONG.write(out, message.creation.inMs() - last);
+        Uuid.SERIALIZER.write(out, message.author);
+        CompactSerializers.STRING.write(out, message.content);
+        Uuid.SERIALIZER.write(out, message.conversationHeader);
+
+        last = message.creation.inMs();
+      }
+    }
+
+    @Override
+    public Collection<Message> read(InputStream in) throws IOException {
+
+      final int size = CompactSerializers.VARINT.read(in);
+      final Collection<Message> messages = new ArrayList<>();
+
+      long last = 0;
+
+      for (int i = 0; i < size; i++) {
+        final Uuid id = Uuid.SERIALIZER.read(in);
+        final Uuid next = Uuid.SERIALIZER.read(in);
+        final Uuid previous = Uuid.SERIALIZER.read(in);
+        final Time creation = Time.fromMs(last + CompactSerializers.VARLONG.read(in));
+        final Uuid author = Uuid.SERIALIZER.read(in);
+        final String content = CompactSerializers.STRING.read(in);
+        final Uuid conversation = Uuid.SERIALIZER.read(in);
+
+        messages.add(new Message(id, next, previous, creation, author, content, conversation));
+        last = creation.inMs();
+      }
+
+      return messages;
+    }
+  };
+
   public final Uuid id;
   public final Uuid previous;
   public final Time creation;
@@ -0,0 +1,64 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.common;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// MESSAGE DRAFT
+//
+// A message that has not been added to the server yet: everything a client
+// gives when asking for a new message. The server fills in the rest.
+public final class MessageDraft {
+
+  public static final Serializer<MessageDraft> SERIALIZER = new Serializer<MessageDraft>() {
+
+    @Override
+    public void write(OutputStream out, MessageDraft value) throws IOException {
+
+      Uuid.SERIALIZER.write(out, value.author);
+      Uuid.SERIALIZER.write(out, value.conversation);
+      Serializers.STRING.write(out, value.body);
+
+    }
+
+    @Override
+    public MessageDraft read(InputStream in) throws IOException {
+
+      return new MessageDraft(
+          Uuid.SERIALIZER.read(in),
+          Uuid.SERIALIZER.read(in),
+          Serializers.STRING.read(in)
+      );
+
+    }
+  };
+
+  public final Uuid author;
+  public final Uuid conversation;
+  public final String body;
+
+  public MessageDraft(Uuid author, Uuid conversation, String body) {
+
+    this.author = author;
+    this.conversation = conversation;
+    this.body = body;
+
+  }
+}
@@ -60,5 +60,55 @@ public final class NetworkCode {
       REMOVE_USER_RESPONSE = 49,
       USER_LIST_REQUEST = 50,
       HAS_NEW_MESSAGE_REQUEST = 51,
-      HAS_NEW_MESSAGE_RESPONSE = 52;
+      HAS_NEW_MESSAGE_RESPONSE = 52,
+      SESSION_REQUEST = 53, // Starts a long-lived session of framed requests
+      SESSION_RESPONSE = 54,
+      // Compact versions of the requests above. Only send these when the
+      // session version is 2 or more.
+      GET_ALL_CONVERSATIONS_COMPACT_REQUEST = 55,
+      GET_ALL_CONVERSATIONS_COMPACT_RESPONSE = 56,
+      GET_MESSAGES_BY_ID_COMPACT_REQUEST = 57,
+      GET_MESSAGES_BY_ID_COMPACT_RESPONSE = 58,
+      GET_MESSAGES_RANGE_REQUEST = 59,
+      GET_MESSAGES_RANGE_RESPONSE = 60,
+      SUBSCRIBE_REQUEST = 61, // Keeps the connection open for NEW_MESSAGE_EVENTs
+      SUBSCRIBE_RESPONSE = 62,
+      NEW_MESSAGE_EVENT = 63,
+      // HAS_NEW_MESSAGE_REQUEST with a maximum wait. Answered with a
+      // HAS_NEW_MESSAGE_RESPONSE once there is a new message or the wait ends.
+      WAIT_FOR_NEW_MESSAGE_REQUEST = 64,
+      // The conversations added and removed since a time, along with the
+      // server's time to ask from next. Only send these when the session
+      // version is 3 or more.
+      GET_CONVERSATIONS_SINCE_REQUEST = 65,
+      GET_CONVERSATIONS_SINCE_RESPONSE = 66,
+      // The server's generation, a number that changes whenever its data
+      // does. Only send this when the session version is 4 or more.
+      GET_GENERATION_REQUEST = 67,
+      GET_GENERATION_RESPONSE = 68,
+      // Many NEW_MESSAGE_REQUESTs in one. Only send this when the session
+      // version is 5 or more.
+      NEW_MESSAGES_BATCH_REQUEST = 69,
+      NEW_MESSAGES_BATCH_RESPONSE = 70,
+      // Sent in place of any response when the server has too much queued
+      // to take the request. Nothing was done, so the client can send the
+      // same request again after backing off.
+      SERVER_BUSY_RESPONSE = 71,
+      // Sent in place of any response when the client (or the user it
+      // names) has used up its share of requests. As with a busy server,
+      // nothing was done and the request can be sent again later.
+      RATE_LIMITED_RESPONSE = 72,
+      // The newest messages that have every word of a query, from the
+      // conversations a user belongs to. Only send this when the session
+      // version is 6 or more.
+      SEARCH_MESSAGES_REQUEST = 73,
+      SEARCH_MESSAGES_RESPONSE = 74,
+      // Many RELAY_WRITE_REQUESTs from one conversation in one. Relays that
+      // do not know it close the connection without answering.
+      RELAY_WRITE_ALL_REQUEST = 75,
+      RELAY_WRITE_ALL_RESPONSE = 76,
+      // What changed since one of the server's generations. Only send this
+      // when the session version is 7 or more.
+      GET_CHANGES_REQUEST = 77,
+      GET_CHANGES_RESPONSE = 78;
 }
@@ -17,6 +17,7 @@ package codeu.chat.common;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import java.util.Collection;
+import java.util.List;
 
 // RELAY
 //
@@ -139,6 +140,24 @@ public interface Relay {
       Bundle.ConversationComponent conversation,
       Bundle.Component message);
 
+  // The most messages that one "writeAll" may carry.
+  int MAX_WRITE_ALL = 1000;
+
+  // WRITE ALL
+  //
+  // Write several messages from one conversation in a single request. Each
+  // message still becomes a bundle of its own, in order, exactly as if it had
+  // been written with "write", but the conversation is only sent once and
+  // the relay is only asked once. "users" holds the author of each message.
+  // At most MAX_WRITE_ALL messages may be written at once. Returns how many
+  // of the messages were written, which are always the first ones.
+  int writeAll(
+      Uuid teamId,
+      Secret teamSecret,
+      Bundle.ConversationComponent conversation,
+      List<Bundle.Component> users,
+      List<Bundle.Component> messages);
+
   // READ
   //
   // Read a series of bundles from the relay. Given a Uuid as the starting point
@@ -17,8 +17,11 @@ package codeu.chat.common;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.Objects;
 
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
@@ -46,6 +49,26 @@ public final class User {
     }
   };
 
+  public static final BufferSerializer<User> BUFFER_SERIALIZER = new BufferSerializer<User>() {
+    @Override
+    public void write(ByteBuffer out, User value) throws IOException {
+
+      Uuid.BUFFER_SERIALIZER.write(out, value.id);
+      BufferSerializers.STRING.write(out, value.name);
+      Time.BUFFER_SERIALIZER.write(out, value.creation);
+
+    }
+
+    @Override
+    public User read(ByteBuffer in) throws IOException {
+
+      return new User(Uuid.BUFFER_SERIALIZER.read(in),
+                      BufferSerializers.STRING.read(in),
+                      Time.BUFFER_SERIALIZER.read(in));
+
+    }
+  };
+
   public final Uuid id;
   public final String name;
   public final Time creation;
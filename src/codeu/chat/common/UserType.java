@@ -1,10 +1,12 @@
 package codeu.chat.common;
 
+import codeu.chat.util.BufferSerializer;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 
 public enum UserType {
   CREATOR(0),
@@ -31,8 +33,21 @@ public enum UserType {
         }
       };
 
+  public static final BufferSerializer<UserType> BUFFER_SERIALIZER =
+      new BufferSerializer<UserType>() {
+        @Override
+        public void write(ByteBuffer out, UserType value) throws IOException {
+          out.putInt(value.fId);
+        }
+
+        @Override
+        public UserType read(ByteBuffer in) throws IOException {
+          return UserType.fromId(in.getInt());
+        }
+      };
+
   // this method is only for serialization purposes
-  private static UserType fromId(int id) {
+  static UserType fromId(int id) {
     UserType ut = null;
     try {
       ut = values()[id];
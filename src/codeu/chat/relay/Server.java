@@ -25,6 +25,7 @@ import java.util.ArrayList;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
 import java.util.Queue;
 
@@ -256,6 +257,47 @@ public final class Server implements Relay {
     }
   }
 
+  @Override
+  public int writeAll(
+      Uuid teamId,
+      Secret teamSecret,
+      Relay.Bundle.ConversationComponent conversation,
+      List<Relay.Bundle.Component> users,
+      List<Relay.Bundle.Component> messages) {
+
+    if (!authenticate(teamId, teamSecret)) {
+
+      LOG.warning(
+          "Unauthorized write attempt to server team=%s conversation=%s messages=%d",
+          teamId, conversation.id(), messages.size());
+
+      return 0;
+    }
+
+    LOG.info(
+        "Writing to server team=%s conversation=%s messages=%d",
+        teamId, conversation.id(), messages.size());
+
+    int written = 0;
+
+    for (; written < messages.size(); written++) {
+
+      if (history.size() >= maxHistory) {
+        history.remove();
+      }
+
+      final boolean added = history.offer(new Bundle(
+          idGenerator.make(), Time.now(), teamId, users.get(written), conversation,
+          messages.get(written)));
+
+      if (!added) {
+        break;
+      }
+    }
+
+    return written;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
 
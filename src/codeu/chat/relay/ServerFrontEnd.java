@@ -27,7 +27,9 @@ import codeu.chat.util.connections.Connection;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public final class ServerFrontEnd {
 
@@ -198,8 +200,14 @@ public final class ServerFrontEnd {
       case NetworkCode.RELAY_WRITE_REQUEST:
         handleWriteMessage(connection);
         break;
+      case NetworkCode.RELAY_WRITE_ALL_REQUEST:
+        handleWriteAllMessage(connection);
+        break;
     }
 
+    // The connection is not closed here, so send the response now.
+    connection.out().flush();
+
     LOG.info("Handling Connection - end");
   }
 
@@ -248,4 +256,38 @@ public final class ServerFrontEnd {
 
     LOG.info("Handling Write Message - end");
   }
+
+  private void handleWriteAllMessage(Connection connection) throws IOException {
+
+    LOG.info("Handling Write All Message - start");
+
+    final Uuid teamId = Uuid.SERIALIZER.read(connection.in());
+    final Secret teamSecret = Secret.SERIALIZER.read(connection.in());
+    final Relay.Bundle.ConversationComponent conversation =
+        CONVERSATION_COMPONENT_SERIALIZER.read(connection.in());
+    final int count = Serializers.INTEGER.read(connection.in());
+
+    if (count < 0 || count > Relay.MAX_WRITE_ALL) {
+      throw new IOException(String.format("Write of %d messages is not allowed", count));
+    }
+
+    final List<Relay.Bundle.Component> users = new ArrayList<>(count);
+    final List<Relay.Bundle.Component> messages = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      users.add(COMPONENT_SERIALIZER.read(connection.in()));
+      messages.add(COMPONENT_SERIALIZER.read(connection.in()));
+    }
+
+    LOG.info(
+        "Writing team=%s conversation=%s messages=%d", teamId, conversation.id(), count);
+
+    final int written = backEnd.writeAll(teamId, teamSecret, conversation, users, messages);
+
+    LOG.info("Writing result=%d of %d", written, count);
+
+    Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_ALL_RESPONSE);
+    Serializers.INTEGER.write(connection.out(), written);
+
+    LOG.info("Handling Write All Message - end");
+  }
 }
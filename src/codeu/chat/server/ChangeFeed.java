@@ -0,0 +1,111 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.Changes;
+import codeu.chat.util.Uuid;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+// CHANGE FEED
+//
+// The server's generation, along with what each of its most recent
+// generations changed. A client that remembers the generation it last saw
+// can ask what changed since then and drop only those parts of its cache,
+// instead of everything whenever anything on the server changes.
+//
+// Only the last "capacity" generations are kept. Asking from a generation
+// older than that, or from one this feed never handed out (such as one from
+// before the server restarted), is answered with Changes.all. Generations
+// start at a given (usually random) value and go up by one, wrapping around,
+// so they are compared by their difference.
+//
+// This class is thread safe.
+final class ChangeFeed {
+
+  private final int capacity;
+  private final Deque<Changes> recent = new ArrayDeque<>();
+
+  private long generation;
+
+  // Every generation after this one is in "recent".
+  private long floor;
+
+  public ChangeFeed(long start, int capacity) {
+
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least one");
+    }
+
+    this.capacity = capacity;
+    this.generation = start;
+    this.floor = start;
+  }
+
+  public synchronized long generation() {
+    return generation;
+  }
+
+  // ADVANCE
+  //
+  // Move on to the next generation, recording what the changes made to the
+  // model since the last call to Model.takeChanges were about. Returns the
+  // new generation.
+  public synchronized long advance(Model model) {
+
+    final Changes changes = model.takeChanges(generation + 1);
+
+    generation = changes.generation;
+    recent.addLast(changes);
+
+    while (recent.size() > capacity) {
+      floor = recent.removeFirst().generation;
+    }
+
+    return generation;
+  }
+
+  // SINCE
+  //
+  // Everything that changed after generation "from", up to the current one.
+  public synchronized Changes since(long from) {
+
+    if (from == generation) {
+      return Changes.none(generation);
+    }
+
+    if (from - floor < 0 || from - generation > 0) {
+      return Changes.all(generation);
+    }
+
+    boolean users = false;
+    boolean conversationList = false;
+    final Set<Uuid> conversations = new LinkedHashSet<>();
+    final Set<Uuid> removed = new LinkedHashSet<>();
+
+    for (final Changes changes : recent) {
+      if (changes.generation - from > 0) {
+        users |= changes.users;
+        conversationList |= changes.conversationList;
+        conversations.addAll(changes.conversations);
+        removed.addAll(changes.removed);
+      }
+    }
+
+    return new Changes(generation, false, users, conversationList, conversations, removed);
+  }
+}
@@ -22,6 +22,7 @@ import codeu.chat.common.Interest;
 import codeu.chat.common.InterestStatus;
 import codeu.chat.common.InterestType;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageDraft;
 import codeu.chat.common.RandomUuidGenerator;
 import codeu.chat.common.RawController;
 import codeu.chat.common.User;
@@ -29,17 +30,28 @@ import codeu.chat.common.UserType;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
-import java.io.File;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public final class Controller implements RawController, BasicController {
 
+  // LISTENER
+  //
+  // Told about every new message once it has been added to the model. This is
+  // called while the model is locked, so a listener should hand the message
+  // off rather than doing any slow work itself.
+  public interface Listener {
+    void onNewMessage(Message message);
+  }
+
   private static final Logger.Log LOG = Logger.newLog(Controller.class);
 
   private final Model model;
   private final Uuid.Generator uuidGenerator;
+  private final List<Listener> listeners = new CopyOnWriteArrayList<>();
 
   private static boolean writeToLog;
 
@@ -48,6 +60,10 @@ public final class Controller implements RawController, BasicController {
     this.uuidGenerator = new RandomUuidGenerator(serverId, System.currentTimeMillis());
   }
 
+  public void addListener(Listener listener) {
+    listeners.add(listener);
+  }
+
   public User userById(Uuid id) {
     return model.userById().first(id);
   }
@@ -57,6 +73,18 @@ public final class Controller implements RawController, BasicController {
     return newMessage(createId(), author, conversation, body, Time.now());
   }
 
+  // NEW MESSAGES
+  //
+  // Add each draft as a new message, in order. The result has one entry per
+  // draft, which is null where that draft could not be added.
+  public List<Message> newMessages(Collection<MessageDraft> drafts) {
+    final List<Message> messages = new ArrayList<>(drafts.size());
+    for (final MessageDraft draft : drafts) {
+      messages.add(newMessage(draft.author, draft.conversation, draft.body));
+    }
+    return messages;
+  }
+
   @Override
   public User newUser(String name) {
     return newUser(createId(), name, Time.now());
@@ -123,6 +151,10 @@ public final class Controller implements RawController, BasicController {
       // Update the conversation to point to the new last message as it has changed.
 
       foundConversation.lastMessage = message.id;
+
+      for (final Listener listener : listeners) {
+        listener.onNewMessage(message);
+      }
     }
 
     return message;
@@ -244,7 +276,7 @@ public final class Controller implements RawController, BasicController {
       }
       result = new InterestStatus(id, total, title);
     }
-    interest.lastUpdate = now;
+    model.update(interest, now);
     return result;
   }
 
@@ -320,6 +352,7 @@ public final class Controller implements RawController, BasicController {
     }
 
     cp.changeAccess(target, accessType);
+    model.update(cp);
     return true;
   }
 
@@ -363,6 +396,7 @@ public final class Controller implements RawController, BasicController {
     } else {
       cp.changeAccess(target, memberBit);
     }
+    model.update(cp);
     return "User added successfully.";
   }
 
@@ -397,6 +431,7 @@ public final class Controller implements RawController, BasicController {
     }
 
     cp.removeUser(target);
+    model.update(cp);
     return "User removed successfully.";
   }
 
@@ -404,6 +439,7 @@ public final class Controller implements RawController, BasicController {
   public void leaveConversation(Uuid user, Uuid conversation) {
     ConversationPermission cp = model.permissionById().first(conversation);
     cp.removeUser(user);
+    model.update(cp);
   }
 
   @Override
@@ -412,10 +448,6 @@ public final class Controller implements RawController, BasicController {
     return cp.getUsers();
   }
 
-  public void refreshLog() {
-    model.refresh(new File(model.createFilePath()));
-  }
-
   @Override
   public boolean hasNewMessage(Uuid conversationId, Time lastUpdate) {
     if (conversationId == null || lastUpdate == null) {
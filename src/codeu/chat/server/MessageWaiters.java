@@ -0,0 +1,81 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Uuid;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+// MESSAGE WAITERS
+//
+// Requests that are parked until a conversation gets a new message. A parked
+// request is only an entry in a map; no thread waits on it. Every waiter is
+// woken exactly once: either by a new message or by being removed (which is
+// how its timeout claims it).
+final class MessageWaiters implements Controller.Listener {
+
+  // WAITER
+  //
+  // Called when a new message arrives in the conversation. This is called
+  // while the model is locked, so it should hand the work off.
+  public interface Waiter {
+    void onNewMessage();
+  }
+
+  private final Map<Uuid, Set<Waiter>> byConversation = new HashMap<>();
+
+  public synchronized void park(Uuid conversation, Waiter waiter) {
+    Set<Waiter> waiters = byConversation.get(conversation);
+    if (waiters == null) {
+      waiters = new HashSet<>();
+      byConversation.put(conversation, waiters);
+    }
+    waiters.add(waiter);
+  }
+
+  // REMOVE
+  //
+  // Stop the waiter from waiting. Returns false if it is no longer parked
+  // (because a new message already woke it).
+  public synchronized boolean remove(Uuid conversation, Waiter waiter) {
+    final Set<Waiter> waiters = byConversation.get(conversation);
+    if (waiters == null || !waiters.remove(waiter)) {
+      return false;
+    }
+    if (waiters.isEmpty()) {
+      byConversation.remove(conversation);
+    }
+    return true;
+  }
+
+  @Override
+  public void onNewMessage(Message message) {
+
+    final Set<Waiter> waiters;
+
+    synchronized (this) {
+      waiters = byConversation.remove(message.conversationHeader);
+    }
+
+    if (waiters != null) {
+      for (final Waiter waiter : waiters) {
+        waiter.onNewMessage();
+      }
+    }
+  }
+}
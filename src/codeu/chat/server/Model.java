@@ -14,6 +14,7 @@
 
 package codeu.chat.server;
 
+import codeu.chat.common.Changes;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.ConversationPermission;
@@ -22,21 +23,30 @@ import codeu.chat.common.Message;
 import codeu.chat.common.InterestType;
 import codeu.chat.common.User;
 import codeu.chat.common.UserType;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializer;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.WriteAheadLog;
+import codeu.chat.util.store.ConcurrentStore;
 import codeu.chat.util.store.Store;
 import codeu.chat.util.store.StoreAccessor;
 
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.FileReader;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
 import java.util.Comparator;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -52,26 +62,51 @@ import com.google.gson.stream.JsonWriter;
 
 public final class Model {
 
+  private static final Logger.Log LOG = Logger.newLog(Model.class);
+
+  // LOG RECORDS
+  //
+  // Every change to the model is written to the log as one record: one of
+  // these types followed by the values that describe the change, written
+  // with their serializers. Replaying the records in order rebuilds the
+  // model.
+  //
+  //   USER                : User
+  //   CONVERSATION        : ConversationHeader, ConversationPermission
+  //   HEADER              : ConversationHeader (a conversation without a
+  //                         permission, which only old snapshots have)
+  //   MESSAGE             : Message
+  //   REMOVE_CONVERSATION : Uuid (the conversation)
+  //   PERMISSION          : ConversationPermission (all of it, as it is now)
+  //   INTEREST            : Interest
+  //   REMOVE_INTEREST     : Uuid (the user), Uuid (the interest)
+  //   INTEREST_UPDATE     : Uuid (the interest), Time (its new last update)
+  private static final int USER_RECORD = 1;
+  private static final int CONVERSATION_RECORD = 2;
+  private static final int MESSAGE_RECORD = 3;
+  private static final int REMOVE_CONVERSATION_RECORD = 4;
+  private static final int PERMISSION_RECORD = 5;
+  private static final int INTEREST_RECORD = 6;
+  private static final int REMOVE_INTEREST_RECORD = 7;
+  private static final int INTEREST_UPDATE_RECORD = 8;
+  private static final int HEADER_RECORD = 9;
+
+  // The names of the log and of the JSON snapshot that servers wrote before
+  // there was a log, inside the server's persistent directory.
+  private static final String LOG_FILE = "serverLog.wal";
+  private static final String SNAPSHOT_FILE = "serverLog.txt";
+
+  // The log is compacted once it holds more than this many records and more
+  // than twice as many as it would take to write the model out again. Below
+  // the minimum replaying the whole log is cheap enough not to bother.
+  private static final long COMPACT_MIN_RECORDS = 10000;
+
   private static final Comparator<Uuid> UUID_COMPARE =
       new Comparator<Uuid>() {
 
         @Override
         public int compare(Uuid a, Uuid b) {
-
-          if (a == b) {
-            return 0;
-          }
-
-          if (a == null && b != null) {
-            return -1;
-          }
-
-          if (a != null && b == null) {
-            return 1;
-          }
-
-          final int order = Integer.compare(a.id(), b.id());
-          return order == 0 ? compare(a.root(), b.root()) : order;
+          return Uuid.compare(a, b);
         }
       };
 
@@ -79,28 +114,46 @@ public final class Model {
       new Comparator<Time>() {
         @Override
         public int compare(Time a, Time b) {
-          return a.compareTo(b);
+          return Long.compare(a.inMs(), b.inMs());
         }
       };
 
   private static final Comparator<String> STRING_COMPARE = String.CASE_INSENSITIVE_ORDER;
-  private final Store<Uuid, User> userById = new Store<>(UUID_COMPARE);
-  private final Store<Time, User> userByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, User> userByText = new Store<>(STRING_COMPARE);
+  // Users and conversation headers never change once added, so their stores
+  // can be read without the server's model lock.
+  private final ConcurrentStore<Uuid, User> userById = new ConcurrentStore<>(UUID_COMPARE);
+  private final ConcurrentStore<Time, User> userByTime = new ConcurrentStore<>(TIME_COMPARE);
+  private final ConcurrentStore<String, User> userByText =
+      new ConcurrentStore<>(STRING_COMPARE);
   private final List<User> users = new ArrayList<User>();
 
-  private final Store<Uuid, ConversationHeader> conversationById = new Store<>(UUID_COMPARE);
-  private final Store<Time, ConversationHeader> conversationByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, ConversationHeader> conversationByText = new Store<>(STRING_COMPARE);
+  private final ConcurrentStore<Uuid, ConversationHeader> conversationById =
+      new ConcurrentStore<>(UUID_COMPARE);
+  private final ConcurrentStore<Time, ConversationHeader> conversationByTime =
+      new ConcurrentStore<>(TIME_COMPARE);
+  private final ConcurrentStore<String, ConversationHeader> conversationByText =
+      new ConcurrentStore<>(STRING_COMPARE);
   private final List<ConversationHeader> conversations = new ArrayList<ConversationHeader>();
 
+  // Conversations by the time this server added them (not their creation time,
+  // as relayed conversations can arrive long after they were created) and the
+  // ids of removed conversations by the time they were removed. Together they
+  // describe everything that changed in the conversation list since a time.
+  private final Store<Time, ConversationHeader> conversationByArrival =
+      new Store<>(TIME_COMPARE);
+  private final Store<Time, Uuid> conversationRemovals = new Store<>(TIME_COMPARE);
+
+  // The arrival time of each conversation, so that it can be found in
+  // "conversationByArrival" when it is removed.
+  private final Map<Uuid, Time> arrivals = new HashMap<>();
+
   private final Store<Uuid, ConversationPayload> conversationPayloadById =
       new Store<>(UUID_COMPARE);
   private final List<ConversationPayload> payloads = new ArrayList<ConversationPayload>();
 
   private final Store<Uuid, Message> messageById = new Store<>(UUID_COMPARE);
   private final Store<Time, Message> messageByTime = new Store<>(TIME_COMPARE);
-  private final Store<String, Message> messageByText = new Store<>(STRING_COMPARE);
+  private final SearchIndex searchIndex = new SearchIndex();
   private final List<Message> messages = new ArrayList<Message>();
 
   private final Store<Uuid, Interest> interestById = new Store<>(UUID_COMPARE);
@@ -110,8 +163,28 @@ public final class Model {
   private final List<ConversationPermission> permissions = new ArrayList<ConversationPermission>();
 
   public Map<Uuid, ArrayList<Uuid>> interests = new HashMap<>();
-  private static final int LOG_SIZE = 6; // number of elements stored in the log
-  private boolean restoredLog = false;
+  private static final int LOG_SIZE = 6; // number of elements in a JSON snapshot
+
+  // Where changes are recorded. This is null until "openLog" is called, and
+  // until then changes are only kept in memory. It is replaced when the log
+  // is compacted, which "syncLog" may run alongside.
+  private volatile WriteAheadLog log;
+  private File logPath;
+
+  // The number of records that were in the log when it was opened. Together
+  // with the number appended since, this is the size of the log in records.
+  private long replayedRecords;
+
+  // How many changes have been made. Every change is passed to "log", so
+  // that is where they are counted.
+  private long changes;
+
+  // What the changes since the last call to "takeChanges" were about, so that
+  // clients can be told which parts of what they have cached are out of date.
+  private boolean usersChanged;
+  private boolean conversationListChanged;
+  private final Set<Uuid> changedConversations = new HashSet<>();
+  private final Set<Uuid> removedConversations = new HashSet<>();
   
   private final Type userType = new TypeToken<ArrayList<User>>(){}.getType();
   private final Type conversationType = new TypeToken<ArrayList<ConversationHeader>>(){}.getType();
@@ -121,10 +194,12 @@ public final class Model {
   private final Type interestType = new TypeToken<ArrayList<Interest>>(){}.getType();
   
   public void add(User user) {
+    log(USER_RECORD, User.SERIALIZER, user);
     userById.insert(user.id, user);
     userByTime.insert(user.creation, user);
     userByText.insert(user.name, user);
     users.add(user);
+    usersChanged = true;
   }
 
   public StoreAccessor<Uuid, User> userById() {
@@ -144,23 +219,35 @@ public final class Model {
   }
 
   public void add(ConversationHeader conversation, ConversationPermission permission) {
+    log(CONVERSATION_RECORD,
+        ConversationHeader.SERIALIZER, conversation,
+        ConversationPermission.SERIALIZER, permission);
     conversationById.insert(conversation.id, conversation);
     conversationByTime.insert(conversation.creation, conversation);
     conversationByText.insert(conversation.title, conversation);
+    addArrival(conversation);
     conversations.add(conversation);
     ConversationPayload payload = new ConversationPayload(conversation.id);
     conversationPayloadById.insert(conversation.id, payload);
     payloads.add(payload);
     permissionById.insert(permission.id, permission);
     permissions.add(permission);
+    conversationListChanged = true;
   }
   
   public void add(ConversationHeader conversation) {
 	conversationById.insert(conversation.id, conversation);
 	conversationByTime.insert(conversation.creation, conversation);
 	conversationByText.insert(conversation.title, conversation);
+	addArrival(conversation);
 	conversations.add(conversation);
   }
+
+  private void addArrival(ConversationHeader conversation) {
+    final Time arrival = Time.now();
+    conversationByArrival.insert(arrival, conversation);
+    arrivals.put(conversation.id, arrival);
+  }
   
   public void add(ConversationPermission permission) {
 	permissionById.insert(permission.id, permission);
@@ -184,15 +271,25 @@ public final class Model {
     return conversationByText;
   }
 
+  public StoreAccessor<Time, ConversationHeader> conversationByArrival() {
+    return conversationByArrival;
+  }
+
+  public StoreAccessor<Time, Uuid> conversationRemovals() {
+    return conversationRemovals;
+  }
+
   public StoreAccessor<Uuid, ConversationPayload> conversationPayloadById() {
     return conversationPayloadById;
   }
 
   public void add(Message message) {
+    log(MESSAGE_RECORD, Message.SERIALIZER, message);
     messageById.insert(message.id, message);
     messageByTime.insert(message.creation, message);
-    messageByText.insert(message.content, message);
+    searchIndex.add(message);
     messages.add(message);
+    changedConversations.add(message.conversationHeader);
   }
 
   public StoreAccessor<Uuid, Message> messageById() {
@@ -203,29 +300,88 @@ public final class Model {
     return messageByTime;
   }
 
-  public StoreAccessor<String, Message> messageByText() {
-    return messageByText;
+  SearchIndex searchIndex() {
+    return searchIndex;
   }
 
   public StoreAccessor<Uuid, ConversationPermission> permissionById() {
     return permissionById;
   }
   
-  public void remove(ConversationHeader conversation){
-    conversationById.remove(conversation.id);
-	conversationByTime.remove(conversation.creation);
-	conversationByText.remove(conversation.title);
-	conversationPayloadById.remove(conversation.id);
-	for(int i = 0; i < conversations.size(); i++) {
-	  ConversationHeader ch = conversations.get(i);
-	  if (ch.id.equals(conversation.id))
-		conversations.remove(i);
-	}
+  // REMOVE
+  //
+  // Remove a conversation along with its payload, permissions and messages.
+  // Other conversations that share its creation time or title are left
+  // alone. Only the id of the given header is used, so it does not need to be
+  // the instance that was added.
+  public void remove(ConversationHeader conversation) {
+
+    final ConversationHeader stored = conversationById.first(conversation.id);
+
+    if (stored == null) {
+      return;
+    }
+
+    log(REMOVE_CONVERSATION_RECORD, Uuid.SERIALIZER, stored.id);
+
+    conversationById.remove(stored.id);
+    conversationByTime.remove(stored.creation, stored);
+    conversationByText.remove(stored.title, stored);
+    conversations.remove(stored);
+
+    final Time arrival = arrivals.remove(stored.id);
+    if (arrival != null) {
+      conversationByArrival.remove(arrival, stored);
+    }
+    conversationRemovals.insert(Time.now(), stored.id);
+    conversationListChanged = true;
+    changedConversations.add(stored.id);
+    removedConversations.add(stored.id);
+
+    final ConversationPermission permission = permissionById.first(stored.id);
+    if (permission != null) {
+      permissionById.remove(stored.id);
+      permissions.remove(permission);
+    }
+
+    final ConversationPayload payload = conversationPayloadById.first(stored.id);
+    if (payload != null) {
+      conversationPayloadById.remove(stored.id);
+      payloads.remove(payload);
+      removeMessages(payload);
+    }
+  }
+
+  private void removeMessages(ConversationPayload payload) {
+
+    final Set<Uuid> removed = new HashSet<>();
+
+    for (Uuid next = payload.firstMessage; !Uuid.equals(next, Uuid.NULL); ) {
+      final Message message = messageById.first(next);
+      if (message == null || !removed.add(message.id)) {
+        break;
+      }
+      messageById.remove(message.id);
+      messageByTime.remove(message.creation, message);
+      searchIndex.remove(message);
+      next = message.next;
+    }
+
+    if (removed.isEmpty()) {
+      return;
+    }
+
+    for (final Iterator<Message> it = messages.iterator(); it.hasNext(); ) {
+      if (removed.contains(it.next().id)) {
+        it.remove();
+      }
+    }
   }
 
   public Interest addInterest(
       Uuid id, Uuid userId, Uuid interestId, InterestType interestType, Time creationTime) {
     Interest newInterest = new Interest(id, userId, interestId, interestType, creationTime);
+    log(INTEREST_RECORD, Interest.SERIALIZER, newInterest);
     if (interests.get(userId) == null) {
       interests.put(userId, new ArrayList<Uuid>());
     }
@@ -236,64 +392,346 @@ public final class Model {
   }
 
   public void removeInterest(Uuid userId, Uuid interestId) {
+    log(REMOVE_INTEREST_RECORD, Uuid.SERIALIZER, userId, Uuid.SERIALIZER, interestId);
     if (interests.get(userId) != null) {
       interests.get(userId).remove(interestId);
     }
   }
   
-  public boolean getRestoredLog() {
-	return restoredLog;
+  // Record a change made to a permission in place, such as a user being
+  // added to or removed from its conversation.
+  public void update(ConversationPermission permission) {
+    log(PERMISSION_RECORD, ConversationPermission.SERIALIZER, permission);
+    changedConversations.add(permission.id);
   }
-  
-  public void setRestoredLog(boolean restoredLog) {
-	this.restoredLog = restoredLog;
+
+  public void update(Interest interest, Time lastUpdate) {
+    log(INTEREST_UPDATE_RECORD, Uuid.SERIALIZER, interest.interestId, Time.SERIALIZER, lastUpdate);
+    interest.lastUpdate = lastUpdate;
   }
-  
-  public void refresh(File file) { 
-	// clear the current contents of the log
+
+  // OPEN LOG
+  //
+  // Replay the log in "directory" into this model, which should still be
+  // empty, and then write every change made from here on to the end of it.
+  // If there is no log yet but there is a snapshot from before the log
+  // existed, the snapshot is first turned into a log. Any failure to read
+  // either one is thrown, as carrying on would lose data.
+  public void openLog(File directory, WriteAheadLog.Durability durability) throws IOException {
+
+    final File path = new File(directory, LOG_FILE);
+    final File snapshot = new File(directory, SNAPSHOT_FILE);
+
+    if (!path.exists() && snapshot.exists()) {
+      migrate(snapshot, path);
+    }
+
+    replayedRecords = 0;
+    log = WriteAheadLog.open(path, new WriteAheadLog.Reader() {
+      @Override
+      public void onRecord(byte[] record) throws IOException {
+        replay(record);
+        replayedRecords++;
+      }
+    });
+    logPath = path;
+
+    // Nothing was cached from before the log was replayed.
+    takeChanges(0);
+
+    LOG.info("Opened log %s (%s): %d users, %d conversations, %d messages",
+        path, durability, users.size(), conversations.size(), messages.size());
+
+    if (logNeedsCompaction()) {
+      compactLog();
+    }
+  }
+
+  // COMPACT LOG
+  //
+  // Replace the log with one that only holds the records needed to rebuild
+  // the model as it is now, dropping removed conversations and their
+  // messages, interests that were removed and every permission change but
+  // the last. The new log is written and synced under a temporary name and
+  // then moved over the old one, so a crash at any point leaves one complete
+  // log or the other. Changes must not be made while this runs.
+  public void compactLog() throws IOException {
+
+    if (log == null) {
+      return;
+    }
+
+    final File temporary = new File(logPath.getPath() + ".tmp");
+    Files.deleteIfExists(temporary.toPath());
+
+    final WriteAheadLog old = log;
+    final long before = replayedRecords + old.appended();
+
+    final WriteAheadLog compacted = WriteAheadLog.open(temporary, new WriteAheadLog.Reader() {
+      @Override
+      public void onRecord(byte[] record) { }
+    });
+
+    // Writing the model out again does not change it.
+    final long counted = changes;
     try {
-      FileWriter fwOb = new FileWriter(file.getAbsolutePath(), false);
-      PrintWriter pwOb = new PrintWriter(fwOb, false);
-      pwOb.flush();
-      pwOb.close();
-      fwOb.close();
-	} catch (IOException e1) {
-      e1.printStackTrace();
-      System.out.println("Failed to clear contents of log!");
-	} 
-	
-	// create gson object for serializing
-	GsonBuilder gb = new GsonBuilder();
-	Type mapType = new TypeToken<Map<Uuid, UserType>>(){}.getType();
-	gb.registerTypeAdapter(mapType, new PermissionAdapter());
-	Gson gson = gb.create();
-	  
-	try {
-	  FileWriter fw = new FileWriter(file.getAbsolutePath(), true);
-	  
-	  // take a snapshot of the users, conversations, messages, etc.  
-	  fw.write(gson.toJson(users, userType) + "\n");
-	  
-	  fw.write(gson.toJson(conversations, conversationType) + "\n");
-	  
-	  fw.write(gson.toJson(permissions, permissionType) + "\n");
-	  
-	  fw.write(gson.toJson(messages, messageType) + "\n");
-	  
-	  fw.write(gson.toJson(interestList, interestType) + "\n");	
-	  
-	  fw.write(gson.toJson(payloads, payloadType));
-	  
-	  fw.flush();
-	  fw.close();
-	  
-	  } catch (IOException e2) {
-		e2.printStackTrace();
-		System.out.println("Failed to save data to log!");
-	  }
+      log = compacted;
+      logEverything();
+      compacted.sync();
+      Files.move(temporary.toPath(), logPath.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException | RuntimeException ex) {
+      log = old;
+      compacted.close();
+      Files.deleteIfExists(temporary.toPath());
+      throw ex;
+    } finally {
+      changes = counted;
+    }
+
+    // The new log keeps its open file across the move, so it carries on as
+    // the log without being read again.
+    replayedRecords = 0;
+    old.close();
+
+    LOG.info("Compacted log %s from %d to %d records", logPath, before, compacted.appended());
   }
-  
-  public boolean restore(File file) {
+
+  // Whether the log has grown enough since it was last compacted for
+  // "compactLog" to be worth running.
+  public boolean logNeedsCompaction() {
+
+    if (log == null) {
+      return false;
+    }
+
+    final long records = replayedRecords + log.appended();
+    final long live = users.size() + conversations.size() + messages.size() + interestList.size();
+
+    return records > COMPACT_MIN_RECORDS && records > 2 * live;
+  }
+
+  // Write the contents of a snapshot to a new log. The log is written to a
+  // temporary file that only takes the log's name once it is complete, so a
+  // crash part way through leaves the snapshot to be read again next time.
+  private static void migrate(File snapshot, File path) throws IOException {
+
+    final Model restored = new Model();
+
+    if (!restored.restore(snapshot)) {
+      throw new IOException("Failed to restore snapshot " + snapshot);
+    }
+
+    final File temporary = new File(path.getPath() + ".tmp");
+    Files.deleteIfExists(temporary.toPath());
+
+    restored.log = WriteAheadLog.open(temporary, new WriteAheadLog.Reader() {
+      @Override
+      public void onRecord(byte[] record) { }
+    });
+    restored.logEverything();
+    restored.log.close();
+
+    Files.move(temporary.toPath(), path.toPath(), StandardCopyOption.ATOMIC_MOVE);
+
+    LOG.info("Moved snapshot %s to log %s", snapshot, path);
+  }
+
+  // Make every change logged so far durable.
+  public void syncLog() throws IOException {
+    if (log != null) {
+      log.sync();
+    }
+  }
+
+  // The number of changes made to the model so far. Comparing it before and
+  // after a command tells whether the command changed anything.
+  public long changes() {
+    return changes;
+  }
+
+  // TAKE CHANGES
+  //
+  // What the changes made since the last call were about, as the changes
+  // that bring a client up to "generation".
+  public Changes takeChanges(long generation) {
+
+    final Changes taken = new Changes(
+        generation,
+        false,
+        usersChanged,
+        conversationListChanged,
+        changedConversations,
+        removedConversations);
+
+    usersChanged = false;
+    conversationListChanged = false;
+    changedConversations.clear();
+    removedConversations.clear();
+
+    return taken;
+  }
+
+  private <T> void log(int type, Serializer<T> serializer, T value) {
+    changes++;
+    if (log != null) {
+      try {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(type);
+        serializer.write(record, value);
+        log.append(record.toByteArray());
+      } catch (IOException ex) {
+        throw new IllegalStateException("Failed to log change", ex);
+      }
+    }
+  }
+
+  private <A, B> void log(int type, Serializer<A> first, A a, Serializer<B> second, B b) {
+    changes++;
+    if (log != null) {
+      try {
+        final ByteArrayOutputStream record = new ByteArrayOutputStream();
+        record.write(type);
+        first.write(record, a);
+        second.write(record, b);
+        log.append(record.toByteArray());
+      } catch (IOException ex) {
+        throw new IllegalStateException("Failed to log change", ex);
+      }
+    }
+  }
+
+  // Write records that rebuild the whole model as it is now.
+  private void logEverything() {
+
+    for (final User user : users) {
+      log(USER_RECORD, User.SERIALIZER, user);
+    }
+
+    for (final ConversationHeader conversation : conversations) {
+      final ConversationPermission permission = permissionById.first(conversation.id);
+      if (permission == null) {
+        log(HEADER_RECORD, ConversationHeader.SERIALIZER, conversation);
+      } else {
+        log(CONVERSATION_RECORD,
+            ConversationHeader.SERIALIZER, conversation,
+            ConversationPermission.SERIALIZER, permission);
+      }
+    }
+
+    for (final Message message : messages) {
+      log(MESSAGE_RECORD, Message.SERIALIZER, message);
+    }
+
+    // Removed interests stay in the list but not in "interests", and one that
+    // was removed and added again is in the list twice. Only the first of
+    // each that is still held is written, as that is the one "interestById"
+    // finds and updates.
+    final Map<Uuid, Set<Uuid>> written = new HashMap<>();
+    for (final Interest interest : interestList) {
+      final List<Uuid> current = interests.get(interest.userId);
+      if (current == null || !current.contains(interest.interestId)) {
+        continue;
+      }
+      if (!written.containsKey(interest.userId)) {
+        written.put(interest.userId, new HashSet<Uuid>());
+      }
+      if (written.get(interest.userId).add(interest.interestId)) {
+        log(INTEREST_RECORD, Interest.SERIALIZER, interest);
+      }
+    }
+  }
+
+  // Apply one record from the log. The log is not open yet, so nothing that
+  // this calls is logged again.
+  private void replay(byte[] record) throws IOException {
+
+    final InputStream in = new ByteArrayInputStream(record);
+    final int type = in.read();
+
+    if (type == USER_RECORD) {
+
+      add(User.SERIALIZER.read(in));
+
+    } else if (type == CONVERSATION_RECORD) {
+
+      final ConversationHeader conversation = ConversationHeader.SERIALIZER.read(in);
+      add(conversation, ConversationPermission.SERIALIZER.read(in));
+
+    } else if (type == HEADER_RECORD) {
+
+      final ConversationHeader conversation = ConversationHeader.SERIALIZER.read(in);
+      add(conversation);
+      add(new ConversationPayload(conversation.id));
+
+    } else if (type == MESSAGE_RECORD) {
+
+      replay(Message.SERIALIZER.read(in));
+
+    } else if (type == REMOVE_CONVERSATION_RECORD) {
+
+      final ConversationHeader conversation = conversationById.first(Uuid.SERIALIZER.read(in));
+      if (conversation != null) {
+        remove(conversation);
+      }
+
+    } else if (type == PERMISSION_RECORD) {
+
+      final ConversationPermission permission = ConversationPermission.SERIALIZER.read(in);
+      final ConversationPermission current = permissionById.first(permission.id);
+      if (current != null) {
+        current.getUsers().clear();
+        current.getUsers().putAll(permission.getUsers());
+      }
+
+    } else if (type == INTEREST_RECORD) {
+
+      final Interest interest = Interest.SERIALIZER.read(in);
+      addInterest(interest.id, interest.userId, interest.interestId,
+                  interest.type, interest.lastUpdate);
+
+    } else if (type == REMOVE_INTEREST_RECORD) {
+
+      final Uuid user = Uuid.SERIALIZER.read(in);
+      removeInterest(user, Uuid.SERIALIZER.read(in));
+
+    } else if (type == INTEREST_UPDATE_RECORD) {
+
+      final Interest interest = interestById.first(Uuid.SERIALIZER.read(in));
+      final Time lastUpdate = Time.SERIALIZER.read(in);
+      if (interest != null) {
+        interest.lastUpdate = lastUpdate;
+      }
+
+    } else {
+      throw new IOException("Unknown log record type " + type);
+    }
+  }
+
+  // Add a message from the log to the end of its conversation, linking it
+  // the same way the controller links a new message.
+  private void replay(Message message) {
+
+    final ConversationPayload payload = conversationPayloadById.first(message.conversationHeader);
+
+    if (payload == null) {
+      return;
+    }
+
+    add(message);
+
+    if (Uuid.equals(payload.lastMessage, Uuid.NULL)) {
+      payload.firstMessage = message.id;
+    } else {
+      final Message last = messageById.first(payload.lastMessage);
+      if (last != null) {
+        last.next = message.id;
+      }
+    }
+    payload.lastMessage = message.id;
+  }
+
+  // Restore a JSON snapshot written by servers from before the log.
+  private boolean restore(File file) {
 	// check to see if there is a log to restore from 
 	if(!file.exists())
 	  return true;	
@@ -377,10 +815,6 @@ public final class Model {
 	return true;
   }
   
-  public String createFilePath() {
-	String workingDirectory = System.getProperty("user.dir");
-	return workingDirectory + File.separator + "serverLog.txt";
-  }
   
   public class PermissionAdapter extends TypeAdapter<Map<Uuid,UserType>> {
 	
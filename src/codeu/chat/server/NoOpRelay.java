@@ -22,6 +22,7 @@ import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 // NO OP RELAY
 //
@@ -62,6 +63,17 @@ public final class NoOpRelay implements Relay {
     return true;
   }
 
+  @Override
+  public int writeAll(
+      Uuid teamId,
+      Secret teamSecret,
+      Relay.Bundle.ConversationComponent conversation,
+      List<Relay.Bundle.Component> users,
+      List<Relay.Bundle.Component> messages) {
+
+    return messages.size();
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
 
@@ -19,6 +19,8 @@ import codeu.chat.common.Relay;
 import codeu.chat.common.Relay.Bundle.ConversationComponent;
 import codeu.chat.common.Secret;
 import codeu.chat.common.UserType;
+import codeu.chat.util.BufferSerializer;
+import codeu.chat.util.BufferSerializers;
 import codeu.chat.util.Logger;
 import codeu.chat.util.Serializer;
 import codeu.chat.util.Serializers;
@@ -26,11 +28,14 @@ import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.connections.Connection;
 import codeu.chat.util.connections.ConnectionSource;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.List;
 
 public final class RemoteRelay implements Relay {
 
@@ -98,32 +103,7 @@ public final class RemoteRelay implements Relay {
               final Uuid creator = Uuid.SERIALIZER.read(in);
               final UserType defaultAccess = UserType.SERIALIZER.read(in);
 
-              return new Relay.Bundle.ConversationComponent() {
-                @Override
-                public Uuid id() {
-                  return id;
-                }
-
-                @Override
-                public String text() {
-                  return text;
-                }
-
-                @Override
-                public Time time() {
-                  return time;
-                }
-
-                @Override
-                public Uuid creator() {
-                  return creator;
-                }
-
-                @Override
-                public UserType defaultAccess() {
-                  return defaultAccess;
-                }
-              };
+              return conversationComponent(id, text, time, creator, defaultAccess);
             }
 
             @Override
@@ -151,52 +131,180 @@ public final class RemoteRelay implements Relay {
               CONVERSATIONCOMPONENT_SERIALIZER.read(in);
           final Relay.Bundle.Component message = COMPONENT_SERIALIZER.read(in);
 
-          return new Relay.Bundle() {
-            @Override
-            public Uuid id() {
-              return id;
-            }
+          return bundle(id, time, team, user, conversation, message);
+        }
 
-            @Override
-            public Time time() {
-              return time;
-            }
+        @Override
+        public void write(OutputStream out, Relay.Bundle value) throws IOException {
+          Uuid.SERIALIZER.write(out, value.id());
+          Time.SERIALIZER.write(out, value.time());
+          Uuid.SERIALIZER.write(out, value.team());
+          COMPONENT_SERIALIZER.write(out, value.user());
+          CONVERSATIONCOMPONENT_SERIALIZER.write(out, value.conversation());
+          COMPONENT_SERIALIZER.write(out, value.message());
+        }
+      };
 
-            @Override
-            public Uuid team() {
-              return team;
-            }
+  private static final BufferSerializer<Relay.Bundle.Component> COMPONENT_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Bundle.Component>() {
 
-            @Override
-            public Relay.Bundle.Component user() {
-              return user;
-            }
+        @Override
+        public Relay.Bundle.Component read(ByteBuffer in) throws IOException {
+
+          final Uuid id = Uuid.BUFFER_SERIALIZER.read(in);
+          final String text = BufferSerializers.STRING.read(in);
+          final Time time = Time.BUFFER_SERIALIZER.read(in);
+
+          return new Component(id, time, text);
+        }
+
+        @Override
+        public void write(ByteBuffer out, Relay.Bundle.Component value) throws IOException {
+          Uuid.BUFFER_SERIALIZER.write(out, value.id());
+          BufferSerializers.STRING.write(out, value.text());
+          Time.BUFFER_SERIALIZER.write(out, value.time());
+        }
+      };
+
+  private static final BufferSerializer<Relay.Bundle.ConversationComponent>
+      CONVERSATIONCOMPONENT_BUFFER_SERIALIZER =
+          new BufferSerializer<Relay.Bundle.ConversationComponent>() {
 
             @Override
-            public Relay.Bundle.ConversationComponent conversation() {
-              return conversation;
+            public Relay.Bundle.ConversationComponent read(ByteBuffer in) throws IOException {
+
+              final Uuid id = Uuid.BUFFER_SERIALIZER.read(in);
+              final String text = BufferSerializers.STRING.read(in);
+              final Time time = Time.BUFFER_SERIALIZER.read(in);
+              final Uuid creator = Uuid.BUFFER_SERIALIZER.read(in);
+              final UserType defaultAccess = UserType.BUFFER_SERIALIZER.read(in);
+
+              return conversationComponent(id, text, time, creator, defaultAccess);
             }
 
             @Override
-            public Relay.Bundle.Component message() {
-              return message;
+            public void write(ByteBuffer out, Relay.Bundle.ConversationComponent value)
+                throws IOException {
+              Uuid.BUFFER_SERIALIZER.write(out, value.id());
+              BufferSerializers.STRING.write(out, value.text());
+              Time.BUFFER_SERIALIZER.write(out, value.time());
+              Uuid.BUFFER_SERIALIZER.write(out, value.creator());
+              UserType.BUFFER_SERIALIZER.write(out, value.defaultAccess());
             }
           };
+
+  // The ByteBuffer version of BUNDLE_SERIALIZER. Bundles written with either
+  // one can be read with the other.
+  public static final BufferSerializer<Relay.Bundle> BUNDLE_BUFFER_SERIALIZER =
+      new BufferSerializer<Relay.Bundle>() {
+
+        @Override
+        public Relay.Bundle read(ByteBuffer in) throws IOException {
+
+          final Uuid id = Uuid.BUFFER_SERIALIZER.read(in);
+          final Time time = Time.BUFFER_SERIALIZER.read(in);
+          final Uuid team = Uuid.BUFFER_SERIALIZER.read(in);
+          final Relay.Bundle.Component user = COMPONENT_BUFFER_SERIALIZER.read(in);
+          final Relay.Bundle.ConversationComponent conversation =
+              CONVERSATIONCOMPONENT_BUFFER_SERIALIZER.read(in);
+          final Relay.Bundle.Component message = COMPONENT_BUFFER_SERIALIZER.read(in);
+
+          return bundle(id, time, team, user, conversation, message);
         }
 
         @Override
-        public void write(OutputStream out, Relay.Bundle value) throws IOException {
-          Uuid.SERIALIZER.write(out, value.id());
-          Time.SERIALIZER.write(out, value.time());
-          Uuid.SERIALIZER.write(out, value.team());
-          COMPONENT_SERIALIZER.write(out, value.user());
-          CONVERSATIONCOMPONENT_SERIALIZER.write(out, value.conversation());
-          COMPONENT_SERIALIZER.write(out, value.message());
+        public void write(ByteBuffer out, Relay.Bundle value) throws IOException {
+          Uuid.BUFFER_SERIALIZER.write(out, value.id());
+          Time.BUFFER_SERIALIZER.write(out, value.time());
+          Uuid.BUFFER_SERIALIZER.write(out, value.team());
+          COMPONENT_BUFFER_SERIALIZER.write(out, value.user());
+          CONVERSATIONCOMPONENT_BUFFER_SERIALIZER.write(out, value.conversation());
+          COMPONENT_BUFFER_SERIALIZER.write(out, value.message());
         }
       };
 
+  private static Relay.Bundle.ConversationComponent conversationComponent(
+      final Uuid id,
+      final String text,
+      final Time time,
+      final Uuid creator,
+      final UserType defaultAccess) {
+
+    return new Relay.Bundle.ConversationComponent() {
+      @Override
+      public Uuid id() {
+        return id;
+      }
+
+      @Override
+      public String text() {
+        return text;
+      }
+
+      @Override
+      public Time time() {
+        return time;
+      }
+
+      @Override
+      public Uuid creator() {
+        return creator;
+      }
+
+      @Override
+      public UserType defaultAccess() {
+        return defaultAccess;
+      }
+    };
+  }
+
+  private static Relay.Bundle bundle(
+      final Uuid id,
+      final Time time,
+      final Uuid team,
+      final Relay.Bundle.Component user,
+      final Relay.Bundle.ConversationComponent conversation,
+      final Relay.Bundle.Component message) {
+
+    return new Relay.Bundle() {
+      @Override
+      public Uuid id() {
+        return id;
+      }
+
+      @Override
+      public Time time() {
+        return time;
+      }
+
+      @Override
+      public Uuid team() {
+        return team;
+      }
+
+      @Override
+      public Relay.Bundle.Component user() {
+        return user;
+      }
+
+      @Override
+      public Relay.Bundle.ConversationComponent conversation() {
+        return conversation;
+      }
+
+      @Override
+      public Relay.Bundle.Component message() {
+        return message;
+      }
+    };
+  }
+
   private final ConnectionSource source;
 
+  // Set once the relay has shown that it does not know
+  // RELAY_WRITE_ALL_REQUEST, after which messages are written one at a time.
+  private volatile boolean writeAllUnsupported = false;
+
   public RemoteRelay(ConnectionSource source) {
     this.source = source;
   }
@@ -238,6 +346,65 @@ public final class RemoteRelay implements Relay {
     return result;
   }
 
+  @Override
+  public int writeAll(
+      Uuid teamId,
+      Secret teamSecret,
+      Relay.Bundle.ConversationComponent conversation,
+      List<Relay.Bundle.Component> users,
+      List<Relay.Bundle.Component> messages) {
+
+    if (writeAllUnsupported) {
+      return writeEach(teamId, teamSecret, conversation, users, messages);
+    }
+
+    int result = 0;
+
+    try (final Connection connection = source.connect()) {
+
+      Serializers.INTEGER.write(connection.out(), NetworkCode.RELAY_WRITE_ALL_REQUEST);
+      Uuid.SERIALIZER.write(connection.out(), teamId);
+      Secret.SERIALIZER.write(connection.out(), teamSecret);
+      CONVERSATIONCOMPONENT_SERIALIZER.write(connection.out(), conversation);
+      Serializers.INTEGER.write(connection.out(), messages.size());
+      for (int i = 0; i < messages.size(); i++) {
+        COMPONENT_SERIALIZER.write(connection.out(), users.get(i));
+        COMPONENT_SERIALIZER.write(connection.out(), messages.get(i));
+      }
+
+      if (Serializers.INTEGER.read(connection.in()) == NetworkCode.RELAY_WRITE_ALL_RESPONSE) {
+        result = Serializers.INTEGER.read(connection.in());
+      } else {
+        LOG.error("Server did not handle RELAY_WRITE_ALL_REQUEST");
+      }
+    } catch (EOFException ex) {
+      // Relays from before RELAY_WRITE_ALL_REQUEST close the connection
+      // without answering it, and write nothing.
+      LOG.warning("Relay does not support RELAY_WRITE_ALL_REQUEST, writing one at a time");
+      writeAllUnsupported = true;
+      return writeEach(teamId, teamSecret, conversation, users, messages);
+    } catch (Exception ex) {
+      LOG.error(ex, "Unexpected error when sending RELAY_WRITE_ALL_REQUEST");
+    }
+
+    return result;
+  }
+
+  private int writeEach(
+      Uuid teamId,
+      Secret teamSecret,
+      Relay.Bundle.ConversationComponent conversation,
+      List<Relay.Bundle.Component> users,
+      List<Relay.Bundle.Component> messages) {
+
+    int written = 0;
+    while (written < messages.size()
+        && write(teamId, teamSecret, users.get(written), conversation, messages.get(written))) {
+      written++;
+    }
+    return written;
+  }
+
   @Override
   public Collection<Relay.Bundle> read(Uuid teamId, Secret teamSecret, Uuid root, int range) {
 
@@ -0,0 +1,358 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Uuid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// SEARCH INDEX
+//
+// An inverted index from the words in message bodies to the messages that
+// use them. Words are runs of letters and digits, compared without case.
+//
+// Every message is given the next document number, and each word keeps the
+// numbers of its messages in a growing int array. Posting lists are
+// therefore always sorted from oldest to newest and cost four bytes an
+// entry. A search walks its words' lists together from the newest end, so it
+// can stop as soon as it has found enough matches instead of reading
+// everything that matches.
+//
+// Each conversation also has posting lists of its own, holding the same
+// numbers, so a search within one conversation only reads that
+// conversation's messages. This doubles the space taken by postings, which
+// is still four bytes an entry.
+//
+// Removing a message only marks its number as dead, and searches skip dead
+// numbers when they find them. Once more than half of the numbers handed out
+// are dead, the index is compacted: the live messages are numbered again from
+// zero in the same order, and every posting list is rewritten without the
+// dead ones. Each removal pays for a constant share of that, and the index
+// never holds more than about twice what its live messages need. This class
+// is not thread safe; the model lock guards it.
+final class SearchIndex {
+
+  // FILTER
+  //
+  // Decides whether a message that has every word may be returned, for
+  // example whether the user searching can read its conversation.
+  public interface Filter {
+    boolean accept(Message message);
+  }
+
+  public static final Filter EVERYTHING = new Filter() {
+    @Override
+    public boolean accept(Message message) {
+      return true;
+    }
+  };
+
+  // Words longer than this are not indexed. They are almost never searched
+  // for and are usually links or noise.
+  private static final int MAX_TERM_LENGTH = 64;
+
+  // Below this many dead numbers, compacting is not worth its cost.
+  private static final int MIN_DEAD_TO_COMPACT = 1024;
+
+  private static final class Postings {
+
+    public int[] documents = new int[2];
+    public int size = 0;
+
+    public void add(int document) {
+      if (size == documents.length) {
+        documents = Arrays.copyOf(documents, size * 2);
+      }
+      documents[size++] = document;
+    }
+
+    // Replace every document number with its new number, dropping those that
+    // map to -1. Returns the new size.
+    public int renumber(int[] renumbered) {
+      int kept = 0;
+      for (int i = 0; i < size; i++) {
+        final int document = renumbered[documents[i]];
+        if (document >= 0) {
+          documents[kept++] = document;
+        }
+      }
+      size = kept;
+      if (documents.length > 2 * Math.max(size, 1)) {
+        documents = Arrays.copyOf(documents, Math.max(size, 2));
+      }
+      return size;
+    }
+  }
+
+  private static final Comparator<Postings> SHORTEST_FIRST = new Comparator<Postings>() {
+    @Override
+    public int compare(Postings a, Postings b) {
+      return Integer.compare(a.size, b.size);
+    }
+  };
+
+  // The posting lists of one conversation and how many of its messages are
+  // live, so that it can be dropped once they have all been removed.
+  private static final class Conversation {
+    public final Map<String, Postings> postings = new HashMap<>();
+    public int live = 0;
+  }
+
+  private final Map<String, Postings> postings = new HashMap<>();
+  private final Map<Uuid, Conversation> conversations = new HashMap<>();
+
+  // Messages by document number. Removed messages leave a null behind until
+  // the next compaction.
+  private final ArrayList<Message> documents = new ArrayList<>();
+  private final Map<Uuid, Integer> numbers = new HashMap<>();
+  private int dead = 0;
+
+  public void add(Message message) {
+
+    final int document = documents.size();
+
+    documents.add(message);
+    numbers.put(message.id, document);
+
+    Conversation conversation = conversations.get(message.conversationHeader);
+    if (conversation == null) {
+      conversation = new Conversation();
+      conversations.put(message.conversationHeader, conversation);
+    }
+    conversation.live++;
+
+    for (final String term : terms(message.content)) {
+      add(postings, term, document);
+      add(conversation.postings, term, document);
+    }
+  }
+
+  private static void add(Map<String, Postings> postings, String term, int document) {
+    Postings list = postings.get(term);
+    if (list == null) {
+      list = new Postings();
+      postings.put(term, list);
+    }
+    list.add(document);
+  }
+
+  public void remove(Message message) {
+
+    final Integer document = numbers.remove(message.id);
+
+    if (document == null) {
+      return;
+    }
+
+    documents.set(document, null);
+    dead++;
+
+    final Conversation conversation = conversations.get(message.conversationHeader);
+    if (conversation != null && --conversation.live == 0) {
+      // Nothing in it can be found any more, so there is no need to wait
+      // for a compaction to drop its lists.
+      conversations.remove(message.conversationHeader);
+    }
+
+    if (dead >= MIN_DEAD_TO_COMPACT && dead * 2 > documents.size()) {
+      compact();
+    }
+  }
+
+  // The number of document numbers in use, live or dead.
+  int documents() {
+    return documents.size();
+  }
+
+  // COMPACT
+  //
+  // Number the live messages again from zero, keeping their order, and drop
+  // the dead numbers from every posting list. Lists left empty are removed.
+  private void compact() {
+
+    final int[] renumbered = new int[documents.size()];
+    int live = 0;
+
+    for (int document = 0; document < documents.size(); document++) {
+      final Message message = documents.get(document);
+      if (message == null) {
+        renumbered[document] = -1;
+      } else {
+        renumbered[document] = live;
+        documents.set(live++, message);
+      }
+    }
+
+    documents.subList(live, documents.size()).clear();
+    documents.trimToSize();
+
+    renumber(postings, renumbered);
+    for (final Conversation conversation : conversations.values()) {
+      renumber(conversation.postings, renumbered);
+    }
+
+    for (final Map.Entry<Uuid, Integer> entry : numbers.entrySet()) {
+      entry.setValue(renumbered[entry.getValue()]);
+    }
+
+    dead = 0;
+  }
+
+  private static void renumber(Map<String, Postings> postings, int[] renumbered) {
+    for (final Iterator<Postings> it = postings.values().iterator(); it.hasNext(); ) {
+      if (it.next().renumber(renumbered) == 0) {
+        it.remove();
+      }
+    }
+  }
+
+  // SEARCH
+  //
+  // Find the newest messages, at most "limit" of them, that have every word
+  // in the query and that the filter accepts. Results are newest first.
+  public List<Message> search(String query, int limit, Filter filter) {
+    return search(postings, query, limit, filter);
+  }
+
+  // The same as search(query, limit, filter) but only in one conversation.
+  // Only that conversation's posting lists are read.
+  public List<Message> search(Uuid conversation, String query, int limit, Filter filter) {
+    final Conversation index = conversations.get(conversation);
+    return index == null
+        ? Collections.<Message>emptyList()
+        : search(index.postings, query, limit, filter);
+  }
+
+  private List<Message> search(
+      Map<String, Postings> postings, String query, int limit, Filter filter) {
+
+    final Set<String> terms = terms(query);
+
+    if (terms.isEmpty() || limit <= 0) {
+      return Collections.emptyList();
+    }
+
+    final Postings[] lists = new Postings[terms.size()];
+
+    int at = 0;
+    for (final String term : terms) {
+      final Postings list = postings.get(term);
+      if (list == null) {
+        return Collections.emptyList();
+      }
+      lists[at++] = list;
+    }
+
+    // The shortest list decides which documents are tried. The others are
+    // only checked for those documents.
+    Arrays.sort(lists, SHORTEST_FIRST);
+
+    final int[] cursors = new int[lists.length];
+    for (int i = 0; i < lists.length; i++) {
+      cursors[i] = lists[i].size - 1;
+    }
+
+    final List<Message> found = new ArrayList<>();
+
+    for (int next = cursors[0]; next >= 0 && found.size() < limit; next--) {
+
+      final int document = lists[0].documents[next];
+      boolean matches = true;
+
+      for (int i = 1; i < lists.length && matches; i++) {
+        cursors[i] = seek(lists[i], cursors[i], document);
+        if (cursors[i] < 0) {
+          // Every document left in this list is newer than the ones still
+          // to be tried, so nothing else can match.
+          return found;
+        }
+        matches = lists[i].documents[cursors[i]] == document;
+      }
+
+      final Message message = matches ? documents.get(document) : null;
+
+      if (message != null && filter.accept(message)) {
+        found.add(message);
+      }
+    }
+
+    return found;
+  }
+
+  // The distinct words in some text, in the order they first appear.
+  static Set<String> terms(String text) {
+
+    final Set<String> terms = new LinkedHashSet<>();
+    final StringBuilder term = new StringBuilder();
+
+    for (int i = 0; i <= text.length(); i++) {
+      final char c = i < text.length() ? text.charAt(i) : ' ';
+      if (Character.isLetterOrDigit(c)) {
+        term.append(Character.toLowerCase(c));
+      } else if (term.length() > 0) {
+        if (term.length() <= MAX_TERM_LENGTH) {
+          terms.add(term.toString());
+        }
+        term.setLength(0);
+      }
+    }
+
+    return terms;
+  }
+
+  // Move a cursor down a posting list to the newest entry that is not newer
+  // than the document, or to -1 if there is none. The cursor only ever moves
+  // down, and it gallops so that a long skip costs O(log distance).
+  private static int seek(Postings list, int cursor, int document) {
+
+    final int[] documents = list.documents;
+
+    if (cursor < 0 || documents[cursor] <= document) {
+      return cursor;
+    }
+
+    // Find a range with documents[high] > document and either low < 0 or
+    // documents[low] <= document.
+    int high = cursor;
+    int step = 1;
+    int low = high - step;
+    while (low >= 0 && documents[low] > document) {
+      high = low;
+      step <<= 1;
+      low = high - step;
+    }
+    low = Math.max(low, -1);
+
+    while (high - low > 1) {
+      final int middle = (low + high) >>> 1;
+      if (documents[middle] <= document) {
+        low = middle;
+      } else {
+        high = middle;
+      }
+    }
+
+    return low;
+  }
+}
@@ -0,0 +1,455 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.Logger;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Frame;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+// SELECTOR FRONT END
+//
+// A non-blocking front end for the server. A single thread accepts every
+// connection and reads from all of them using a selector. Session frames are
+// only handed to the server once the whole frame has arrived, so a slow or
+// stalled client never ties up the thread running commands, and an idle
+// session costs nothing more than its buffers. The busiest commands are
+// decoded straight out of the read buffer with the buffer serializers rather
+// than having their payload copied out first.
+//
+// Connections that do not start with a session request are one-shot clients.
+// Their requests cannot be framed without knowing every command's format, so
+// they are switched back to blocking mode and handed to the server as a
+// normal connection.
+//
+// A client that sends requests faster than it reads the responses stops
+// being read once too many response bytes are waiting for it, and is read
+// again once it has caught up. A client that has not sent or taken anything
+// for "idleMs", and is not waiting on a request, is closed.
+public final class SelectorFrontEnd implements Closeable {
+
+  private static final Logger.Log LOG = Logger.newLog(SelectorFrontEnd.class);
+
+  private static final int HEADER_BYTES = 8;  // two integers
+  private static final int INITIAL_BUFFER_BYTES = 4096;
+
+  // The most response bytes that may wait for a client before the client
+  // stops being read.
+  private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+  public static final long DEFAULT_IDLE_MS = 5 * 60 * 1000;
+
+  // The state of a single client connection. Only the selector thread touches
+  // the buffers.
+  private final class Client {
+
+    public final SocketChannel channel;
+    public final Queue<ByteBuffer> writes = new ArrayDeque<>();
+
+    public ByteBuffer in = ByteBuffer.allocate(INITIAL_BUFFER_BYTES);
+
+    // Set once the client has asked for a session.
+    public Server.Session session = null;
+
+    // The bytes still to be written in "writes".
+    public int queuedBytes = 0;
+
+    // Frames handed to the server that have not been answered yet.
+    public int pending = 0;
+
+    // When the client last sent or took any bytes (from System.nanoTime()).
+    public long lastActive = System.nanoTime();
+
+    public Client(SocketChannel channel) {
+      this.channel = channel;
+    }
+  }
+
+  private static final class Write {
+
+    public final Client client;
+    public final ByteBuffer bytes;
+
+    public Write(Client client, ByteBuffer bytes) {
+      this.client = client;
+      this.bytes = bytes;
+    }
+  }
+
+  private final Server server;
+  private final Selector selector;
+  private final ServerSocketChannel acceptor;
+
+  // Responses are produced on the server's threads. They are queued here and
+  // the selector is woken up to write them.
+  private final Queue<Write> responses = new ConcurrentLinkedQueue<>();
+
+  private final long idleNanos;
+  private final long sweepMs;
+  private long nextSweep;
+
+  public SelectorFrontEnd(Server server, int port) throws IOException {
+    this(server, port, DEFAULT_IDLE_MS);
+  }
+
+  public SelectorFrontEnd(Server server, int port, long idleMs) throws IOException {
+    this.server = server;
+    this.idleNanos = TimeUnit.MILLISECONDS.toNanos(idleMs);
+    this.sweepMs = Math.max(1, idleMs / 4);
+    this.nextSweep = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(sweepMs);
+    this.selector = Selector.open();
+    this.acceptor = ServerSocketChannel.open();
+    this.acceptor.bind(new InetSocketAddress(port));
+    this.acceptor.configureBlocking(false);
+    this.acceptor.register(selector, SelectionKey.OP_ACCEPT);
+  }
+
+  // RUN
+  //
+  // Accept and serve connections until the front end is closed. This call
+  // blocks.
+  public void run() throws IOException {
+    try {
+      serve();
+    } catch (ClosedSelectorException ex) {
+      // The front end was closed while the selector was in use.
+    }
+  }
+
+  private void serve() throws IOException {
+
+    final List<Client> handOffs = new ArrayList<>();
+
+    while (selector.isOpen()) {
+
+      selector.select(sweepMs);
+
+      for (Write write = responses.poll(); write != null; write = responses.poll()) {
+        write.client.pending--;
+        queueWrite(write.client, write.bytes);
+      }
+
+      final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+      while (keys.hasNext()) {
+
+        final SelectionKey key = keys.next();
+        keys.remove();
+
+        try {
+          if (!key.isValid()) {
+            continue;
+          }
+          if (key.isAcceptable()) {
+            onAccept();
+          }
+          if (key.isValid() && key.isReadable()) {
+            onRead(key, handOffs);
+          }
+          if (key.isValid() && key.isWritable()) {
+            onWrite(key);
+          }
+        } catch (IOException ex) {
+          LOG.error(ex, "Exception while serving connection.");
+          close(key);
+        }
+      }
+
+      if (!handOffs.isEmpty()) {
+        // Cancelled keys are only removed from the selector on the next
+        // select. A channel cannot go back to blocking mode until then.
+        selector.selectNow();
+        for (final Client client : handOffs) {
+          handOff(client);
+        }
+        handOffs.clear();
+      }
+
+      final long now = System.nanoTime();
+      if (now - nextSweep >= 0) {
+        closeIdle(now);
+        nextSweep = now + TimeUnit.MILLISECONDS.toNanos(sweepMs);
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    acceptor.close();
+    selector.close();
+  }
+
+  private void onAccept() throws IOException {
+    for (SocketChannel channel = acceptor.accept(); channel != null; channel = acceptor.accept()) {
+      channel.configureBlocking(false);
+      channel.register(selector, SelectionKey.OP_READ, new Client(channel));
+    }
+  }
+
+  private void onRead(SelectionKey key, List<Client> handOffs) throws IOException {
+
+    final Client client = (Client) key.attachment();
+
+    final int read = client.channel.read(client.in);
+    if (read < 0) {
+      close(key);
+      return;
+    }
+    if (read > 0) {
+      client.lastActive = System.nanoTime();
+    }
+
+    client.in.flip();
+
+    while (true) {
+
+      if (client.session == null) {
+
+        if (client.in.remaining() < 4) {
+          break;
+        }
+
+        if (client.in.getInt(client.in.position()) != NetworkCode.SESSION_REQUEST) {
+          key.cancel();
+          handOffs.add(client);
+          return;
+        }
+
+        if (client.in.remaining() < HEADER_BYTES) {
+          break;
+        }
+
+        BufferSerializers.INTEGER.read(client.in);  // the session request
+        final int version = BufferSerializers.INTEGER.read(client.in);
+
+        final int agreed = Server.sessionVersion(version);
+
+        final ByteBuffer reply = ByteBuffer.allocate(HEADER_BYTES);
+        BufferSerializers.INTEGER.write(reply, NetworkCode.SESSION_RESPONSE);
+        BufferSerializers.INTEGER.write(reply, agreed);
+        reply.flip();
+        queueWrite(client, reply);
+
+        client.session = server.newSession(client.channel.socket().getInetAddress(), agreed);
+        continue;
+      }
+
+      if (client.in.remaining() < HEADER_BYTES) {
+        break;
+      }
+
+      final int start = client.in.position();
+      final int id = BufferSerializers.INTEGER.read(client.in);
+      final int length = BufferSerializers.INTEGER.read(client.in);
+
+      if (length < 0 || length > Frame.MAX_PAYLOAD_BYTES) {
+        throw new IOException(String.format("Frame length %d is not allowed", length));
+      }
+
+      if (client.in.remaining() < length) {
+        // Wait for the rest of the frame, header and all.
+        client.in.position(start);
+        if (client.in.capacity() < HEADER_BYTES + length) {
+          client.in = grow(client.in, HEADER_BYTES + length);
+          client.in.flip();
+        }
+        break;
+      }
+
+      // The server decodes the payload straight out of the read buffer, or
+      // copies it, before handleFrame returns.
+      final int end = client.in.position() + length;
+      final int limit = client.in.limit();
+      client.in.limit(end);
+
+      client.pending++;
+      server.handleFrame(client.session, id, client.in, new Server.Responder() {
+        @Override
+        public void respond(Frame response) {
+          final ByteBuffer bytes = ByteBuffer.allocate(HEADER_BYTES + response.payload.length);
+          try {
+            BufferSerializers.INTEGER.write(bytes, response.id);
+            BufferSerializers.BYTES.write(bytes, response.payload);
+          } catch (IOException ex) {
+            // Writing to a buffer that was made big enough does not fail.
+            throw new IllegalStateException(ex);
+          }
+          bytes.flip();
+          responses.add(new Write(client, bytes));
+          selector.wakeup();
+        }
+      });
+
+      client.in.limit(limit);
+      client.in.position(end);
+    }
+
+    client.in.compact();
+  }
+
+  private void onWrite(SelectionKey key) throws IOException {
+
+    final Client client = (Client) key.attachment();
+
+    while (!client.writes.isEmpty()) {
+      final ByteBuffer next = client.writes.peek();
+      final int written = client.channel.write(next);
+      client.queuedBytes -= written;
+      if (written > 0) {
+        client.lastActive = System.nanoTime();
+      }
+      if (next.hasRemaining()) {
+        // The socket is full. Wait until it can take more.
+        break;
+      }
+      client.writes.poll();
+    }
+
+    updateInterest(key, client);
+  }
+
+  private void queueWrite(Client client, ByteBuffer bytes) {
+
+    final SelectionKey key = client.channel.keyFor(selector);
+
+    if (key == null || !key.isValid()) {
+      // The client has gone away. There is no one to send the response to.
+      return;
+    }
+
+    client.writes.add(bytes);
+    client.queuedBytes += bytes.remaining();
+    updateInterest(key, client);
+  }
+
+  // Write while there is something to write, and read while the client is
+  // not too far behind on taking its responses.
+  private static void updateInterest(SelectionKey key, Client client) {
+    key.interestOps(
+        (client.queuedBytes < MAX_QUEUED_BYTES ? SelectionKey.OP_READ : 0)
+        | (client.writes.isEmpty() ? 0 : SelectionKey.OP_WRITE));
+  }
+
+  // CLOSE IDLE
+  //
+  // Close every client that has not sent or taken anything for "idleNanos"
+  // and is not waiting for the server to answer it. A client whose responses
+  // are stuck because it stopped reading counts as idle too.
+  private void closeIdle(long now) {
+    for (final SelectionKey key : selector.keys()) {
+      final Object attachment = key.attachment();
+      if (!key.isValid() || !(attachment instanceof Client)) {
+        continue;
+      }
+      final Client client = (Client) attachment;
+      if (client.pending == 0 && now - client.lastActive > idleNanos) {
+        LOG.info("Closing idle connection.");
+        close(key);
+      }
+    }
+  }
+
+  // HAND OFF
+  //
+  // Give a one-shot connection to the server. Any bytes that were already
+  // read are replayed before the rest of the socket's input.
+  private void handOff(Client client) {
+
+    try {
+
+      client.channel.configureBlocking(true);
+
+      final SocketChannel channel = client.channel;
+      final byte[] read = new byte[client.in.remaining()];
+      client.in.get(read);
+
+      // Use the socket's streams rather than Channels.newInputStream/
+      // newOutputStream. Those share the channel's blocking lock, so a write
+      // would wait behind a read that is waiting for the client (which is
+      // exactly what a subscription does).
+      final InputStream in = new SequenceInputStream(
+          new ByteArrayInputStream(read), channel.socket().getInputStream());
+      final OutputStream out = channel.socket().getOutputStream();
+
+      server.handleConnection(new Connection() {
+
+        @Override
+        public InputStream in() {
+          return in;
+        }
+
+        @Override
+        public OutputStream out() {
+          return out;
+        }
+
+        @Override
+        public InetAddress remoteAddress() {
+          return channel.socket().getInetAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+          channel.close();
+        }
+      });
+
+    } catch (IOException ex) {
+      LOG.error(ex, "Failed to hand off connection.");
+      try {
+        client.channel.close();
+      } catch (IOException closeEx) {
+        LOG.error(closeEx, "Exception while closing connection.");
+      }
+    }
+  }
+
+  private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+    final ByteBuffer bigger = ByteBuffer.allocate(capacity);
+    bigger.put(buffer);
+    return bigger;
+  }
+
+  private static void close(SelectionKey key) {
+    key.cancel();
+    try {
+      key.channel().close();
+    } catch (IOException ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
+}
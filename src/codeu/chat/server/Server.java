@@ -14,30 +14,63 @@
 
 package codeu.chat.server;
 
+import codeu.chat.common.Changes;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
 import codeu.chat.common.InterestStatus;
 import codeu.chat.common.InterestType;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageDraft;
 import codeu.chat.common.NetworkCode;
 import codeu.chat.common.Relay;
 import codeu.chat.common.Secret;
 import codeu.chat.common.ServerInfo;
 import codeu.chat.common.User;
 import codeu.chat.common.UserType;
+import codeu.chat.util.BufferSerializers;
+import codeu.chat.util.CompactSerializers;
 import codeu.chat.util.Logger;
+import codeu.chat.util.RateLimiter;
+import codeu.chat.util.SerialExecutor;
 import codeu.chat.util.Serializers;
 import codeu.chat.util.Time;
 import codeu.chat.util.Timeline;
 import codeu.chat.util.Uuid;
+import codeu.chat.util.WriteAheadLog;
 import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.Frame;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Queue;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
 
 public final class Server {
 
@@ -45,16 +78,202 @@ public final class Server {
     void onMessage(InputStream in, OutputStream out) throws IOException;
   }
 
+  // PREPARED COMMAND
+  //
+  // A write command that reads its request before the model is locked, so
+  // that a request which will be turned away (for example, because its user
+  // is over their rate limit) does not wait behind the writes queued for the
+  // lock. "prepare" answers such a request itself and returns null; otherwise
+  // it returns what to run while holding the write lock.
+  private abstract static class PreparedCommand implements Command {
+
+    abstract Command prepare(InputStream in, OutputStream out) throws IOException;
+
+    @Override
+    public final void onMessage(InputStream in, OutputStream out) throws IOException {
+      final Command locked = prepare(in, out);
+      if (locked != null) {
+        locked.onMessage(in, out);
+      }
+    }
+  }
+
+  // BUFFER DECODER
+  //
+  // Reads a command's request straight out of the buffer a front end read
+  // its frame into, on the thread that read the frame, and returns the
+  // command with its request already bound. The returned command does not
+  // read from the stream it is given. Only the busiest commands have one;
+  // the others have their payload copied out and read with the stream
+  // serializers.
+  private interface BufferDecoder {
+    Command decode(ByteBuffer in) throws IOException;
+  }
+
+  // RESPONDER
+  //
+  // Receives the response to a session frame once the frame's command has
+  // run. Front ends use this to write the response back to the client on
+  // whatever thread owns the connection.
+  public interface Responder {
+    void respond(Frame response);
+  }
+
+  // A way to send the response to a request at some later time, after the
+  // code that read the request has returned.
+  private interface Reply {
+    void send(byte[] response);
+  }
+
   private static final Logger.Log LOG = Logger.newLog(Server.class);
 
   private static final int RELAY_REFRESH_MS = 5000; // 5 seconds
-  private static final int LOG_REFRESH_MS = 10000; // 10 seconds
+  private static final int LOG_SYNC_MS = 1000; // 1 second
+  private static final int SUBSCRIBER_CHECK_MS = 1000; // 1 second
+
+  // The number of threads that write pushes to subscribers.
+  private static final int PUSH_THREADS = 8;
+
+  // The newest version of the session protocol that this server understands.
+  //
+  //   1 : framed requests and responses.
+  //   2 : adds the compact (varint) versions of the bulk read commands.
+  //   3 : adds GET_CONVERSATIONS_SINCE. Clients only send GET_MESSAGES_RANGE
+  //       from this version on, as some version 2 servers came before it.
+  //   4 : adds GET_GENERATION.
+  //   5 : adds NEW_MESSAGES_BATCH.
+  //   6 : adds SEARCH_MESSAGES.
+  //   7 : adds GET_CHANGES, and every response frame ends with the server's
+  //       generation.
+  private static final int SESSION_VERSION = 7;
+
+  // Commands that only read from the model. These may run at the same time as
+  // each other. Every other command changes the model and runs alone.
+  private static final Set<Integer> READ_COMMANDS = new HashSet<>(Arrays.asList(
+      NetworkCode.SERVER_INFO_REQUEST,
+      NetworkCode.GET_USERS_REQUEST,
+      NetworkCode.GET_ALL_CONVERSATIONS_REQUEST,
+      NetworkCode.GET_CONVERSATIONS_BY_ID_REQUEST,
+      NetworkCode.GET_USER_BY_ID_REQUEST,
+      NetworkCode.GET_CONVERSATION_HEADER_BY_ID_REQUEST,
+      NetworkCode.GET_MESSAGES_BY_ID_REQUEST,
+      NetworkCode.GET_ALL_CONVERSATIONS_COMPACT_REQUEST,
+      NetworkCode.GET_MESSAGES_BY_ID_COMPACT_REQUEST,
+      NetworkCode.GET_MESSAGES_RANGE_REQUEST,
+      NetworkCode.GET_CONVERSATIONS_SINCE_REQUEST,
+      NetworkCode.GET_GENERATION_REQUEST,
+      NetworkCode.GET_CHANGES_REQUEST,
+      NetworkCode.SEARCH_MESSAGES_REQUEST,
+      NetworkCode.USER_LIST_REQUEST,
+      NetworkCode.HAS_NEW_MESSAGE_REQUEST));
+
+  // Read commands that need no lock at all. They only read users and
+  // conversation headers, which never change once added and are kept in
+  // concurrent stores, or the change feed, which has a lock of its own, so
+  // they can run while a write is being applied.
+  private static final Set<Integer> UNLOCKED_COMMANDS = new HashSet<>(Arrays.asList(
+      NetworkCode.SERVER_INFO_REQUEST,
+      NetworkCode.GET_GENERATION_REQUEST,
+      NetworkCode.GET_CHANGES_REQUEST,
+      NetworkCode.GET_USERS_REQUEST,
+      NetworkCode.GET_USER_BY_ID_REQUEST,
+      NetworkCode.GET_ALL_CONVERSATIONS_REQUEST,
+      NetworkCode.GET_ALL_CONVERSATIONS_COMPACT_REQUEST,
+      NetworkCode.GET_CONVERSATION_HEADER_BY_ID_REQUEST));
+
+  // The most messages that will be sent in one page of GET_MESSAGES_RANGE.
+  private static final int MAX_PAGE_SIZE = 1000;
+
+  // The most messages that one SEARCH_MESSAGES will return.
+  private static final int MAX_SEARCH_RESULTS = 100;
+
+  // How many of the most recent generations GET_CHANGES can answer from.
+  // A client that last looked longer ago than that drops its whole cache.
+  private static final int CHANGE_FEED_SIZE = 4096;
+
+  // How many requests may wait for each worker before new ones are turned
+  // away with SERVER_BUSY_RESPONSE.
+  private static final int QUEUED_PER_WORKER = 128;
+
+  private static final byte[] BUSY_RESPONSE =
+      ByteBuffer.allocate(4).putInt(NetworkCode.SERVER_BUSY_RESPONSE).array();
+
+  // The most messages that can be added by one NEW_MESSAGES_BATCH.
+  private static final int MAX_BATCH_SIZE = 1000;
+
+  // Rate limits. Each address has one budget for reads and another for
+  // writes, counted in requests. Each user also has a budget for the messages
+  // and conversations they add, counted in items so that a batch costs as
+  // much as the messages in it. A user's burst is enough for one full batch.
+  private static final double READS_PER_SECOND = 1000;
+  private static final int READ_BURST = 2000;
+  private static final double WRITES_PER_SECOND = 200;
+  private static final int WRITE_BURST = 500;
+  private static final double USER_WRITES_PER_SECOND = 100;
+  private static final int USER_WRITE_BURST = MAX_BATCH_SIZE;
+
+  private static final byte[] RATE_LIMITED_RESPONSE =
+      ByteBuffer.allocate(4).putInt(NetworkCode.RATE_LIMITED_RESPONSE).array();
+
+  private static final byte[] NO_MESSAGE_RESPONSE =
+      ByteBuffer.allocate(4).putInt(NetworkCode.NO_MESSAGE).array();
+
+  // What a command decoded from a buffer is given to read from.
+  private static final InputStream EMPTY = new ByteArrayInputStream(new byte[0]);
+
+  // The longest that a WAIT_FOR_NEW_MESSAGE request will be parked.
+  private static final long MAX_WAIT_MS = 60000;
 
   private static ServerInfo info = new ServerInfo();
 
+  // The timeline runs the server's own background work (relay polling and log
+  // updates). Client commands run on the workers.
   private final Timeline timeline = new Timeline();
+  private final ExecutorService workers;
+
+  // Pushes to subscribers are written on these threads rather than on the
+  // workers. Each subscriber uses at most one of them at a time, and one
+  // stuck on a subscriber that stopped reading is freed within about
+  // "SUBSCRIBER_CHECK_MS" of the write timeout, so there is a fixed number of
+  // them however many subscribers there are.
+  private final ExecutorService pushers =
+      Executors.newFixedThreadPool(PUSH_THREADS, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable task) {
+          final Thread thread = new Thread(task, "subscriber-push");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+
+  // Requests that have been accepted but have not finished running. Once this
+  // reaches "maxQueued", new requests are answered with SERVER_BUSY_RESPONSE
+  // straight away so that an overloaded server sheds load instead of queueing
+  // without limit.
+  private final AtomicInteger queued = new AtomicInteger();
+  private final int maxQueued;
+
+  private final RateLimiter<InetAddress> addressReads =
+      new RateLimiter<>(READS_PER_SECOND, READ_BURST);
+  private final RateLimiter<InetAddress> addressWrites =
+      new RateLimiter<>(WRITES_PER_SECOND, WRITE_BURST);
+  private final RateLimiter<Uuid> userWrites =
+      new RateLimiter<>(USER_WRITES_PER_SECOND, USER_WRITE_BURST);
+
+  // Guards the model. Read commands share the lock and write commands hold it
+  // alone. The lock is fair so writes are applied in the order they arrive.
+  private final ReadWriteLock modelLock = new ReentrantReadWriteLock(true);
+
+  // The generation moves on every time a write changes the model, so a client
+  // that remembers it can tell cheaply whether anything it has cached may be
+  // out of date, and the feed says what each recent generation changed. It
+  // starts at a random value so that a restarted server does not repeat the
+  // generations of the last run. Only advanced while holding the write lock.
+  private final ChangeFeed changeFeed =
+      new ChangeFeed(new Random().nextLong(), CHANGE_FEED_SIZE);
 
   private final Map<Integer, Command> commands = new HashMap<>();
+  private final Map<Integer, BufferDecoder> decoders = new HashMap<>();
 
   private final Uuid id;
   private final Secret secret;
@@ -62,19 +281,59 @@ public final class Server {
   private final Model model = new Model();
   private final View view = new View(model);
   private final Controller controller;
+  private final Subscriptions subscriptions = new Subscriptions();
+  private final MessageWaiters waiters = new MessageWaiters();
 
   private final Relay relay;
   private Uuid lastSeen = Uuid.NULL;
 
-  public Server(final Uuid id, final Secret secret, final Relay relay) {
+  // Messages waiting to be sent to the relay, in the order they were added,
+  // and whether a send for them is already on the timeline.
+  private final Queue<Uuid> relayQueue = new ConcurrentLinkedQueue<>();
+  private final AtomicBoolean relaySendQueued = new AtomicBoolean();
+
+  // When the log records of a write must reach the disk. With SYNC, a write
+  // command does not answer until they have.
+  private final WriteAheadLog.Durability durability;
+
+  // The log is kept in the working directory unless another directory is
+  // given.
+  public Server(final Uuid id, final Secret secret, final Relay relay) throws IOException {
+    this(id, secret, relay, Runtime.getRuntime().availableProcessors());
+  }
+
+  public Server(final Uuid id, final Secret secret, final Relay relay, int workerCount)
+      throws IOException {
+    this(id, secret, relay, workerCount,
+         new File(System.getProperty("user.dir")), WriteAheadLog.Durability.PERIODIC);
+  }
+
+  // Replays the log in "persistentPath" before returning. If the log cannot
+  // be read, the server cannot be trusted to keep anything, so the failure is
+  // thrown rather than starting without it.
+  public Server(final Uuid id,
+                final Secret secret,
+                final Relay relay,
+                int workerCount,
+                File persistentPath,
+                WriteAheadLog.Durability durability) throws IOException {
 
     this.id = id;
+    this.workers = Executors.newFixedThreadPool(workerCount);
+    this.maxQueued = workerCount * QUEUED_PER_WORKER;
     this.secret = secret;
     this.controller = new Controller(id, model);
+    this.controller.addListener(subscriptions);
+    this.controller.addListener(waiters);
     this.relay = relay;
+    this.durability = durability;
 
     codeu.chat.server.Controller.setWriteToLog(false);
 
+    // The log is replayed before any command can run so that no change is
+    // made to the model before the log is open to record it.
+    model.openLog(persistentPath, durability);
+
     info = new ServerInfo();
 
     this.commands.put(
@@ -89,20 +348,102 @@ public final class Server {
     // New Message - A client wants to add a new message to the back end.
     this.commands.put(
         NetworkCode.NEW_MESSAGE_REQUEST,
-        new Command() {
+        new PreparedCommand() {
           @Override
-          public void onMessage(InputStream in, OutputStream out) throws IOException {
+          Command prepare(InputStream in, OutputStream out) throws IOException {
 
             final Uuid author = Uuid.SERIALIZER.read(in);
             final Uuid conversation = Uuid.SERIALIZER.read(in);
             final String content = Serializers.STRING.read(in);
 
-            final Message message = controller.newMessage(author, conversation, content);
+            return prepareNewMessage(author, conversation, content, out);
+          }
+        });
+
+    this.decoders.put(
+        NetworkCode.NEW_MESSAGE_REQUEST,
+        new BufferDecoder() {
+          @Override
+          public Command decode(ByteBuffer in) throws IOException {
+
+            final Uuid author = Uuid.BUFFER_SERIALIZER.read(in);
+            final Uuid conversation = Uuid.BUFFER_SERIALIZER.read(in);
+            final String content = BufferSerializers.STRING.read(in);
+
+            return new PreparedCommand() {
+              @Override
+              Command prepare(InputStream in, OutputStream out) throws IOException {
+                return prepareNewMessage(author, conversation, content, out);
+              }
+            };
+          }
+        });
+
+    // New Messages Batch - A client wants to add many messages at once. They
+    // are added in order while holding the write lock once, and sent on to
+    // the relay together. The response has one entry per draft, which is null
+    // where that draft could not be added.
+    //
+    // Authors are only charged for the drafts that were added, so a batch
+    // that is rate limited, or that has drafts which could not be added, can
+    // be retried without paying for the same messages twice.
+    this.commands.put(
+        NetworkCode.NEW_MESSAGES_BATCH_REQUEST,
+        new PreparedCommand() {
+          @Override
+          Command prepare(InputStream in, OutputStream out) throws IOException {
+
+            final List<MessageDraft> drafts =
+                new ArrayList<>(Serializers.COLLECTION(MessageDraft.SERIALIZER).read(in));
 
-            Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
-            Serializers.NULLABLE(Message.SERIALIZER).write(out, message);
+            if (drafts.size() > MAX_BATCH_SIZE) {
+              LOG.warning("Rejected batch of %d messages", drafts.size());
+              Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
+              return null;
+            }
+
+            final Map<Uuid, Integer> counts = new HashMap<>();
+            for (final MessageDraft draft : drafts) {
+              final Integer count = counts.get(draft.author);
+              counts.put(draft.author, count == null ? 1 : count + 1);
+            }
+
+            final Map<Uuid, Integer> charged = new HashMap<>();
+            for (final Map.Entry<Uuid, Integer> count : counts.entrySet()) {
+              if (!userWrites.tryAcquire(count.getKey(), count.getValue())) {
+                LOG.info("Rate limited user %s", count.getKey());
+                for (final Map.Entry<Uuid, Integer> refund : charged.entrySet()) {
+                  userWrites.release(refund.getKey(), refund.getValue());
+                }
+                out.write(RATE_LIMITED_RESPONSE);
+                return null;
+              }
+              charged.put(count.getKey(), count.getValue());
+            }
 
-            timeline.scheduleNow(createSendToRelayEvent(author, conversation, message.id));
+            return new Command() {
+              @Override
+              public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+                final List<Message> messages = controller.newMessages(drafts);
+
+                Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGES_BATCH_RESPONSE);
+                Serializers.COLLECTION(Serializers.NULLABLE(Message.SERIALIZER))
+                    .write(out, messages);
+
+                final List<Uuid> added = new ArrayList<>();
+                for (int i = 0; i < messages.size(); i++) {
+                  if (messages.get(i) != null) {
+                    added.add(messages.get(i).id);
+                  } else {
+                    userWrites.release(drafts.get(i).author, 1);
+                  }
+                }
+                if (!added.isEmpty()) {
+                  sendToRelay(added);
+                }
+              }
+            };
           }
         });
 
@@ -125,18 +466,34 @@ public final class Server {
     // end.
     this.commands.put(
         NetworkCode.NEW_CONVERSATION_REQUEST,
-        new Command() {
+        new PreparedCommand() {
           @Override
-          public void onMessage(InputStream in, OutputStream out) throws IOException {
+          Command prepare(InputStream in, OutputStream out) throws IOException {
 
             final String title = Serializers.STRING.read(in);
             final Uuid owner = Uuid.SERIALIZER.read(in);
             final UserType defaultAccess = UserType.SERIALIZER.read(in);
-            final ConversationHeader conversation =
-                controller.newConversation(title, owner, defaultAccess);
 
-            Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
-            Serializers.NULLABLE(ConversationHeader.SERIALIZER).write(out, conversation);
+            return prepareNewConversation(title, owner, defaultAccess, out);
+          }
+        });
+
+    this.decoders.put(
+        NetworkCode.NEW_CONVERSATION_REQUEST,
+        new BufferDecoder() {
+          @Override
+          public Command decode(ByteBuffer in) throws IOException {
+
+            final String title = BufferSerializers.STRING.read(in);
+            final Uuid owner = Uuid.BUFFER_SERIALIZER.read(in);
+            final UserType defaultAccess = UserType.BUFFER_SERIALIZER.read(in);
+
+            return new PreparedCommand() {
+              @Override
+              Command prepare(InputStream in, OutputStream out) throws IOException {
+                return prepareNewConversation(title, owner, defaultAccess, out);
+              }
+            };
           }
         });
 
@@ -244,11 +601,164 @@ public final class Server {
           @Override
           public void onMessage(InputStream in, OutputStream out) throws IOException {
 
-            final Collection<Uuid> ids = Serializers.COLLECTION(Uuid.SERIALIZER).read(in);
+            getMessagesById(Serializers.COLLECTION(Uuid.SERIALIZER).read(in), out);
+          }
+        });
+
+    this.decoders.put(
+        NetworkCode.GET_MESSAGES_BY_ID_REQUEST,
+        new BufferDecoder() {
+          @Override
+          public Command decode(ByteBuffer in) throws IOException {
+
+            final Collection<Uuid> ids =
+                BufferSerializers.COLLECTION(Uuid.BUFFER_SERIALIZER).read(in);
+
+            return new Command() {
+              @Override
+              public void onMessage(InputStream in, OutputStream out) throws IOException {
+                getMessagesById(ids, out);
+              }
+            };
+          }
+        });
+
+    // Get All Conversations (Compact) - The same as Get Conversations but the
+    // response uses the compact wire format.
+    this.commands.put(
+        NetworkCode.GET_ALL_CONVERSATIONS_COMPACT_REQUEST,
+        new Command() {
+          @Override
+          public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+            final Collection<ConversationHeader> conversations = view.getConversations();
+
+            Serializers.INTEGER.write(out, NetworkCode.GET_ALL_CONVERSATIONS_COMPACT_RESPONSE);
+            ConversationHeader.COMPACT_COLLECTION_SERIALIZER.write(out, conversations);
+          }
+        });
+
+    // Get Messages By Id (Compact) - The same as Get Messages By Id but both
+    // the request and the response use the compact wire format.
+    this.commands.put(
+        NetworkCode.GET_MESSAGES_BY_ID_COMPACT_REQUEST,
+        new Command() {
+          @Override
+          public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+            final Collection<Uuid> ids =
+                CompactSerializers.COLLECTION(Uuid.SERIALIZER).read(in);
             final Collection<Message> messages = view.getMessages(ids);
 
-            Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
-            Serializers.COLLECTION(Message.SERIALIZER).write(out, messages);
+            Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_COMPACT_RESPONSE);
+            Message.COMPACT_COLLECTION_SERIALIZER.write(out, messages);
+          }
+        });
+
+    // Get Messages Range - A client wants a page of messages from a
+    // conversation, in order. The response uses the compact format as pages
+    // are large and their messages are close in time.
+    this.commands.put(
+        NetworkCode.GET_MESSAGES_RANGE_REQUEST,
+        new Command() {
+          @Override
+          public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+            final Uuid conversation = Uuid.SERIALIZER.read(in);
+            final Uuid cursor = Uuid.SERIALIZER.read(in);
+            final int limit = Serializers.INTEGER.read(in);
+
+            getMessagesRange(conversation, cursor, limit, out);
+          }
+        });
+
+    this.decoders.put(
+        NetworkCode.GET_MESSAGES_RANGE_REQUEST,
+        new BufferDecoder() {
+          @Override
+          public Command decode(ByteBuffer in) throws IOException {
+
+            final Uuid conversation = Uuid.BUFFER_SERIALIZER.read(in);
+            final Uuid cursor = Uuid.BUFFER_SERIALIZER.read(in);
+            final int limit = BufferSerializers.INTEGER.read(in);
+
+            return new Command() {
+              @Override
+              public void onMessage(InputStream in, OutputStream out) throws IOException {
+                getMessagesRange(conversation, cursor, limit, out);
+              }
+            };
+          }
+        });
+
+    // Get Conversations Since - A client that keeps its own copy of the
+    // conversation list wants what has changed since it last asked. The time
+    // it should ask from next is taken before anything is read, so nothing
+    // added while the response is written can be missed. Changes made in that
+    // same millisecond are sent again, which the client ignores.
+    this.commands.put(
+        NetworkCode.GET_CONVERSATIONS_SINCE_REQUEST,
+        new Command() {
+          @Override
+          public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+            final Time since = Time.SERIALIZER.read(in);
+            final Time now = Time.now();
+
+            final Collection<ConversationHeader> added = view.getConversationsSince(since);
+            final Collection<Uuid> removed = view.getRemovedConversationsSince(since);
+
+            Serializers.INTEGER.write(out, NetworkCode.GET_CONVERSATIONS_SINCE_RESPONSE);
+            Time.SERIALIZER.write(out, now);
+            ConversationHeader.COMPACT_COLLECTION_SERIALIZER.write(out, added);
+            CompactSerializers.COLLECTION(Uuid.SERIALIZER).write(out, removed);
+          }
+        });
+
+    // Get Generation - A client wants to know whether anything has changed
+    // since it last asked.
+    this.commands.put(
+        NetworkCode.GET_GENERATION_REQUEST,
+        new Command() {
+          @Override
+          public void onMessage(InputStream in, OutputStream out) throws IOException {
+            Serializers.INTEGER.write(out, NetworkCode.GET_GENERATION_RESPONSE);
+            Serializers.LONG.write(out, changeFeed.generation());
+          }
+        });
+
+    // Get Changes - A client wants to know what has changed since the
+    // generation it last saw, so it can drop only that from its cache.
+    this.commands.put(
+        NetworkCode.GET_CHANGES_REQUEST,
+        new Command() {
+          @Override
+          public void onMessage(InputStream in, OutputStream out) throws IOException {
+            final long since = Serializers.LONG.read(in);
+            Serializers.INTEGER.write(out, NetworkCode.GET_CHANGES_RESPONSE);
+            Changes.SERIALIZER.write(out, changeFeed.since(since));
+          }
+        });
+
+    // Search Messages - A client wants the newest messages that have every
+    // word of a query, from the conversations its user belongs to. A
+    // conversation of Uuid.NULL searches all of them.
+    this.commands.put(
+        NetworkCode.SEARCH_MESSAGES_REQUEST,
+        new Command() {
+          @Override
+          public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+            final Uuid user = Uuid.SERIALIZER.read(in);
+            final Uuid conversation = Uuid.SERIALIZER.read(in);
+            final String query = Serializers.STRING.read(in);
+            final int limit =
+                Math.max(0, Math.min(Serializers.INTEGER.read(in), MAX_SEARCH_RESULTS));
+
+            final Collection<Message> found = view.searchMessages(user, conversation, query, limit);
+
+            Serializers.INTEGER.write(out, NetworkCode.SEARCH_MESSAGES_RESPONSE);
+            Message.COMPACT_COLLECTION_SERIALIZER.write(out, found);
           }
         });
 
@@ -369,7 +879,16 @@ public final class Server {
               LOG.info("Reading update from relay...");
 
               for (final Relay.Bundle bundle : relay.read(id, secret, lastSeen, 32)) {
-                onBundle(bundle);
+                modelLock.writeLock().lock();
+                try {
+                  final long changes = model.changes();
+                  onBundle(bundle);
+                  if (model.changes() != changes) {
+                    changeFeed.advance(model);
+                  }
+                } finally {
+                  modelLock.writeLock().unlock();
+                }
                 lastSeen = bundle.id();
               }
 
@@ -387,59 +906,739 @@ public final class Server {
           @Override
           public void run() {
             try {
-              if (!model.getRestoredLog()) {
-                LOG.info("Restoring log...");
-                boolean restored = model.restore(new File(model.createFilePath()));
-                model.setRestoredLog(restored);
-              }
+              model.syncLog();
+            } catch (Exception ex) {
 
-              LOG.info("Updating log...");
+              LOG.error(ex, "Failed to sync log.");
+            }
 
-              controller.refreshLog();
+            // Compacting rewrites the log from the model, so nothing may
+            // change the model while it runs. The first check is only a
+            // hint; it is made again under the lock.
+            if (model.logNeedsCompaction()) {
+              modelLock.writeLock().lock();
+              try {
+                if (model.logNeedsCompaction()) {
+                  model.compactLog();
+                }
+              } catch (Exception ex) {
+
+                LOG.error(ex, "Failed to compact log.");
+              } finally {
+                modelLock.writeLock().unlock();
+              }
+            }
 
-            } catch (Exception ex) {
+            timeline.scheduleIn(LOG_SYNC_MS, this);
+          }
+        });
 
-              LOG.error(ex, "Failed to update log.");
-            }
+    this.timeline.scheduleNow(
+        new Runnable() {
+          @Override
+          public void run() {
+            subscriptions.dropStuck(System.nanoTime());
 
-            timeline.scheduleIn(LOG_REFRESH_MS, this);
+            timeline.scheduleIn(SUBSCRIBER_CHECK_MS, this);
           }
         });
   }
 
+  // HANDLE CONNECTION
+  //
+  // Serve a connection on one of the workers. A session started on the
+  // connection is read from its own thread so that it does not hold a worker
+  // while it waits for its next request.
   public void handleConnection(final Connection connection) {
-    timeline.scheduleNow(
+
+    if (!admit()) {
+      rejectConnection(connection);
+      return;
+    }
+
+    final AtomicBoolean admitted = new AtomicBoolean(true);
+
+    workers.execute(
         new Runnable() {
           @Override
           public void run() {
             try {
+              serve(connection, false, admitted);
+            } finally {
+              release(admitted);
+            }
+          }
+        });
+  }
 
-              LOG.info("Handling connection...");
-
-              final int type = Serializers.INTEGER.read(connection.in());
-              final Command command = commands.get(type);
+  // SERVE CONNECTION
+  //
+  // Serve a connection on the calling thread. A session started on the
+  // connection is read and executed on the calling thread too, so this call
+  // does not return until the client is done. This is meant for front ends
+  // that give every connection its own (cheap) thread. Like the other front
+  // ends, it answers with SERVER_BUSY_RESPONSE when too much is in progress.
+  public void serveConnection(Connection connection) {
+
+    if (!admit()) {
+      rejectConnection(connection);
+      return;
+    }
 
-              if (command == null) {
-                // The message type cannot be handled so return a dummy message.
-                Serializers.INTEGER.write(connection.out(), NetworkCode.NO_MESSAGE);
-                LOG.info("Connection rejected");
-              } else {
-                command.onMessage(connection.in(), connection.out());
-                LOG.info("Connection accepted");
-              }
+    final AtomicBoolean admitted = new AtomicBoolean(true);
 
-            } catch (Exception ex) {
+    try {
+      serve(connection, true, admitted);
+    } finally {
+      release(admitted);
+    }
+  }
 
-              LOG.error(ex, "Exception while handling connection.");
+  // "admitted" is the admission taken for the connection's first request. It
+  // is given back before the connection becomes a session or subscription,
+  // which can last for as long as the client likes. A session's requests are
+  // admitted one at a time as they arrive.
+  private void serve(final Connection connection, boolean inline, AtomicBoolean admitted) {
+
+    boolean keepOpen = false;
+
+    try {
+
+      LOG.info("Handling connection...");
+
+      final int type = Serializers.INTEGER.read(connection.in());
+
+      if (type != NetworkCode.SESSION_REQUEST && !allow(connection.remoteAddress(), type)) {
+        connection.out().write(RATE_LIMITED_RESPONSE);
+        connection.out().flush();
+      } else if (type == NetworkCode.SESSION_REQUEST) {
+        keepOpen = !inline;
+        release(admitted);
+        startSession(connection, inline);
+      } else if (type == NetworkCode.SUBSCRIBE_REQUEST) {
+        keepOpen = !inline;
+        release(admitted);
+        startSubscription(connection, inline);
+      } else if (type == NetworkCode.WAIT_FOR_NEW_MESSAGE_REQUEST) {
+        waitForNewMessage(connection.in(), new Reply() {
+          @Override
+          public void send(byte[] response) {
+            try {
+              connection.out().write(response);
+              connection.out().flush();
+            } catch (IOException ex) {
+              LOG.error(ex, "Exception while sending parked response.");
             }
-
             try {
               connection.close();
-            } catch (Exception ex) {
+            } catch (IOException ex) {
               LOG.error(ex, "Exception while closing connection.");
             }
           }
         });
+        // The reply closes the connection.
+        keepOpen = true;
+      } else {
+        // Build the response in memory so that a slow client is not
+        // written to while the model is locked.
+        final ByteArrayOutputStream response = new ByteArrayOutputStream();
+        onCommand(type, connection.in(), response);
+        response.writeTo(connection.out());
+        connection.out().flush();
+      }
+
+    } catch (Exception ex) {
+
+      LOG.error(ex, "Exception while handling connection.");
+    }
+
+    if (!keepOpen) {
+      try {
+        connection.close();
+      } catch (Exception ex) {
+        LOG.error(ex, "Exception while closing connection.");
+      }
+    }
+  }
+
+  // The commands that have a buffer decoder as well as a stream command share
+  // these, so that both read the same request and give the same response.
+
+  // Charge the author for a new message and return what adds it under the
+  // write lock, or answer a rate limited author and return null.
+  private Command prepareNewMessage(
+      final Uuid author, final Uuid conversation, final String content, OutputStream out)
+      throws IOException {
+
+    if (!userWrites.tryAcquire(author, 1)) {
+      LOG.info("Rate limited user %s", author);
+      out.write(RATE_LIMITED_RESPONSE);
+      return null;
+    }
+
+    return new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final Message message = controller.newMessage(author, conversation, content);
+
+        Serializers.INTEGER.write(out, NetworkCode.NEW_MESSAGE_RESPONSE);
+        Serializers.NULLABLE(Message.SERIALIZER).write(out, message);
+
+        if (message != null) {
+          sendToRelay(Arrays.asList(message.id));
+        } else {
+          userWrites.release(author, 1);
+        }
+      }
+    };
+  }
+
+  // Charge the owner for a new conversation and return what adds it under the
+  // write lock, or answer a rate limited owner and return null.
+  private Command prepareNewConversation(
+      final String title, final Uuid owner, final UserType defaultAccess, OutputStream out)
+      throws IOException {
+
+    if (!userWrites.tryAcquire(owner, 1)) {
+      LOG.info("Rate limited user %s", owner);
+      out.write(RATE_LIMITED_RESPONSE);
+      return null;
+    }
+
+    return new Command() {
+      @Override
+      public void onMessage(InputStream in, OutputStream out) throws IOException {
+
+        final ConversationHeader conversation =
+            controller.newConversation(title, owner, defaultAccess);
+
+        Serializers.INTEGER.write(out, NetworkCode.NEW_CONVERSATION_RESPONSE);
+        Serializers.NULLABLE(ConversationHeader.SERIALIZER).write(out, conversation);
+
+        if (conversation == null) {
+          userWrites.release(owner, 1);
+        }
+      }
+    };
+  }
+
+  private void getMessagesById(Collection<Uuid> ids, OutputStream out) throws IOException {
+
+    final Collection<Message> messages = view.getMessages(ids);
+
+    Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_BY_ID_RESPONSE);
+    Serializers.COLLECTION(Message.SERIALIZER).write(out, messages);
+  }
+
+  private void getMessagesRange(Uuid conversation, Uuid cursor, int limit, OutputStream out)
+      throws IOException {
+
+    final Collection<Message> messages =
+        view.getMessages(conversation, cursor, Math.max(0, Math.min(limit, MAX_PAGE_SIZE)));
+
+    Serializers.INTEGER.write(out, NetworkCode.GET_MESSAGES_RANGE_RESPONSE);
+    Message.COMPACT_COLLECTION_SERIALIZER.write(out, messages);
+  }
+
+  // SESSION
+  //
+  // What the server keeps for a session: the executor its frames run on, the
+  // address of the client, which its requests are rate limited by, and the
+  // session version agreed with it.
+  public static final class Session {
+
+    private final Executor executor;
+    private final InetAddress remote;
+    private final int version;
+
+    private Session(Executor executor, InetAddress remote, int version) {
+      this.executor = executor;
+      this.remote = remote;
+      this.version = version;
+    }
+  }
+
+  // NEW SESSION
+  //
+  // Create a new session for a client at the given address (or null if it is
+  // not known) that agreed on the given session version. Frames from the same
+  // session run one at a time, in the order they were received, while frames
+  // from different sessions run in parallel on the workers.
+  public Session newSession(InetAddress remote, int version) {
+    return new Session(new SerialExecutor(workers), remote, version);
+  }
+
+  // RESPONSE
+  //
+  // The frame that answers request "id" on the session. From session version
+  // 7 on, every response ends with the server's generation as of when it was
+  // sent, so that clients see that something changed without asking.
+  private Frame response(Session session, int id, byte[] payload) {
+
+    if (session.version < 7) {
+      return new Frame(id, payload);
+    }
+
+    final byte[] bytes = Arrays.copyOf(payload, payload.length + 8);
+    ByteBuffer.wrap(bytes, payload.length, 8).putLong(changeFeed.generation());
+    return new Frame(id, bytes);
+  }
+
+  // HANDLE FRAME
+  //
+  // Run a single session frame on the session's executor and pass the response
+  // to the responder. The responder is called on a worker thread.
+  public void handleFrame(
+      final Session session, final Frame request, final Responder responder) {
+
+    if (!admit()) {
+      LOG.warning("Server is busy, rejected session request.");
+      responder.respond(response(session, request.id, BUSY_RESPONSE));
+      return;
+    }
+
+    session.executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              onFrame(session.remote, request.payload, new Reply() {
+                @Override
+                public void send(byte[] response) {
+                  responder.respond(response(session, request.id, response));
+                }
+              });
+            } finally {
+              queued.decrementAndGet();
+            }
+          }
+        });
+  }
+
+  // The same as handleFrame(session, frame, responder) for a frame whose
+  // payload is still in the front end's buffer, between its position and its
+  // limit. The payload is used up before this returns, so the buffer can be
+  // reused straight away. A command with a buffer decoder is decoded from
+  // the buffer here; any other payload is copied out.
+  public void handleFrame(
+      final Session session, final int id, ByteBuffer payload, final Responder responder) {
+
+    final BufferDecoder decoder =
+        payload.remaining() < 4 ? null : decoders.get(payload.getInt(payload.position()));
+
+    if (decoder == null) {
+      final byte[] bytes = new byte[payload.remaining()];
+      payload.get(bytes);
+      handleFrame(session, new Frame(id, bytes), responder);
+      return;
+    }
+
+    final int type;
+    final Command command;
+    try {
+      type = BufferSerializers.INTEGER.read(payload);
+      command = decoder.decode(payload);
+    } catch (IOException | RuntimeException ex) {
+      // Including BufferUnderflowException for a payload that is too short.
+      LOG.error(ex, "Exception while decoding frame.");
+      responder.respond(response(session, id, NO_MESSAGE_RESPONSE));
+      return;
+    } finally {
+      payload.position(payload.limit());
+    }
+
+    if (!admit()) {
+      LOG.warning("Server is busy, rejected session request.");
+      responder.respond(response(session, id, BUSY_RESPONSE));
+      return;
+    }
+
+    session.executor.execute(
+        new Runnable() {
+          @Override
+          public void run() {
+            try {
+              onRequest(session.remote, type, command, EMPTY, new Reply() {
+                @Override
+                public void send(byte[] response) {
+                  responder.respond(response(session, id, response));
+                }
+              });
+            } finally {
+              queued.decrementAndGet();
+            }
+          }
+        });
+  }
+
+  // ADMIT
+  //
+  // Count a new request against the queue limit. Returns false, without
+  // counting it, if the server already has as much queued as it will take.
+  private boolean admit() {
+    if (queued.incrementAndGet() > maxQueued) {
+      queued.decrementAndGet();
+      return false;
+    }
+    return true;
+  }
+
+  // Give back an admission from "admit", if it has not been given back yet.
+  private void release(AtomicBoolean admitted) {
+    if (admitted.getAndSet(false)) {
+      queued.decrementAndGet();
+    }
+  }
+
+  // ALLOW
+  //
+  // Charge a request to the budget of the address it came from. Returns false
+  // if the address has used up its budget for that kind of request. Requests
+  // from an unknown address are not limited.
+  private boolean allow(InetAddress remote, int type) {
+
+    if (remote == null) {
+      return true;
+    }
+
+    final boolean write = commands.containsKey(type) && !READ_COMMANDS.contains(type);
+
+    if (!(write ? addressWrites : addressReads).tryAcquire(remote, 1)) {
+      LOG.info("Rate limited %s", remote.getHostAddress());
+      return false;
+    }
+    return true;
+  }
+
+  // Answer a connection that could not be admitted without reading its
+  // request.
+  private static void rejectConnection(Connection connection) {
+    LOG.warning("Server is busy, rejected connection.");
+    try {
+      connection.out().write(BUSY_RESPONSE);
+      connection.out().flush();
+    } catch (IOException ex) {
+      LOG.error(ex, "Exception while rejecting connection.");
+    }
+    try {
+      connection.close();
+    } catch (IOException ex) {
+      LOG.error(ex, "Exception while closing connection.");
+    }
+  }
+
+  // SESSION VERSION
+  //
+  // Given the newest session version a client understands, return the
+  // version that will be used for the session.
+  public static int sessionVersion(int requested) {
+    return Math.min(requested, SESSION_VERSION);
+  }
+
+  private void onCommand(int type, InputStream in, OutputStream out) throws IOException {
+    onCommand(type, commands.get(type), in, out);
+  }
+
+  // Run "command" as a command of the given type, which decides how it is
+  // locked. A null command is one the server does not know.
+  private void onCommand(int type, Command command, InputStream in, OutputStream out)
+      throws IOException {
+
+    if (command == null) {
+      // The message type cannot be handled so return a dummy message.
+      Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
+      LOG.info("Connection rejected");
+    } else if (UNLOCKED_COMMANDS.contains(type)) {
+      command.onMessage(in, out);
+      LOG.info("Connection accepted");
+    } else {
+      final boolean read = READ_COMMANDS.contains(type);
+      final Command locked = command instanceof PreparedCommand
+          ? ((PreparedCommand) command).prepare(in, out)
+          : command;
+      if (locked == null) {
+        LOG.info("Connection accepted");
+        return;
+      }
+      final Lock lock = read ? modelLock.readLock() : modelLock.writeLock();
+      lock.lock();
+      try {
+        final long changes = model.changes();
+        locked.onMessage(in, out);
+        if (model.changes() != changes) {
+          changeFeed.advance(model);
+        }
+      } finally {
+        lock.unlock();
+      }
+      // Waiting for the disk after the lock is let go lets the writes that
+      // queued up behind this one share the same sync.
+      if (!read && durability == WriteAheadLog.Durability.SYNC) {
+        model.syncLog();
+      }
+      LOG.info("Connection accepted");
+    }
+  }
+
+  // ON FRAME
+  //
+  // Run the command found in a session frame and send the bytes of the
+  // response. If the command fails part way through, the partial response is
+  // replaced with NO_MESSAGE so that the client does not read half a response.
+  private void onFrame(InetAddress remote, byte[] payload, Reply reply) {
+
+    final InputStream in = new ByteArrayInputStream(payload);
+
+    final int type;
+    try {
+      type = Serializers.INTEGER.read(in);
+    } catch (IOException ex) {
+      LOG.error(ex, "Exception while handling frame.");
+      reply.send(NO_MESSAGE_RESPONSE);
+      return;
+    }
+
+    onRequest(remote, type, commands.get(type), in, reply);
+  }
+
+  // Run a request whose type has been read. "command" is what runs it, which
+  // is either the command for the type, reading the rest of the request from
+  // "in", or one that a buffer decoder already bound to its request.
+  private void onRequest(InetAddress remote, int type, Command command, InputStream in,
+                         Reply reply) {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+
+    try {
+      if (!allow(remote, type)) {
+        reply.send(RATE_LIMITED_RESPONSE);
+        return;
+      }
+      if (type == NetworkCode.WAIT_FOR_NEW_MESSAGE_REQUEST) {
+        waitForNewMessage(in, reply);
+        return;
+      }
+      onCommand(type, command, in, out);
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while handling frame.");
+      out.reset();
+      try {
+        Serializers.INTEGER.write(out, NetworkCode.NO_MESSAGE);
+      } catch (IOException never) {
+        // Writing to memory cannot fail.
+      }
+    }
+
+    reply.send(out.toByteArray());
+  }
+
+  // WAIT FOR NEW MESSAGE
+  //
+  // Answer whether a conversation has a new message, the same as
+  // HAS_NEW_MESSAGE. If there is no new message yet, the request is parked
+  // until one arrives or the client's wait runs out, without holding a thread.
+  private void waitForNewMessage(InputStream in, final Reply reply) throws IOException {
+
+    final Uuid conversation = Uuid.SERIALIZER.read(in);
+    final Time lastUpdate = Time.SERIALIZER.read(in);
+    final long waitMs = Math.max(0, Math.min(Serializers.LONG.read(in), MAX_WAIT_MS));
+
+    final MessageWaiters.Waiter waiter = new MessageWaiters.Waiter() {
+      @Override
+      public void onNewMessage() {
+        workers.execute(new Runnable() {
+          @Override
+          public void run() {
+            reply.send(hasNewMessageResponse(true));
+          }
+        });
+      }
+    };
+
+    final boolean hasNewMessage;
+
+    // Check and park while holding the lock. New messages are added under the
+    // write lock, so none can slip in between the check and the park.
+    modelLock.readLock().lock();
+    try {
+      hasNewMessage = controller.hasNewMessage(conversation, lastUpdate);
+      if (!hasNewMessage && waitMs > 0) {
+        waiters.park(conversation, waiter);
+      }
+    } finally {
+      modelLock.readLock().unlock();
+    }
+
+    if (hasNewMessage || waitMs == 0) {
+      reply.send(hasNewMessageResponse(hasNewMessage));
+      return;
+    }
+
+    final boolean scheduled = timeline.offerIn(waitMs, new Runnable() {
+      @Override
+      public void run() {
+        if (waiters.remove(conversation, waiter)) {
+          workers.execute(new Runnable() {
+            @Override
+            public void run() {
+              reply.send(hasNewMessageResponse(false));
+            }
+          });
+        }
+      }
+    });
+
+    if (!scheduled && waiters.remove(conversation, waiter)) {
+      // There is no room to time the wait, so end it now rather than leave it
+      // parked with no end.
+      LOG.warning("Timeline is full, ended a wait early.");
+      reply.send(hasNewMessageResponse(false));
+    }
+  }
+
+  private static byte[] hasNewMessageResponse(boolean hasNewMessage) {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    try {
+      Serializers.INTEGER.write(out, NetworkCode.HAS_NEW_MESSAGE_RESPONSE);
+      Serializers.BOOLEAN.write(out, hasNewMessage);
+    } catch (IOException never) {
+      // Writing to memory cannot fail.
+    }
+    return out.toByteArray();
+  }
+
+  // START SESSION
+  //
+  // Reply to a session request and start reading frames from the connection.
+  // When "inline" is false, frames are read on their own thread so that a
+  // connection waiting for its next request does not hold up a worker, and
+  // the frames run on the workers. When "inline" is true, frames are read and
+  // run on the calling thread and this call returns once the session ends.
+  private void startSession(final Connection connection, boolean inline) throws IOException {
+
+    final int version = Serializers.INTEGER.read(connection.in());
+    final InputStream in = new BufferedInputStream(connection.in());
+    final OutputStream out = new BufferedOutputStream(connection.out());
+
+    final int agreed = sessionVersion(version);
+
+    Serializers.INTEGER.write(out, NetworkCode.SESSION_RESPONSE);
+    Serializers.INTEGER.write(out, agreed);
+    out.flush();
+
+    LOG.info("Session started (version=%d)", agreed);
+
+    if (inline) {
+      readSession(
+          new Session(
+              new Executor() {
+                @Override
+                public void execute(Runnable task) {
+                  task.run();
+                }
+              },
+              connection.remoteAddress(),
+              agreed),
+          in,
+          out);
+      return;
+    }
+
+    final Session session = newSession(connection.remoteAddress(), agreed);
+
+    final Thread reader = new Thread() {
+      @Override
+      public void run() {
+        readSession(session, in, out);
+        try {
+          connection.close();
+        } catch (Exception ex) {
+          LOG.error(ex, "Exception while closing session.");
+        }
+      }
+    };
+
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  // START SUBSCRIPTION
+  //
+  // Subscribe the connection to new messages in the conversations it names.
+  // The client does not send anything else, so the connection is only read to
+  // find out when the client goes away. As with sessions, "inline" decides
+  // whether that wait happens on the calling thread or on its own thread.
+  private void startSubscription(final Connection connection, final boolean inline)
+      throws IOException {
+
+    final Collection<Uuid> conversations =
+        Serializers.COLLECTION(Uuid.SERIALIZER).read(connection.in());
+
+    final Subscriptions.Subscriber subscriber =
+        subscriptions.subscribe(connection, pushers, conversations);
+
+    LOG.info("Subscription started (conversations=%d)", conversations.size());
+
+    final Runnable waitForClose = new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (connection.in().read() >= 0) {
+            // Nothing is expected from the client. Ignore it.
+          }
+        } catch (IOException ex) {
+          LOG.info("Subscription connection failed: %s", ex.getMessage());
+        }
+        subscriptions.unsubscribe(subscriber);
+        LOG.info("Subscription ended.");
+        if (!inline) {
+          try {
+            connection.close();
+          } catch (Exception ex) {
+            LOG.error(ex, "Exception while closing subscription.");
+          }
+        }
+      }
+    };
+
+    if (inline) {
+      waitForClose.run();
+      return;
+    }
+
+    final Thread reader = new Thread(waitForClose);
+    reader.setDaemon(true);
+    reader.start();
+  }
+
+  private void readSession(Session session, InputStream in, final OutputStream out) {
+    try {
+      while (true) {
+        handleFrame(
+            session,
+            Frame.SERIALIZER.read(in),
+            new Responder() {
+              @Override
+              public void respond(Frame response) {
+                // Clients may pipeline requests and parked requests answer
+                // from other threads, so whole frames must not interleave.
+                try {
+                  synchronized (out) {
+                    Frame.SERIALIZER.write(out, response);
+                    out.flush();
+                  }
+                } catch (IOException ex) {
+                  LOG.error(ex, "Exception while writing session response.");
+                }
+              }
+            });
+      }
+    } catch (EOFException ex) {
+      LOG.info("Session closed by client.");
+    } catch (Exception ex) {
+      LOG.error(ex, "Exception while reading session.");
+    }
   }
 
   private void onBundle(Relay.Bundle bundle) {
@@ -483,25 +1682,87 @@ public final class Server {
     }
   }
 
-  private Runnable createSendToRelayEvent(
-      final Uuid userId, final Uuid conversationId, final Uuid messageId) {
+  // Queue messages to be sent to the relay. Messages queued while a send is
+  // waiting to run on the timeline go out with it, so a burst of single
+  // messages is sent together.
+  private void sendToRelay(Collection<Uuid> messageIds) {
+    relayQueue.addAll(messageIds);
+    if (relaySendQueued.compareAndSet(false, true)
+        && !timeline.offerNow(createSendToRelayEvent())) {
+      relaySendQueued.set(false);
+      LOG.error("Timeline is full, %d message(s) are waiting to be sent to the relay.",
+                relayQueue.size());
+    }
+  }
+
+  // The messages bound for the relay from one conversation, in order.
+  private static final class RelayGroup {
+
+    public final Relay.Bundle.ConversationComponent conversation;
+    public final List<Relay.Bundle.Component> users = new ArrayList<>();
+    public final List<Relay.Bundle.Component> messages = new ArrayList<>();
+
+    public RelayGroup(Relay.Bundle.ConversationComponent conversation) {
+      this.conversation = conversation;
+    }
+  }
+
+  // Send everything queued for the relay with one write for each
+  // conversation, holding its messages in order. Everything needed is read
+  // from the model in one go so that a send only takes the read lock once.
+  private Runnable createSendToRelayEvent() {
     return new Runnable() {
       @Override
       public void run() {
-        final User user = view.findUser(userId);
-        final ConversationHeader conversation = view.findConversation(conversationId);
-        final Message message = view.findMessage(messageId);
-        relay.write(
-            id,
-            secret,
-            relay.pack(user.id, user.name, user.creation),
-            relay.pack(
-                conversation.id,
-                conversation.title,
-                conversation.creation,
-                conversation.creator,
-                conversation.defaultAccess),
-            relay.pack(message.id, message.content, message.creation));
+
+        // Anything queued after this is either taken below or schedules
+        // another send.
+        relaySendQueued.set(false);
+
+        final Map<Uuid, RelayGroup> groups = new LinkedHashMap<>();
+
+        modelLock.readLock().lock();
+        try {
+          for (Uuid messageId = relayQueue.poll();
+               messageId != null;
+               messageId = relayQueue.poll()) {
+            final Message message = view.findMessage(messageId);
+            final User user = message == null ? null : view.findUser(message.author);
+            final ConversationHeader conversation =
+                message == null ? null : view.findConversation(message.conversationHeader);
+            if (user == null || conversation == null) {
+              // Removed before it could be sent.
+              continue;
+            }
+            RelayGroup group = groups.get(conversation.id);
+            if (group == null) {
+              group = new RelayGroup(relay.pack(
+                  conversation.id,
+                  conversation.title,
+                  conversation.creation,
+                  conversation.creator,
+                  conversation.defaultAccess));
+              groups.put(conversation.id, group);
+            }
+            group.users.add(relay.pack(user.id, user.name, user.creation));
+            group.messages.add(relay.pack(message.id, message.content, message.creation));
+          }
+        } finally {
+          modelLock.readLock().unlock();
+        }
+
+        for (final RelayGroup group : groups.values()) {
+          for (int from = 0; from < group.messages.size(); from += Relay.MAX_WRITE_ALL) {
+            final int to = Math.min(from + Relay.MAX_WRITE_ALL, group.messages.size());
+            final int written = relay.writeAll(
+                id, secret, group.conversation,
+                group.users.subList(from, to), group.messages.subList(from, to));
+            if (written < to - from) {
+              LOG.error("Relay took %d of %d message(s) for conversation %s.",
+                        written, to - from, group.conversation.id());
+            }
+          }
+        }
       }
     };
   }
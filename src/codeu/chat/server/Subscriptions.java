@@ -0,0 +1,286 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.util.Logger;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+// SUBSCRIPTIONS
+//
+// Tracks the connections that want to be told about new messages and pushes
+// each new message to the connections subscribed to its conversation. A
+// subscriber costs nothing until there is a message for it.
+final class Subscriptions implements Controller.Listener {
+
+  private static final Logger.Log LOG = Logger.newLog(Subscriptions.class);
+
+  // The most bytes that may wait to be pushed to one subscriber. A subscriber
+  // that falls this far behind is dropped.
+  private static final int MAX_QUEUED_BYTES = 1024 * 1024;
+
+  // The longest one push may take. A subscriber whose push has been stuck for
+  // longer is dropped by "dropStuck", or the next time there is something to
+  // send it if that comes first.
+  private static final long WRITE_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);
+
+  // SUBSCRIBER
+  //
+  // A single subscribed connection. Pushes are queued and written in order by
+  // a task on the subscriber's executor, never while the model is locked, and
+  // each subscriber has at most one such task at a time. The queue is
+  // bounded: a subscriber that stops reading is dropped and its connection
+  // closed rather than holding on to every message it missed.
+  public static final class Subscriber {
+
+    private final Connection connection;
+    private final Executor executor;
+    private final Collection<Uuid> conversations;
+
+    // Guarded by "this".
+    private final Queue<byte[]> queue = new ArrayDeque<>();
+    private int queuedBytes;
+    private boolean writing;
+    private boolean inWrite;
+    private long writeStarted;
+    private boolean dropped;
+
+    private Subscriber(Connection connection, Executor executor, Collection<Uuid> conversations) {
+      this.connection = connection;
+      this.executor = executor;
+      this.conversations = conversations;
+    }
+
+    private void send(byte[] bytes) {
+
+      synchronized (this) {
+
+        if (dropped) {
+          return;
+        }
+
+        final boolean stuck = stuck(System.nanoTime());
+
+        if (stuck || queuedBytes + bytes.length > MAX_QUEUED_BYTES) {
+          LOG.warning("Dropping subscriber that is not reading (queued=%d stuck=%s)",
+                      queuedBytes, stuck);
+          drop();
+          return;
+        }
+
+        queue.add(bytes);
+        queuedBytes += bytes.length;
+
+        if (writing) {
+          return;
+        }
+        writing = true;
+      }
+
+      executor.execute(new Runnable() {
+        @Override
+        public void run() {
+          write();
+        }
+      });
+    }
+
+    // Write everything in the queue, including whatever is added while
+    // writing, and then stop until the next push.
+    private void write() {
+      while (true) {
+
+        final byte[] bytes;
+
+        synchronized (this) {
+          bytes = queue.poll();
+          if (bytes == null || dropped) {
+            writing = false;
+            inWrite = false;
+            return;
+          }
+          queuedBytes -= bytes.length;
+          inWrite = true;
+          writeStarted = System.nanoTime();
+        }
+
+        try {
+          final OutputStream out = connection.out();
+          out.write(bytes);
+          out.flush();
+        } catch (IOException ex) {
+          LOG.error(ex, "Exception while pushing to subscriber.");
+          synchronized (this) {
+            writing = false;
+            inWrite = false;
+            drop();
+          }
+          return;
+        }
+      }
+    }
+
+    // Whether a write to the connection has been going on for too long. A
+    // push that is only waiting for a thread is not stuck. Must hold "this".
+    private boolean stuck(long now) {
+      return inWrite && now - writeStarted > WRITE_TIMEOUT_NANOS;
+    }
+
+    private synchronized boolean dropIfStuck(long now) {
+      if (dropped || !stuck(now)) {
+        return false;
+      }
+      LOG.warning("Dropping subscriber whose push has been stuck for %d ms",
+                  TimeUnit.NANOSECONDS.toMillis(now - writeStarted));
+      drop();
+      return true;
+    }
+
+    // Forget everything queued and close the connection. Closing it ends the
+    // subscriber's reader, which then removes the subscriber, and also ends a
+    // write that is stuck on the connection. Must hold "this".
+    private void drop() {
+      dropped = true;
+      queue.clear();
+      queuedBytes = 0;
+      try {
+        connection.close();
+      } catch (IOException ex) {
+        LOG.error(ex, "Exception while closing subscriber.");
+      }
+    }
+  }
+
+  private final Map<Uuid, Set<Subscriber>> byConversation = new HashMap<>();
+
+  // SUBSCRIBE
+  //
+  // Start sending new messages in the given conversations to the connection.
+  // The subscribe response is queued before any message so the client always
+  // sees it first.
+  public Subscriber subscribe(
+      Connection connection, Executor executor, Collection<Uuid> conversations) {
+
+    final Subscriber subscriber =
+        new Subscriber(connection, executor, new ArrayList<>(conversations));
+
+    final ByteArrayOutputStream response = new ByteArrayOutputStream();
+    try {
+      Serializers.INTEGER.write(response, NetworkCode.SUBSCRIBE_RESPONSE);
+    } catch (IOException ex) {
+      // Writing to memory does not fail.
+      throw new IllegalStateException(ex);
+    }
+    subscriber.send(response.toByteArray());
+
+    synchronized (byConversation) {
+      for (final Uuid conversation : subscriber.conversations) {
+        Set<Subscriber> subscribers = byConversation.get(conversation);
+        if (subscribers == null) {
+          subscribers = new HashSet<>();
+          byConversation.put(conversation, subscribers);
+        }
+        subscribers.add(subscriber);
+      }
+    }
+
+    return subscriber;
+  }
+
+  public void unsubscribe(Subscriber subscriber) {
+    synchronized (byConversation) {
+      for (final Uuid conversation : subscriber.conversations) {
+        final Set<Subscriber> subscribers = byConversation.get(conversation);
+        if (subscribers != null) {
+          subscribers.remove(subscriber);
+          if (subscribers.isEmpty()) {
+            byConversation.remove(conversation);
+          }
+        }
+      }
+    }
+  }
+
+  // DROP STUCK
+  //
+  // Drop every subscriber whose current push has been stuck for longer than
+  // the write timeout. Closing its connection ends the stuck write, which
+  // frees the thread it was holding. This is run regularly so that a
+  // subscriber that stops reading can not hold a push thread until the next
+  // message for it arrives. Returns the number dropped. "now" is in the same
+  // units as System.nanoTime().
+  public int dropStuck(long now) {
+
+    final Set<Subscriber> all = new HashSet<>();
+    synchronized (byConversation) {
+      for (final Set<Subscriber> subscribers : byConversation.values()) {
+        all.addAll(subscribers);
+      }
+    }
+
+    int dropped = 0;
+    for (final Subscriber subscriber : all) {
+      if (subscriber.dropIfStuck(now)) {
+        dropped++;
+      }
+    }
+    return dropped;
+  }
+
+  @Override
+  public void onNewMessage(Message message) {
+    synchronized (byConversation) {
+
+      final Set<Subscriber> subscribers = byConversation.get(message.conversationHeader);
+
+      if (subscribers == null) {
+        return;
+      }
+
+      // Encode the message now, while the model is locked, as the message can
+      // change once the lock is released (its "next" link is updated when the
+      // next message is added).
+      final ByteArrayOutputStream event = new ByteArrayOutputStream();
+      try {
+        Serializers.INTEGER.write(event, NetworkCode.NEW_MESSAGE_EVENT);
+        Message.SERIALIZER.write(event, message);
+      } catch (IOException ex) {
+        LOG.error(ex, "Exception while encoding new message event.");
+        return;
+      }
+
+      final byte[] bytes = event.toByteArray();
+      for (final Subscriber subscriber : subscribers) {
+        subscriber.send(bytes);
+      }
+    }
+  }
+}
@@ -16,15 +16,19 @@ package codeu.chat.server;
 
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 
 import codeu.chat.common.BasicView;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.ConversationPermission;
 import codeu.chat.common.Message;
 import codeu.chat.common.SinglesView;
 import codeu.chat.common.User;
 import codeu.chat.util.Logger;
+import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
 import codeu.chat.util.store.StoreAccessor;
 
@@ -59,6 +63,106 @@ public final class View implements BasicView, SinglesView {
     return intersect(model.messageById(), ids);
   }
 
+  @Override
+  public Collection<Message> getMessages(Uuid conversation, Uuid cursor, int limit) {
+
+    final Collection<Message> found = new ArrayList<>();
+
+    final ConversationPayload payload = model.conversationPayloadById().first(conversation);
+
+    if (payload == null) {
+      LOG.warning("Unmapped conversation %s", conversation);
+      return found;
+    }
+
+    Uuid next = payload.firstMessage;
+
+    if (!Uuid.equals(cursor, Uuid.NULL)) {
+      final Message after = model.messageById().first(cursor);
+      if (after == null || !Uuid.equals(after.conversationHeader, conversation)) {
+        LOG.warning("Cursor %s is not a message in conversation %s", cursor, conversation);
+        return found;
+      }
+      next = after.next;
+    }
+
+    while (found.size() < limit && !Uuid.equals(next, Uuid.NULL)) {
+      final Message message = model.messageById().first(next);
+      if (message == null) {
+        LOG.warning("Unmapped id %s", next);
+        break;
+      }
+      found.add(message);
+      next = message.next;
+    }
+
+    return found;
+  }
+
+  // Conversations added at or after the given time that still exist.
+  public Collection<ConversationHeader> getConversationsSince(Time since) {
+
+    final Collection<ConversationHeader> found = new ArrayList<>();
+
+    for (final ConversationHeader conversation : model.conversationByArrival().after(since)) {
+      if (model.conversationById().first(conversation.id) != null) {
+        found.add(conversation);
+      }
+    }
+
+    return found;
+  }
+
+  // The ids of conversations removed at or after the given time.
+  public Collection<Uuid> getRemovedConversationsSince(Time since) {
+
+    final Collection<Uuid> found = new HashSet<>();
+
+    for (final Uuid id : model.conversationRemovals().after(since)) {
+      found.add(id);
+    }
+
+    return found;
+  }
+
+  // SEARCH MESSAGES
+  //
+  // The newest messages, at most "limit" of them, that have every word in the
+  // query and are in conversations the user belongs to. When "conversation"
+  // is not Uuid.NULL, only that conversation is searched.
+  public Collection<Message> searchMessages(
+      final Uuid user, final Uuid conversation, String query, int limit) {
+
+    if (!Uuid.equals(conversation, Uuid.NULL)) {
+      if (!canRead(user, conversation)) {
+        return new ArrayList<>();
+      }
+      // Only the conversation's own postings are read, so everything found
+      // is in it.
+      return model.searchIndex().search(conversation, query, limit, SearchIndex.EVERYTHING);
+    }
+
+    // Remember the answer for each conversation, as most matches share a few.
+    final Map<Uuid, Boolean> readable = new HashMap<>();
+
+    return model.searchIndex().search(query, limit, new SearchIndex.Filter() {
+      @Override
+      public boolean accept(Message message) {
+        Boolean can = readable.get(message.conversationHeader);
+        if (can == null) {
+          can = canRead(user, message.conversationHeader);
+          readable.put(message.conversationHeader, can);
+        }
+        return can;
+      }
+    });
+  }
+
+  private boolean canRead(Uuid user, Uuid conversation) {
+    final ConversationPermission permission = model.permissionById().first(conversation);
+    return permission != null && permission.containsUser(user);
+  }
+
   @Override
   public User findUser(Uuid id) { return model.userById().first(id); }
 
@@ -0,0 +1,36 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+// BUFFER SERIALIZER
+//
+// The same as Serializer but reading from and writing to a ByteBuffer. The
+// bytes are exactly the same as the matching Serializer's, so a value written
+// with one can be read with the other.
+//
+// Values are read from and written to the buffer's current position. If the
+// buffer does not have enough room (or enough bytes) a BufferOverflowException
+// (or BufferUnderflowException) is thrown and the buffer's position is left
+// somewhere in the middle of the value.
+public interface BufferSerializer<T> {
+
+  void write(ByteBuffer out, T value) throws IOException;
+
+  T read(ByteBuffer in) throws IOException;
+
+}
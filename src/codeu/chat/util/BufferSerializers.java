@@ -0,0 +1,170 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+
+// BUFFER SERIALIZERS
+//
+// The ByteBuffer versions of the serializers in Serializers. Each one writes
+// the same bytes as its stream version.
+public final class BufferSerializers {
+
+  public static final BufferSerializer<Boolean> BOOLEAN =
+      new BufferSerializer<Boolean>() {
+
+        @Override
+        public void write(ByteBuffer out, Boolean value) throws IOException {
+          out.put((byte) (value ? 1 : 0));
+        }
+
+        @Override
+        public Boolean read(ByteBuffer in) throws IOException {
+          return in.get() != 0;
+        }
+      };
+
+  public static final BufferSerializer<Integer> INTEGER =
+      new BufferSerializer<Integer>() {
+
+        @Override
+        public void write(ByteBuffer out, Integer value) throws IOException {
+          out.putInt(value);
+        }
+
+        @Override
+        public Integer read(ByteBuffer in) throws IOException {
+          return in.getInt();
+        }
+      };
+
+  public static final BufferSerializer<Long> LONG =
+      new BufferSerializer<Long>() {
+
+        @Override
+        public void write(ByteBuffer out, Long value) throws IOException {
+          out.putLong(value);
+        }
+
+        @Override
+        public Long read(ByteBuffer in) throws IOException {
+          return in.getLong();
+        }
+      };
+
+  public static final BufferSerializer<byte[]> BYTES =
+      new BufferSerializer<byte[]>() {
+
+        @Override
+        public void write(ByteBuffer out, byte[] value) throws IOException {
+          out.putInt(value.length);
+          out.put(value);
+        }
+
+        @Override
+        public byte[] read(ByteBuffer in) throws IOException {
+          final byte[] array = new byte[readLength(in)];
+          in.get(array);
+          return array;
+        }
+      };
+
+  public static final BufferSerializer<String> STRING =
+      new BufferSerializer<String>() {
+
+        @Override
+        public void write(ByteBuffer out, String value) throws IOException {
+          BYTES.write(out, value.getBytes());
+        }
+
+        @Override
+        public String read(ByteBuffer in) throws IOException {
+
+          if (!in.hasArray()) {
+            return new String(BYTES.read(in));
+          }
+
+          // Decode straight out of the buffer's array rather than copying the
+          // bytes out first.
+          final int length = readLength(in);
+          final String value = new String(in.array(), in.arrayOffset() + in.position(), length);
+          in.position(in.position() + length);
+          return value;
+        }
+      };
+
+  public static <T> BufferSerializer<Collection<T>> COLLECTION(
+      final BufferSerializer<T> serializer) {
+
+    return new BufferSerializer<Collection<T>>() {
+
+      @Override
+      public void write(ByteBuffer out, Collection<T> value) throws IOException {
+        out.putInt(value.size());
+        for (final T x : value) {
+          serializer.write(out, x);
+        }
+      }
+
+      @Override
+      public Collection<T> read(ByteBuffer in) throws IOException {
+        final int size = readLength(in);
+        final Collection<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(serializer.read(in));
+        }
+        return list;
+      }
+    };
+  }
+
+  public static <T> BufferSerializer<T> NULLABLE(final BufferSerializer<T> serializer) {
+
+    final byte NO_VALUE = 0x00;
+    final byte YES_VALUE = (byte) 0xFF;
+
+    return new BufferSerializer<T>() {
+
+      @Override
+      public void write(ByteBuffer out, T value) throws IOException {
+        if (value == null) {
+          out.put(NO_VALUE);
+        } else {
+          out.put(YES_VALUE);
+          serializer.write(out, value);
+        }
+      }
+
+      @Override
+      public T read(ByteBuffer in) throws IOException {
+        return in.get() == NO_VALUE ? null : serializer.read(in);
+      }
+    };
+  }
+
+  // Read a length and check that it could make sense for the bytes that are
+  // left. This stops a bad length from allocating a huge array before the
+  // buffer runs out.
+  private static int readLength(ByteBuffer in) throws IOException {
+    final int length = in.getInt();
+    if (length < 0 || length > in.remaining()) {
+      throw new IOException(String.format("Length %d is not allowed", length));
+    }
+    return length;
+  }
+}
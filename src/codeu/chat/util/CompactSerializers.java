@@ -0,0 +1,192 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collection;
+
+// COMPACT SERIALIZERS
+//
+// Serializers for the compact wire format. Instead of always using four bytes
+// for an integer and eight for a long, numbers are written as varints: seven
+// bits per byte with the high bit set on every byte but the last. Small
+// numbers (like lengths, counts and the gap between two times) then only take
+// one or two bytes.
+//
+// Longs are zig-zag encoded first so that small negative numbers are small
+// too (0 -> 0, -1 -> 1, 1 -> 2, -2 -> 3, ...).
+public final class CompactSerializers {
+
+  // Integers are treated as unsigned. A negative integer takes five bytes.
+  public static final Serializer<Integer> VARINT =
+      new Serializer<Integer>() {
+
+        @Override
+        public void write(OutputStream out, Integer value) throws IOException {
+
+          final byte[] bytes = new byte[5];
+          int length = 0;
+          int remaining = value;
+
+          while ((remaining & ~0x7F) != 0) {
+            bytes[length++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+          }
+          bytes[length++] = (byte) remaining;
+
+          out.write(bytes, 0, length);
+        }
+
+        @Override
+        public Integer read(InputStream in) throws IOException {
+
+          int value = 0;
+
+          for (int shift = 0; shift < 32; shift += 7) {
+            final int next = readByte(in);
+            value |= (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+              return value;
+            }
+          }
+
+          throw new IOException("Varint is longer than 5 bytes");
+        }
+      };
+
+  public static final Serializer<Long> VARLONG =
+      new Serializer<Long>() {
+
+        @Override
+        public void write(OutputStream out, Long value) throws IOException {
+
+          final byte[] bytes = new byte[10];
+          int length = 0;
+          long remaining = (value << 1) ^ (value >> 63);
+
+          while ((remaining & ~0x7FL) != 0) {
+            bytes[length++] = (byte) ((remaining & 0x7F) | 0x80);
+            remaining >>>= 7;
+          }
+          bytes[length++] = (byte) remaining;
+
+          out.write(bytes, 0, length);
+        }
+
+        @Override
+        public Long read(InputStream in) throws IOException {
+
+          long value = 0;
+
+          for (int shift = 0; shift < 64; shift += 7) {
+            final int next = readByte(in);
+            value |= (long) (next & 0x7F) << shift;
+            if ((next & 0x80) == 0) {
+              return (value >>> 1) ^ -(value & 1);
+            }
+          }
+
+          throw new IOException("Varlong is longer than 10 bytes");
+        }
+      };
+
+  public static final Serializer<byte[]> BYTES =
+      new Serializer<byte[]>() {
+
+        @Override
+        public void write(OutputStream out, byte[] value) throws IOException {
+
+          VARINT.write(out, value.length);
+          out.write(value);
+        }
+
+        @Override
+        public byte[] read(InputStream in) throws IOException {
+
+          final int length = VARINT.read(in);
+
+          if (length < 0) {
+            throw new IOException(String.format("Byte array length %d is not allowed", length));
+          }
+
+          final byte[] array = new byte[length];
+
+          for (int offset = 0; offset < length; ) {
+            final int read = in.read(array, offset, length - offset);
+            if (read < 0) {
+              throw new EOFException();
+            }
+            offset += read;
+          }
+
+          return array;
+        }
+      };
+
+  public static final Serializer<String> STRING =
+      new Serializer<String>() {
+
+        @Override
+        public void write(OutputStream out, String value) throws IOException {
+
+          BYTES.write(out, value.getBytes());
+        }
+
+        @Override
+        public String read(InputStream in) throws IOException {
+
+          return new String(BYTES.read(in));
+        }
+      };
+
+  public static <T> Serializer<Collection<T>> COLLECTION(final Serializer<T> serializer) {
+
+    return new Serializer<Collection<T>>() {
+
+      @Override
+      public void write(OutputStream out, Collection<T> value) throws IOException {
+        VARINT.write(out, value.size());
+        for (final T x : value) {
+          serializer.write(out, x);
+        }
+      }
+
+      @Override
+      public Collection<T> read(InputStream in) throws IOException {
+        final int size = VARINT.read(in);
+        if (size < 0) {
+          throw new IOException(String.format("Collection size %d is not allowed", size));
+        }
+        final Collection<T> list = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+          list.add(serializer.read(in));
+        }
+        return list;
+      }
+    };
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    final int value = in.read();
+    if (value < 0) {
+      throw new EOFException();
+    }
+    return value;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// LRU CACHE
+//
+// A map that holds at most a fixed number of entries. When it is full, adding
+// a new entry drops the one that was used least recently. Reads count as a
+// use. This class is not thread safe.
+public final class LruCache<KEY, VALUE> {
+
+  private final Map<KEY, VALUE> entries;
+
+  public LruCache(final int capacity) {
+
+    if (capacity < 1) {
+      throw new IllegalArgumentException("Capacity must be at least one");
+    }
+
+    this.entries = new LinkedHashMap<KEY, VALUE>(16, 0.75f, true) {
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<KEY, VALUE> eldest) {
+        return size() > capacity;
+      }
+    };
+  }
+
+  // Get the value for the key or null if it is not cached.
+  public VALUE get(KEY key) {
+    return entries.get(key);
+  }
+
+  public void put(KEY key, VALUE value) {
+    entries.put(key, value);
+  }
+
+  // Drop the value for the key, returning it or null if it was not cached.
+  public VALUE remove(KEY key) {
+    return entries.remove(key);
+  }
+
+  // A copy of every cached value. Unlike "get", this does not count as a use.
+  public Collection<VALUE> values() {
+    return new ArrayList<>(entries.values());
+  }
+
+  public int size() {
+    return entries.size();
+  }
+
+  public void clear() {
+    entries.clear();
+  }
+}
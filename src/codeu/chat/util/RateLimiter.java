@@ -0,0 +1,121 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+// RATE LIMITER
+//
+// A token bucket for each key. A key may take up to "burst" permits at once
+// and earns "perSecond" more every second, up to "burst" again.
+//
+// Rather than a count of tokens, each bucket only keeps the time at which it
+// will be full again, so a key costs a single long. A bucket that is full
+// behaves the same as one that was never made, so buckets that have been idle
+// that long are dropped and only keys that were busy recently take memory.
+//
+// This class is thread safe.
+public final class RateLimiter<KEY> {
+
+  private final ConcurrentMap<KEY, AtomicLong> buckets = new ConcurrentHashMap<>();
+
+  private final long nanosPerPermit;
+  private final long burstNanos;
+
+  private final AtomicLong nextSweep;
+
+  public RateLimiter(double perSecond, int burst) {
+
+    if (perSecond <= 0 || burst < 1) {
+      throw new IllegalArgumentException("Rate and burst must be positive");
+    }
+
+    this.nanosPerPermit = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / perSecond));
+    this.burstNanos = nanosPerPermit * burst;
+    this.nextSweep = new AtomicLong(System.nanoTime() + burstNanos);
+  }
+
+  // Take permits from the key's bucket. Returns false, without taking
+  // anything, if the bucket does not have that many.
+  public boolean tryAcquire(KEY key, int permits) {
+    return tryAcquire(key, permits, System.nanoTime());
+  }
+
+  // The same as tryAcquire(key, permits) but at the given time (in the same
+  // units as System.nanoTime()) so that tests do not depend on the clock.
+  boolean tryAcquire(KEY key, int permits, long now) {
+
+    sweep(now);
+
+    final long cost = nanosPerPermit * permits;
+
+    AtomicLong bucket = buckets.get(key);
+    if (bucket == null) {
+      if (cost > burstNanos) {
+        return false;
+      }
+      bucket = buckets.putIfAbsent(key, new AtomicLong(now + cost));
+      if (bucket == null) {
+        return true;
+      }
+    }
+
+    while (true) {
+      final long full = bucket.get();
+      final long next = Math.max(full, now) + cost;
+      if (next - now > burstNanos) {
+        return false;
+      }
+      if (bucket.compareAndSet(full, next)) {
+        return true;
+      }
+    }
+  }
+
+  // Give back permits taken by "tryAcquire" for work that was not done, so
+  // that the key is not charged again when it retries.
+  public void release(KEY key, int permits) {
+    final AtomicLong bucket = buckets.get(key);
+    if (bucket != null) {
+      // A bucket that goes back past the current time is simply full.
+      bucket.addAndGet(-nanosPerPermit * permits);
+    }
+  }
+
+  // The number of keys that currently have a bucket.
+  public int size() {
+    return buckets.size();
+  }
+
+  // Drop the buckets that are full again. This runs at most once every time
+  // it takes an empty bucket to fill, and only on one thread at a time.
+  private void sweep(long now) {
+
+    final long due = nextSweep.get();
+    if (now - due < 0 || !nextSweep.compareAndSet(due, now + burstNanos)) {
+      return;
+    }
+
+    for (final Map.Entry<KEY, AtomicLong> entry : buckets.entrySet()) {
+      if (entry.getValue().get() - now <= 0) {
+        buckets.remove(entry.getKey(), entry.getValue());
+      }
+    }
+  }
+}
@@ -0,0 +1,61 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+// SERIAL EXECUTOR
+//
+// Runs tasks one at a time, in the order they were given, on the threads of a
+// shared executor. This is used when a group of tasks (like the requests from
+// one client) must stay in order while other groups run in parallel. No thread
+// is held while the group has nothing to do.
+public final class SerialExecutor implements Executor {
+
+  private final Queue<Runnable> tasks = new ArrayDeque<>();
+  private final Executor executor;
+
+  private Runnable active;
+
+  public SerialExecutor(Executor executor) {
+    this.executor = executor;
+  }
+
+  @Override
+  public synchronized void execute(final Runnable task) {
+    tasks.add(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          task.run();
+        } finally {
+          next();
+        }
+      }
+    });
+    if (active == null) {
+      next();
+    }
+  }
+
+  private synchronized void next() {
+    active = tasks.poll();
+    if (active != null) {
+      executor.execute(active);
+    }
+  }
+}
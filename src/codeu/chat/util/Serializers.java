@@ -14,6 +14,7 @@
 
 package codeu.chat.util;
 
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -35,7 +36,7 @@ public final class Serializers {
 
         @Override
         public Boolean read(InputStream in) throws IOException {
-          return in.read() != 0;
+          return readByte(in) != 0;
         }
       };
 
@@ -45,18 +46,24 @@ public final class Serializers {
         @Override
         public void write(OutputStream out, Integer value) throws IOException {
 
-          for (int i = 24; i >= 0; i -= 8) {
-            out.write(0xFF & (value >>> i));
+          final byte[] bytes = new byte[4];
+
+          for (int i = 0; i < 4; i++) {
+            bytes[i] = (byte) (value >>> (24 - 8 * i));
           }
+
+          out.write(bytes);
         }
 
         @Override
         public Integer read(InputStream in) throws IOException {
 
+          final byte[] bytes = readFully(in, new byte[4]);
+
           int value = 0;
 
           for (int i = 0; i < 4; i++) {
-            value = (value << 8) | in.read();
+            value = (value << 8) | (0xFF & bytes[i]);
           }
 
           return value;
@@ -69,47 +76,61 @@ public final class Serializers {
         @Override
         public void write(OutputStream out, Long value) throws IOException {
 
-          for (int i = 56; i >= 0; i -= 8) {
-            out.write((int) (0xFF & (value >>> i)));
+          final byte[] bytes = new byte[8];
+
+          for (int i = 0; i < 8; i++) {
+            bytes[i] = (byte) (value >>> (56 - 8 * i));
           }
+
+          out.write(bytes);
         }
 
         @Override
         public Long read(InputStream in) throws IOException {
 
+          final byte[] bytes = readFully(in, new byte[8]);
+
           long value = 0;
 
           for (int i = 0; i < 8; i++) {
-            value = (value << 8) | in.read();
+            value = (value << 8) | (0xFF & bytes[i]);
           }
 
           return value;
         }
       };
 
-  public static final Serializer<byte[]> BYTES =
-      new Serializer<byte[]>() {
+  public static final Serializer<byte[]> BYTES = BYTES(Integer.MAX_VALUE);
 
-        @Override
-        public void write(OutputStream out, byte[] value) throws IOException {
+  // BYTES
+  //
+  // The same as BYTES, but reading an array longer than "maxLength" fails
+  // before anything is allocated. Use this wherever the length comes from a
+  // client, so that one bad length cannot make the reader allocate gigabytes.
+  public static Serializer<byte[]> BYTES(final int maxLength) {
 
-          INTEGER.write(out, value.length);
-          out.write(value);
-        }
+    return new Serializer<byte[]>() {
 
-        @Override
-        public byte[] read(InputStream input) throws IOException {
+      @Override
+      public void write(OutputStream out, byte[] value) throws IOException {
 
-          final int length = INTEGER.read(input);
-          final byte[] array = new byte[length];
+        INTEGER.write(out, value.length);
+        out.write(value);
+      }
 
-          for (int i = 0; i < length; i++) {
-            array[i] = (byte) input.read();
-          }
+      @Override
+      public byte[] read(InputStream input) throws IOException {
+
+        final int length = INTEGER.read(input);
 
-          return array;
+        if (length < 0 || length > maxLength) {
+          throw new IOException(String.format("Byte array length %d is not allowed", length));
         }
-      };
+
+        return readFully(input, new byte[length]);
+      }
+    };
+  }
 
   public static final Serializer<String> STRING =
       new Serializer<String>() {
@@ -202,8 +223,38 @@ public final class Serializers {
 
       @Override
       public T read(InputStream in) throws IOException {
-        return in.read() == NO_VALUE ? null : serializer.read(in);
+        return readByte(in) == NO_VALUE ? null : serializer.read(in);
       }
     };
   }
+
+  // READ FULLY
+  //
+  // Fill the whole array from the stream. A single read may return fewer
+  // bytes than asked for (e.g. when only part of a packet has arrived), so
+  // keep reading until the array is full.
+  private static byte[] readFully(InputStream in, byte[] bytes) throws IOException {
+
+    int offset = 0;
+
+    while (offset < bytes.length) {
+      final int read = in.read(bytes, offset, bytes.length - offset);
+      if (read < 0) {
+        // The other side has closed the connection. Returning what was read
+        // so far would make a closed connection look like a valid value.
+        throw new EOFException();
+      }
+      offset += read;
+    }
+
+    return bytes;
+  }
+
+  private static int readByte(InputStream in) throws IOException {
+    final int value = in.read();
+    if (value < 0) {
+      throw new EOFException();
+    }
+    return value;
+  }
 }
@@ -14,13 +14,24 @@
 
 package codeu.chat.util;
 
+import com.google.gson.Gson;
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.text.ParseException;
-import java.text.SimpleDateFormat;
+import java.nio.ByteBuffer;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
 import java.util.Date;
 
+@JsonAdapter(Time.GsonAdapter.class)
 public final class Time implements Comparable<Time> {
 
   public static final Serializer<Time> SERIALIZER =
@@ -39,31 +50,59 @@ public final class Time implements Comparable<Time> {
         }
       };
 
-  private static final SimpleDateFormat formatter =
-      new SimpleDateFormat("dd-MMM-yyyy HH:mm:ss.SSS");
+  public static final BufferSerializer<Time> BUFFER_SERIALIZER =
+      new BufferSerializer<Time>() {
 
-  private final Date date;
+        @Override
+        public void write(ByteBuffer out, Time value) throws IOException {
+
+          out.putLong(value.inMs());
+        }
+
+        @Override
+        public Time read(ByteBuffer in) throws IOException {
+
+          return Time.fromMs(in.getLong());
+        }
+      };
+
+  // Unlike SimpleDateFormat, a DateTimeFormatter can be shared between
+  // threads.
+  private static final DateTimeFormatter FORMATTER =
+      DateTimeFormatter.ofPattern("dd-MMM-yyyy HH:mm:ss.SSS");
+
+  private final long ms;
+
+  // The formatted time, made the first time it is asked for. Threads that
+  // race to make it make the same string, so it needs no lock.
+  private String text;
 
   private Time(long totalMs) {
-    this.date = new Date(totalMs);
+    this.ms = totalMs;
   }
 
   public long inMs() {
-    return date.getTime();
+    return ms;
   }
 
   @Override
   public int compareTo(Time other) {
-    return date.compareTo(other.date);
+    return Long.compare(ms, other.ms);
   }
 
   public boolean inRange(Time start, Time end) {
-    return this.compareTo(start) >= 0 && this.compareTo(end) <= 0;
+    return ms >= start.ms && ms <= end.ms;
   }
 
   @Override
   public String toString() {
-    return formatter.format(date);
+    String result = text;
+    if (result == null) {
+      result = FORMATTER.format(
+          LocalDateTime.ofInstant(Instant.ofEpochMilli(ms), ZoneId.systemDefault()));
+      text = result;
+    }
+    return result;
   }
 
   public static Time fromMs(long ms) {
@@ -80,21 +119,21 @@ public final class Time implements Comparable<Time> {
 
   @Override
   public boolean equals(Object other) {
-    if (other == null) return false;
-    if (!(other instanceof Time)) return false;
-    Time that = (Time) other;
-    return this.inMs() == that.inMs();
+    return other instanceof Time && ((Time) other).ms == ms;
   }
 
   @Override
   public int hashCode() {
-    return new Long(inMs()).hashCode();
+    return Long.hashCode(ms);
   }
 
   public static Time parse(String s) {
     try {
-      return new Time(formatter.parse(s).getTime());
-    } catch (ParseException e) {
+      return new Time(LocalDateTime.parse(s, FORMATTER)
+          .atZone(ZoneId.systemDefault())
+          .toInstant()
+          .toEpochMilli());
+    } catch (DateTimeParseException e) {
       e.printStackTrace();
     }
     return Time.now();
@@ -111,4 +150,53 @@ public final class Time implements Comparable<Time> {
   public static Time add(Time t, Duration d) {
     return new Time(t.inMs() + d.millis);
   }
+
+  // GSON ADAPTER
+  //
+  // Writes a time as its milliseconds: {"ms":1500000000000}. Logs saved
+  // before that held a formatted java.util.Date, {"date":"..."}, which is
+  // still read.
+  static final class GsonAdapter extends TypeAdapter<Time> {
+
+    private static final TypeAdapter<Date> DATE = new Gson().getAdapter(Date.class);
+
+    @Override
+    public void write(JsonWriter writer, Time value) throws IOException {
+
+      if (value == null) {
+        writer.nullValue();
+        return;
+      }
+
+      writer.beginObject();
+      writer.name("ms").value(value.ms);
+      writer.endObject();
+    }
+
+    @Override
+    public Time read(JsonReader reader) throws IOException {
+
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        return null;
+      }
+
+      long ms = 0;
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (name.equals("ms")) {
+          ms = reader.nextLong();
+        } else if (name.equals("date") && reader.peek() != JsonToken.NULL) {
+          ms = DATE.read(reader).getTime();
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      return new Time(ms);
+    }
+  }
 }
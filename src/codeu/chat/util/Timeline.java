@@ -17,6 +17,7 @@ package codeu.chat.util;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 // TIMELINE
 //
@@ -24,10 +25,19 @@ import java.util.concurrent.PriorityBlockingQueue;
 // when work needs to be ordered by time. The timeline manages its own threads
 // and there is no way to know outside of the code that is executed when the
 // code has been executed.
+//
+// The timeline holds a limited number of events that have not run yet. Work
+// that the timeline's owner must not lose (like a job that reschedules itself)
+// is added with "schedule" and is always accepted. Work that comes from
+// outside and can be refused (like one event per client request) is added
+// with "offer", which returns false once the timeline is full rather than let
+// it grow without limit.
 public final class Timeline {
 
   private final static Logger.Log LOG = Logger.newLog(Timeline.class);
 
+  public static final int DEFAULT_CAPACITY = 1 << 16;
+
   private static final class Event implements Comparable<Event> {
 
     public final long time;
@@ -47,6 +57,10 @@ public final class Timeline {
   private final BlockingQueue<Event> backlog = new PriorityBlockingQueue<>();
   private final BlockingQueue<Runnable> todo = new LinkedBlockingQueue<>();
 
+  // The number of events that have been added but have not started to run.
+  private final AtomicInteger pending = new AtomicInteger();
+  private final int capacity;
+
   private boolean running = true;
 
   // This thread is used to track the time of events and moves events from the
@@ -81,11 +95,11 @@ public final class Timeline {
           // it will be until it will be executed. That means we can sleep
           // until then.
           if (next.time <= now) {
-            forceAdd(todo, next.callback);
+            todo.add(next.callback);
             sleep = 0;
           } else {
             // Put it back (it's not time).
-            forceAdd(backlog, next);
+            backlog.add(next);
             sleep = next.time - now;
           }
         }
@@ -113,7 +127,9 @@ public final class Timeline {
     public void run() {
       while (running) {
         try {
-          todo.take().run();
+          final Runnable next = todo.take();
+          pending.decrementAndGet();
+          next.run();
         } catch (Exception ex) {
           // Catch all exceptions here to stop any rogue action from
           // take down the timeline.
@@ -126,6 +142,11 @@ public final class Timeline {
   };
 
   public Timeline() {
+    this(DEFAULT_CAPACITY);
+  }
+
+  public Timeline(int capacity) {
+    this.capacity = capacity;
     scheduler.start();
     executor.start();
   }
@@ -150,9 +171,44 @@ public final class Timeline {
   // Add an event to the timeline so that will occur approximately at a fixed
   // point in time.
   public void scheduleAt(long timeMs, Runnable callback) {
-    final Event event = new Event(timeMs, callback);
-    forceAdd(backlog, event);
-    scheduler.interrupt();  // wake it up
+    pending.incrementAndGet();
+    add(new Event(timeMs, callback));
+  }
+
+  // OFFER NOW
+  //
+  // The same as "schedule now" but the event is refused if the timeline is
+  // full. Returns whether the event was added.
+  public boolean offerNow(Runnable callback) {
+    return offerAt(System.currentTimeMillis(), callback);
+  }
+
+  // OFFER IN
+  //
+  // The same as "schedule in" but the event is refused if the timeline is
+  // full. Returns whether the event was added.
+  public boolean offerIn(long ms, Runnable callback) {
+    return offerAt(System.currentTimeMillis() + ms, callback);
+  }
+
+  // OFFER AT
+  //
+  // The same as "schedule at" but the event is refused if the timeline is
+  // full. Returns whether the event was added.
+  public boolean offerAt(long timeMs, Runnable callback) {
+    if (pending.incrementAndGet() > capacity) {
+      pending.decrementAndGet();
+      return false;
+    }
+    add(new Event(timeMs, callback));
+    return true;
+  }
+
+  // SIZE
+  //
+  // The number of events that have not started to run.
+  public int size() {
+    return pending.get();
   }
 
   // STOP
@@ -187,9 +243,10 @@ public final class Timeline {
     }
   }
 
-  private static <T> void forceAdd(BlockingQueue<T> queue, T value) {
-    while (!queue.offer(value)) {
-      LOG.warning("Failed to add to queue, trying again...");
-    }
+  private void add(Event event) {
+    // Neither queue has a bound of its own (the capacity is checked before an
+    // event gets here) so adding never fails.
+    backlog.add(event);
+    scheduler.interrupt();  // wake it up
   }
 }
@@ -14,12 +14,27 @@
 
 package codeu.chat.util;
 
+import com.google.gson.TypeAdapter;
+import com.google.gson.annotations.JsonAdapter;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
 import java.lang.StringBuilder;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.Objects;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 
+// UUID
+//
+// A chain of ids, from the outermost root down to this id. The chain is kept
+// in one flat array and the hash is worked out once, so comparing, hashing
+// and ordering Uuids are simple loops over ints. Uuids are immutable.
+@JsonAdapter(Uuid.GsonAdapter.class)
 public final class Uuid {
 
   public static final Uuid NULL = new Uuid(0);
@@ -29,22 +44,18 @@ public final class Uuid {
     @Override
     public void write(OutputStream out, Uuid value) throws IOException {
 
-      int length = 0;
-      for (Uuid current = value; current != null; current = current.root()) {
-        length += 1;
-      }
-
       // To make things easy, limit the max length to be 255. It should be unlikely
       // that this limit will ever be reached as most chains should be less than
       // three long.
-      if (length >= 0 && length <= 255) {
-        out.write(length);
-      } else {
+      if (value.chain.length > 255) {
         throw new IOException("Max supported Uuid chain length is 255");
       }
 
-      for (Uuid current = value; current != null; current = current.root()) {
-        Serializers.INTEGER.write(out, current.id());
+      out.write(value.chain.length);
+
+      // The ids are written from this id up to the root.
+      for (int i = value.chain.length - 1; i >= 0; i--) {
+        Serializers.INTEGER.write(out, value.chain[i]);
       }
     }
 
@@ -54,19 +65,61 @@ public final class Uuid {
       // "input.read" can only return one by of data so there is no need
       // to check that the bounds of 0 to 255 is respected.
       final int length = in.read();
+
+      if (length < 0) {
+        // The stream ended part way through. Returning null would turn a cut
+        // off message into a missing id somewhere far from here.
+        throw new EOFException();
+      }
+
+      if (length == 0) {
+        // Nothing writes an empty chain, so this is not a Uuid at all. Ids
+        // that may be missing are written with Serializers.NULLABLE.
+        throw new IOException("Uuid chain length 0 is not allowed");
+      }
+
       final int[] chain = new int[length];
 
-      for (int i = 0; i < length; i++) {
+      for (int i = length - 1; i >= 0; i--) {
         chain[i] = Serializers.INTEGER.read(in);
       }
 
-      Uuid head = null;
+      return intern(chain);
+    }
+  };
+
+  public static final BufferSerializer<Uuid> BUFFER_SERIALIZER = new BufferSerializer<Uuid>() {
+
+    @Override
+    public void write(ByteBuffer out, Uuid value) throws IOException {
+
+      if (value.chain.length > 255) {
+        throw new IOException("Max supported Uuid chain length is 255");
+      }
+
+      out.put((byte) value.chain.length);
+
+      for (int i = value.chain.length - 1; i >= 0; i--) {
+        out.putInt(value.chain[i]);
+      }
+    }
+
+    @Override
+    public Uuid read(ByteBuffer in) throws IOException {
+
+      final int length = 0xFF & in.get();
+
+      if (length == 0) {
+        throw new IOException("Uuid chain length 0 is not allowed");
+      }
+
+      final int[] chain = new int[length];
 
       for (int i = length - 1; i >= 0; i--) {
-        head = new Uuid(head, chain[i]);
+        chain[i] = in.getInt();
       }
 
-      return head;
+      return intern(chain);
     }
   };
 
@@ -85,25 +138,57 @@ public final class Uuid {
     Uuid make();
   }
 
-  private final Uuid root;
-  private final int id;
+  // INTERNED
+  //
+  // The same few ids (the server's root, busy users and conversations) are
+  // read over and over. The serializers look in this table before making a
+  // new Uuid, so repeated ids share one instance and compare equal by
+  // reference. Each slot holds the last Uuid whose hash landed there.
+  //
+  // The table is read and written without locking. The worst a race can do
+  // is lose an entry: a Uuid's fields are final, so no thread can see half of
+  // one.
+  //
+  // Setting the system property "codeu.chat.internUuids" to "false" turns the
+  // table off, for comparing against or for workloads where ids rarely repeat
+  // and the lookups are only overhead. Every Uuid is then a new instance.
+  private static final boolean INTERNING =
+      !"false".equalsIgnoreCase(System.getProperty("codeu.chat.internUuids"));
+  private static final int INTERNED_BITS = 12;
+  private static final Uuid[] INTERNED = INTERNING ? new Uuid[1 << INTERNED_BITS] : null;
+
+  // The ids from the outermost root (first) to this id (last). Never empty.
+  private final int[] chain;
+  private final int hash;
 
   public Uuid(Uuid root, int id) {
-    this.root = root;
-    this.id = id;
+    this(append(root, id));
   }
 
   public Uuid(int id) {
-    this.root = null;
-    this.id = id;
+    this(new int[] { id });
+  }
+
+  private Uuid(int[] chain) {
+    this(chain, hash(chain));
+  }
+
+  private Uuid(int[] chain, int hash) {
+    this.chain = chain;
+    this.hash = hash;
   }
 
   public Uuid root() {
-    return root;
+    if (chain.length == 1) {
+      return null;
+    }
+    final int[] root = new int[chain.length - 1];
+    System.arraycopy(chain, 0, root, 0, root.length);
+    return new Uuid(root);
   }
 
   public int id() {
-    return id;
+    return chain[chain.length - 1];
   }
 
   @Override
@@ -112,7 +197,7 @@ public final class Uuid {
   }
 
   @Override
-  public int hashCode() { return hash(this); }
+  public int hashCode() { return hash; }
 
   @Override
   public String toString() {
@@ -121,7 +206,18 @@ public final class Uuid {
 
   // Check if two Uuids share the same root. This check is only one level deep.
   public static boolean related(Uuid a, Uuid b) {
-    return equals(a.root(), b.root());
+
+    if (a.chain.length != b.chain.length) {
+      return false;
+    }
+
+    for (int i = a.chain.length - 2; i >= 0; i--) {
+      if (a.chain[i] != b.chain[i]) {
+        return false;
+      }
+    }
+
+    return true;
   }
 
   // Check if two Uuids represent the same value even if they are different refereces. This
@@ -136,28 +232,125 @@ public final class Uuid {
       return true;
     }
 
-    if (a == null && b != null) {
+    if (a == null || b == null) {
       return false;
     }
 
-    if (a != null && b == null) {
+    if (a.hash != b.hash || a.chain.length != b.chain.length) {
       return false;
     }
 
-    // Check id before checking the root as the ids are more likely to differ
-    // and will short-circuit the logic preventing us from wasting time checking
-    // the full chain.
-    return a.id() == b.id() && equals(a.root(), b.root());
+    // Check from the tail as the ids are more likely to differ there than near
+    // the root.
+    for (int i = a.chain.length - 1; i >= 0; i--) {
+      if (a.chain[i] != b.chain[i]) {
+        return false;
+      }
+    }
 
+    return true;
   }
 
-  // Compute a hash code for the Uuids by walking up the chain.
-  private static int hash(Uuid id) {
+  // COMPARE
+  //
+  // Order Uuids by their ids from the tail up to the root. Where one chain is
+  // a shorter version of the other, the shorter one comes first. Null comes
+  // before everything.
+  public static int compare(Uuid a, Uuid b) {
+
+    if (a == b) {
+      return 0;
+    }
+
+    if (a == null) {
+      return -1;
+    }
+
+    if (b == null) {
+      return 1;
+    }
+
+    int ai = a.chain.length - 1;
+    int bi = b.chain.length - 1;
+
+    for (; ai >= 0 && bi >= 0; ai--, bi--) {
+      final int order = Integer.compare(a.chain[ai], b.chain[bi]);
+      if (order != 0) {
+        return order;
+      }
+    }
+
+    return Integer.compare(ai, bi);
+  }
+
+  // INTERN
+  //
+  // Get the shared instance equal to the given Uuid, making the given Uuid
+  // the shared one if the table does not have it. With interning turned off
+  // this returns the given Uuid.
+  public static Uuid intern(Uuid id) {
+
+    if (id == null || !INTERNING) {
+      return id;
+    }
+
+    final int slot = slot(id.hash);
+    final Uuid found = INTERNED[slot];
+
+    if (equals(found, id)) {
+      return found;
+    }
+
+    INTERNED[slot] = id;
+    return id;
+  }
+
+  private static Uuid intern(int[] chain) {
+
+    final int hash = hash(chain);
+
+    if (!INTERNING) {
+      return new Uuid(chain, hash);
+    }
+
+    final int slot = slot(hash);
+    final Uuid found = INTERNED[slot];
+
+    if (found != null && found.hash == hash && Arrays.equals(found.chain, chain)) {
+      return found;
+    }
+
+    final Uuid made = new Uuid(chain, hash);
+    INTERNED[slot] = made;
+    return made;
+  }
+
+  // Spread the hash so that ids that only differ in their low bits (such as
+  // those from a linear generator) do not crowd into the same slots.
+  private static int slot(int hash) {
+    return (hash * 0x9E3779B9) >>> (32 - INTERNED_BITS);
+  }
+
+  private static int[] append(Uuid root, int id) {
+
+    if (root == null) {
+      return new int[] { id };
+    }
+
+    final int[] chain = new int[root.chain.length + 1];
+    System.arraycopy(root.chain, 0, chain, 0, root.chain.length);
+    chain[root.chain.length] = id;
+    return chain;
+  }
+
+  // Compute a hash code for the chain. Each id adds the same amount no matter
+  // where it is in the chain.
+  private static int hash(int[] chain) {
 
     int hash = 0;
 
-    for (Uuid current = id; current != null; current = current.root()) {
-      hash ^= Objects.hash(current.id());
+    for (final int id : chain) {
+      hash ^= 31 + id;
     }
 
     return hash;
@@ -166,42 +359,104 @@ public final class Uuid {
   // Compute human-readable representation for Uuids
   // Use long internally to avoid negative integers.
   private static String toString(Uuid id) {
-    final StringBuilder build = new StringBuilder();
-    buildString(id, build);
-    return build.substring(1);  // index of 1 to skip initial '.'
-  }
-
-  private static void buildString(Uuid current, StringBuilder build) {
     final long mask = (1L << 32) - 1;  // removes sign extension
-    if (current != null) {
-      buildString(current.root(), build);
-      build.append(".").append(current.id() & mask);
+    final StringBuilder build = new StringBuilder();
+    for (final int link : id.chain) {
+      build.append(".").append(link & mask);
     }
+    return build.substring(1);  // index of 1 to skip initial '.'
   }
 
   // Parse
   //
   // Create a uuid from a sting.
   public static Uuid parse(String string) throws IOException {
-    return parse(null, string.split("\\."), 0);
+
+    final String[] tokens = string.split("\\.");
+    final int[] chain = new int[tokens.length];
+
+    for (int i = 0; i < tokens.length; i++) {
+
+      final long id = Long.parseLong(tokens[i]);
+
+      if ((id >> 32) != 0) {
+        throw new IOException(String.format(
+            "ID value '%s' is too large to be an unsigned 32 bit integer",
+            tokens[i]));
+      }
+
+      chain[i] = (int)(id & 0xFFFFFFFF);
+    }
+
+    return new Uuid(chain);
   }
 
-  private static Uuid parse(final Uuid root, String[] tokens, int index) throws IOException {
+  // GSON ADAPTER
+  //
+  // Keeps the JSON form that saved logs have always used, where each link is
+  // an object with its id and (unless it is the root) its root:
+  //
+  //   {"root":{"id":1},"id":2}
+  static final class GsonAdapter extends TypeAdapter<Uuid> {
 
-    final long id = Long.parseLong(tokens[index]);
+    @Override
+    public void write(JsonWriter writer, Uuid value) throws IOException {
 
-    if ((id >> 32) != 0) {
-      throw new IOException(String.format(
-          "ID value '%s' is too large to be an unsigned 32 bit integer",
-          tokens[index]));
+      if (value == null) {
+        writer.nullValue();
+        return;
+      }
+
+      for (int i = 0; i < value.chain.length; i++) {
+        writer.beginObject();
+        if (i < value.chain.length - 1) {
+          writer.name("root");
+        }
+      }
+
+      for (int i = 0; i < value.chain.length; i++) {
+        writer.name("id").value(value.chain[i]);
+        writer.endObject();
+      }
     }
 
-    final Uuid link = new Uuid(root, (int)(id & 0xFFFFFFFF));
+    @Override
+    public Uuid read(JsonReader reader) throws IOException {
+
+      if (reader.peek() == JsonToken.NULL) {
+        reader.nextNull();
+        return null;
+      }
+
+      final List<Integer> chain = new ArrayList<>();
+      readLink(reader, chain);
 
-    final int nextIndex = index + 1;
+      final int[] ids = new int[chain.size()];
+      for (int i = 0; i < ids.length; i++) {
+        ids[i] = chain.get(i);
+      }
+      return new Uuid(ids);
+    }
 
-    return nextIndex < tokens.length ?
-        parse(link, tokens, nextIndex) :
-        link;
+    // Read one link, adding the ids of its roots to the chain before its own.
+    private static void readLink(JsonReader reader, List<Integer> chain) throws IOException {
+
+      int id = 0;
+
+      reader.beginObject();
+      while (reader.hasNext()) {
+        final String name = reader.nextName();
+        if (name.equals("id")) {
+          id = reader.nextInt();
+        } else if (name.equals("root") && reader.peek() != JsonToken.NULL) {
+          readLink(reader, chain);
+        } else {
+          reader.skipValue();
+        }
+      }
+      reader.endObject();
+
+      chain.add(id);
+    }
   }
 }
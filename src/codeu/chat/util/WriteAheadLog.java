@@ -0,0 +1,242 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.RandomAccessFile;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+// WRITE AHEAD LOG
+//
+// An append-only file of records. Each record is written as its length, a
+// CRC32 of its bytes and then the bytes themselves, so a record that was only
+// partly written when the process stopped is found and dropped when the log
+// is opened again. Nothing that was written before it is lost. Only the last
+// record can have been cut off that way; a damaged record with more of the
+// log after it means the file itself is damaged, and opening it fails.
+//
+// Appends only go as far as a buffer. "sync" makes everything appended so far
+// durable. A thread that calls sync while another thread is forcing the file
+// to disk waits for it and then shares the next force with every other
+// thread that arrived in the meantime (group commit), so many writers that
+// each need their records on disk pay for far fewer forces than writers.
+//
+// This class is thread safe.
+public final class WriteAheadLog implements Closeable {
+
+  private static final Logger.Log LOG = Logger.newLog(WriteAheadLog.class);
+
+  // No record is allowed to be bigger than this. A length past it can only
+  // come from a damaged log.
+  private static final int MAX_RECORD_SIZE = 64 * 1024 * 1024;
+
+  // The length and the checksum.
+  private static final int HEADER_SIZE = 8;
+
+  public interface Reader {
+    void onRecord(byte[] record) throws IOException;
+  }
+
+  // DURABILITY
+  //
+  // When the records written by a change must be on disk.
+  public enum Durability {
+
+    // Before the change is acknowledged. Nothing that a client was told about
+    // is lost in a crash.
+    SYNC,
+
+    // Within one sync period. A crash may lose the changes of the last
+    // period, but writers never wait for the disk.
+    PERIODIC
+  }
+
+  private final RandomAccessFile file;
+  private final FileChannel channel;
+  private final DataOutputStream out;
+  private final CRC32 crc = new CRC32();
+
+  // The number of records appended and the number known to be on disk.
+  // Guarded by "this".
+  private long appended;
+  private long synced;
+  private boolean syncing;
+
+  private WriteAheadLog(RandomAccessFile file) {
+    this.file = file;
+    this.channel = file.getChannel();
+    this.out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+  }
+
+  // OPEN
+  //
+  // Give every record in the file to the reader, oldest first, and then open
+  // the file for more records. The file is made if it does not exist. A last
+  // record that was only partly written is cut off so that new records follow
+  // the last good one. A damaged record anywhere else throws, as cutting it
+  // off would throw away every record after it.
+  public static WriteAheadLog open(File path, Reader reader) throws IOException {
+
+    long good = 0;
+
+    if (path.exists()) {
+      final long size = path.length();
+      try (final DataInputStream in =
+               new DataInputStream(new BufferedInputStream(new FileInputStream(path)))) {
+        final CRC32 check = new CRC32();
+        while (true) {
+          final byte[] record = readRecord(path, in, check, good, size);
+          if (record == null) {
+            break;
+          }
+          reader.onRecord(record);
+          good += HEADER_SIZE + record.length;
+        }
+      }
+    }
+
+    final RandomAccessFile file = new RandomAccessFile(path, "rw");
+
+    if (file.length() > good) {
+      LOG.warning("Dropping %d damaged bytes from the end of %s", file.length() - good, path);
+      file.setLength(good);
+    }
+
+    file.seek(good);
+
+    return new WriteAheadLog(file);
+  }
+
+  // Read the record that starts at "offset" in a file of "size" bytes.
+  // Returns null at the end of the log, which is either the end of the file
+  // or a last record that was not completely written.
+  private static byte[] readRecord(
+      File path, DataInputStream in, CRC32 check, long offset, long size) throws IOException {
+
+    final long remaining = size - offset;
+
+    if (remaining < HEADER_SIZE) {
+      // Nothing left, or a header that was cut off.
+      return null;
+    }
+
+    final int length = in.readInt();
+    final int sum = in.readInt();
+
+    if (length < 0 || length > MAX_RECORD_SIZE) {
+      throw new IOException(String.format(
+          "Damaged record length %d at offset %d of %s", length, offset, path));
+    }
+
+    if (length > remaining - HEADER_SIZE) {
+      // The record runs past the end of the file: it was being written.
+      return null;
+    }
+
+    final byte[] record = new byte[length];
+    in.readFully(record);
+    check.reset();
+    check.update(record, 0, length);
+
+    if ((int) check.getValue() == sum) {
+      return record;
+    }
+
+    if (offset + HEADER_SIZE + length == size) {
+      // The last record is the only one that can have been torn.
+      return null;
+    }
+
+    throw new IOException(String.format(
+        "Damaged record at offset %d of %s, with %d more bytes after it",
+        offset, path, size - offset - HEADER_SIZE - length));
+  }
+
+  // Add a record to the end of the log. It is not durable until the next
+  // sync.
+  public synchronized void append(byte[] record) throws IOException {
+    crc.reset();
+    crc.update(record, 0, record.length);
+    out.writeInt(record.length);
+    out.writeInt((int) crc.getValue());
+    out.write(record);
+    appended++;
+  }
+
+  // The number of records appended since the log was opened.
+  public synchronized long appended() {
+    return appended;
+  }
+
+  // Wait until every record appended before this call is on disk.
+  public void sync() throws IOException {
+
+    // The records that this call's force will cover: everything in the
+    // buffer when it is flushed. Appends made while the file is forced wait
+    // for the next force.
+    final long covered;
+
+    synchronized (this) {
+      final long target = appended;
+      while (syncing) {
+        try {
+          wait();
+        } catch (InterruptedException ex) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for the log");
+        }
+      }
+      if (synced >= target) {
+        return;
+      }
+      out.flush();
+      covered = appended;
+      syncing = true;
+    }
+
+    boolean forced = false;
+    try {
+      channel.force(false);
+      forced = true;
+    } finally {
+      synchronized (this) {
+        if (forced) {
+          synced = Math.max(synced, covered);
+        }
+        syncing = false;
+        notifyAll();
+      }
+    }
+  }
+
+  @Override
+  public void close() throws IOException {
+    sync();
+    synchronized (this) {
+      out.close();
+      file.close();
+    }
+  }
+}
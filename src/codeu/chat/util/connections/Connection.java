@@ -18,10 +18,15 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.InetAddress;
 
 public interface Connection extends Closeable {
 
   InputStream in() throws IOException;
   OutputStream out() throws IOException;
 
+  // The address of the other end of the connection, or null if it is not
+  // known.
+  InetAddress remoteAddress();
+
 }
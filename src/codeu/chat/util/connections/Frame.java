@@ -0,0 +1,59 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import codeu.chat.util.Serializer;
+import codeu.chat.util.Serializers;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+// FRAME
+//
+// A frame is a single request or response sent over a session. As many
+// requests share the same connection, every frame carries the id of the
+// request it belongs to so that a response can be matched with its request.
+// The payload is the exact bytes that would have been written to a one-shot
+// connection (the network code followed by the command's parameters).
+public final class Frame {
+
+  // The largest payload a frame may carry. A frame that claims to be larger
+  // fails to read, which ends the session, rather than being allocated.
+  public static final int MAX_PAYLOAD_BYTES = 16 * 1024 * 1024;
+
+  private static final Serializer<byte[]> PAYLOAD = Serializers.BYTES(MAX_PAYLOAD_BYTES);
+
+  public static final Serializer<Frame> SERIALIZER = new Serializer<Frame>() {
+
+    @Override
+    public void write(OutputStream out, Frame value) throws IOException {
+      Serializers.INTEGER.write(out, value.id);
+      PAYLOAD.write(out, value.payload);
+    }
+
+    @Override
+    public Frame read(InputStream in) throws IOException {
+      return new Frame(Serializers.INTEGER.read(in), PAYLOAD.read(in));
+    }
+  };
+
+  public final int id;
+  public final byte[] payload;
+
+  public Frame(int id, byte[] payload) {
+    this.id = id;
+    this.payload = payload;
+  }
+}
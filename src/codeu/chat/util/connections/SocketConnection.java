@@ -0,0 +1,70 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.connections;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+
+// SOCKET CONNECTION
+//
+// A connection over a socket with buffered streams. The serializers write a
+// few bytes at a time, and without buffering each of those writes (and reads)
+// would be its own system call.
+//
+// Everything written is held until the other side needs it. Asking for the
+// input stream means the request is done and a reply is expected, so any
+// buffered output is flushed first. Closing the connection flushes it too.
+final class SocketConnection implements Connection {
+
+  private final Socket socket;
+  private final InputStream in;
+  private final OutputStream out;
+
+  public SocketConnection(Socket socket) throws IOException {
+    this.socket = socket;
+    this.in = new BufferedInputStream(socket.getInputStream());
+    this.out = new BufferedOutputStream(socket.getOutputStream());
+  }
+
+  @Override
+  public InputStream in() throws IOException {
+    out.flush();
+    return in;
+  }
+
+  @Override
+  public OutputStream out() throws IOException {
+    return out;
+  }
+
+  @Override
+  public InetAddress remoteAddress() {
+    return socket.getInetAddress();
+  }
+
+  @Override
+  public void close() throws IOException {
+    try {
+      out.flush();
+    } finally {
+      socket.close();
+    }
+  }
+}
@@ -0,0 +1,253 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentNavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+
+// CONCURRENT STORE
+//
+// A store that many threads may use at once. It answers the same queries as
+// Store, in the same order: keys in order and, within a key, values in the
+// order they were inserted.
+//
+// Keys are held in a skip list, and each key has its own linked list of
+// values. Readers never lock. Writers only lock the list of the key they
+// change. Iterators are weakly consistent: they see everything that was in
+// the store when they started and not removed since, and may or may not see
+// what is added or removed while they run.
+public final class ConcurrentStore<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
+
+  private static final class Node<VALUE> {
+
+    public final VALUE value;
+    public volatile Node<VALUE> next;
+
+    public Node(VALUE value) {
+      this.value = value;
+    }
+  }
+
+  // The values for one key, in the order they were inserted. A bucket that
+  // has been taken out of the index is dead and takes no more values, so an
+  // insert racing with a remove cannot add to a bucket no one can reach.
+  private static final class Bucket<VALUE> {
+
+    public volatile Node<VALUE> head;
+    private Node<VALUE> tail;
+    private boolean dead = false;
+
+    public Bucket(VALUE value) {
+      this.head = new Node<>(value);
+      this.tail = head;
+    }
+
+    // Returns false, without adding the value, if the bucket is dead.
+    public synchronized boolean append(VALUE value) {
+      if (dead) {
+        return false;
+      }
+      final Node<VALUE> node = new Node<>(value);
+      tail.next = node;
+      tail = node;
+      return true;
+    }
+
+    // Unlink the first node with the value. Readers already on that node
+    // carry on from its next node. The bucket dies if this empties it.
+    public synchronized boolean remove(VALUE value) {
+
+      Node<VALUE> previous = null;
+
+      for (Node<VALUE> node = head; node != null; node = node.next) {
+        if (Objects.equals(node.value, value)) {
+          if (previous == null) {
+            head = node.next;
+          } else {
+            previous.next = node.next;
+          }
+          if (node == tail) {
+            tail = previous;
+          }
+          dead = head == null;
+          return true;
+        }
+        previous = node;
+      }
+
+      return false;
+    }
+
+    public synchronized void kill() {
+      dead = true;
+    }
+  }
+
+  private final ConcurrentNavigableMap<KEY, Bucket<VALUE>> index;
+
+  private final Comparator<KEY> comparator;
+
+  public ConcurrentStore(Comparator<KEY> comparator) {
+    this.index = new ConcurrentSkipListMap<>(comparator);
+    this.comparator = comparator;
+  }
+
+  public void insert(KEY key, VALUE value) {
+
+    while (true) {
+
+      Bucket<VALUE> bucket = index.get(key);
+
+      if (bucket == null) {
+        bucket = index.putIfAbsent(key, new Bucket<>(value));
+        if (bucket == null) {
+          return;
+        }
+      }
+
+      if (bucket.append(value)) {
+        return;
+      }
+
+      // The bucket died after it was found. Make sure it is gone and try
+      // again with a new one.
+      index.remove(key, bucket);
+    }
+  }
+
+  // Remove every value with the given key.
+  public void remove(KEY key) {
+    final Bucket<VALUE> bucket = index.remove(key);
+    if (bucket != null) {
+      bucket.kill();
+    }
+  }
+
+  // Remove one value with the given key, leaving the key's other values where
+  // they are. Returns false if the key does not have the value.
+  public boolean remove(KEY key, VALUE value) {
+
+    final Bucket<VALUE> bucket = index.get(key);
+
+    if (bucket == null || !bucket.remove(value)) {
+      return false;
+    }
+
+    if (bucket.head == null) {
+      index.remove(key, bucket);
+    }
+
+    return true;
+  }
+
+  @Override
+  public VALUE first(KEY key) {
+    final Bucket<VALUE> bucket = index.get(key);
+    final Node<VALUE> head = bucket == null ? null : bucket.head;
+    return head == null ? null : head.value;
+  }
+
+  @Override
+  public Iterable<VALUE> all() {
+    return values(index);
+  }
+
+  @Override
+  public Iterable<VALUE> at(KEY key) {
+    final Bucket<VALUE> bucket = index.get(key);
+    return bucket == null
+        ? Collections.<VALUE>emptyList()
+        : values(Collections.singletonMap(key, bucket));
+  }
+
+  @Override
+  public Iterable<VALUE> after(KEY start) {
+    return values(index.tailMap(start, true));
+  }
+
+  @Override
+  public Iterable<VALUE> before(KEY end) {
+    return values(index.headMap(end, true));
+  }
+
+  @Override
+  public Iterable<VALUE> range(KEY start, KEY end) {
+    // A sub map cannot be made with its ends the wrong way around.
+    return comparator.compare(start, end) > 0
+        ? Collections.<VALUE>emptyList()
+        : values(index.subMap(start, true, end, true));
+  }
+
+  private static <KEY, VALUE> Iterable<VALUE> values(final Map<KEY, Bucket<VALUE>> map) {
+    return new Iterable<VALUE>() {
+      @Override
+      public Iterator<VALUE> iterator() {
+        return new ValueIterator<>(map.values().iterator());
+      }
+    };
+  }
+
+  // Walks every value of every bucket, one bucket after another.
+  private static final class ValueIterator<VALUE> implements Iterator<VALUE> {
+
+    private final Iterator<Bucket<VALUE>> buckets;
+    private Node<VALUE> next;
+
+    public ValueIterator(Iterator<Bucket<VALUE>> buckets) {
+      this.buckets = buckets;
+      this.next = null;
+      skipEmpty();
+    }
+
+    @Override
+    public boolean hasNext() {
+      return next != null;
+    }
+
+    @Override
+    public VALUE next() {
+
+      if (next == null) {
+        throw new NoSuchElementException();
+      }
+
+      final VALUE value = next.value;
+
+      next = next.next;
+      skipEmpty();
+
+      return value;
+    }
+
+    // Move to the head of the next bucket that has one. Buckets can empty
+    // between being found and being read.
+    private void skipEmpty() {
+      while (next == null && buckets.hasNext()) {
+        next = buckets.next().head;
+      }
+    }
+
+    @Override
+    public void remove() {
+      throw new UnsupportedOperationException();
+    }
+  }
+}
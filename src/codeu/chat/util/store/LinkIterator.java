@@ -32,7 +32,8 @@ final class LinkIterator<KEY, VALUE> implements Iterator<VALUE> {
 
   @Override
   public boolean hasNext() {
-    return current != null && comparator.compare(current.key, last.key) <= 0;
+    // There is no last link when nothing is at or below the end of the range.
+    return current != null && last != null && comparator.compare(current.key, last.key) <= 0;
   }
 
   @Override
@@ -17,16 +17,31 @@ package codeu.chat.util.store;
 import java.util.Comparator;
 import java.util.Map;
 import java.util.NavigableMap;
+import java.util.Objects;
 import java.util.TreeMap;
 
 public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
+  // The links that share a key. They always sit next to each other in the
+  // chain, so knowing the first and the last is enough to read them all or
+  // to add another to the end without walking over the rest.
+  private static final class Run<KEY, VALUE> {
+
+    public StoreLink<KEY, VALUE> first;
+    public StoreLink<KEY, VALUE> last;
+
+    public Run(StoreLink<KEY, VALUE> link) {
+      this.first = link;
+      this.last = link;
+    }
+  }
+
   // To make the code simpler - use a dummy link for the first link in this
   // list. The root link is never read from. To avoid reading from this link
   // the "next" value is used more than the "this" or "current" reference.
   private final StoreLink<KEY, VALUE> rootLink = new StoreLink<>(null, null, null);
 
-  private final NavigableMap<KEY, StoreLink<KEY, VALUE>> index;
+  private final NavigableMap<KEY, Run<KEY, VALUE>> index;
 
   private final Comparator<KEY> comparator;
 
@@ -37,44 +52,73 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
 
   public void insert(KEY key, VALUE value) {
 
-    final StoreLink<KEY, VALUE> closestLink = floor(key);
+    final Run<KEY, VALUE> run = index.get(key);
 
-    // Assume that the new value can only come after the current position. Move
-    // through the chain of links until the next link is either the end (null)
-    // or will logically come after the new value.
-    StoreLink<KEY, VALUE> current = (closestLink == null) ? (rootLink) : (closestLink);
-    while (current.next != null && comparator.compare(current.next.key, key) <= 0) {
-      current = current.next;
+    if (run != null) {
+      // Equal keys are kept in the order they were inserted, so the new value
+      // goes at the end of its key's run.
+      final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, value, run.last.next);
+      run.last.next = newLink;
+      run.last = newLink;
+      return;
     }
 
-    // "current.next" may be null, but "current" can never be null. So it
-    // should always be safe to call to current.
-    final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, value, current.next);
-    current.next = newLink;
-
-    // Before adding the link to the index, first check if the hint has an
-    // equal key. If it does - do not add the index.
-    //
-    // There are two reasons for this:
-    //  1. The index class does not handle duplicate keys well (as stated in
-    //     the code for the index).
-    //  2. There is no advantage to having multiple equal keys in the index as
-    //     it would not help with the iterators. As long as the key will map
-    //     to the first link, the other links will always be found. This is
-    //     why the insert is always put at the end of the series.
-    if (closestLink == null || comparator.compare(newLink.key, closestLink.key) != 0) {
-      index.put(key, newLink);
+    // The first value for this key goes straight after the run of the
+    // closest smaller key (or at the start if there is none).
+    final StoreLink<KEY, VALUE> previous = lastBefore(key);
+    final StoreLink<KEY, VALUE> newLink = new StoreLink<>(key, value, previous.next);
+    previous.next = newLink;
+    index.put(key, new Run<>(newLink));
+  }
+
+  // Remove every value with the given key.
+  public void remove(KEY key) {
+
+    final Run<KEY, VALUE> run = index.remove(key);
+
+    if (run != null) {
+      lastBefore(key).next = run.last.next;
     }
   }
 
-  public void remove(KEY key){
-    index.remove(key);
+  // Remove one value with the given key, leaving the key's other values where
+  // they are. Returns false if the key does not have the value.
+  public boolean remove(KEY key, VALUE value) {
+
+    final Run<KEY, VALUE> run = index.get(key);
+
+    if (run == null) {
+      return false;
+    }
+
+    StoreLink<KEY, VALUE> previous = lastBefore(key);
+    StoreLink<KEY, VALUE> current = run.first;
+
+    while (!Objects.equals(current.value, value)) {
+      if (current == run.last) {
+        return false;
+      }
+      previous = current;
+      current = current.next;
+    }
+
+    previous.next = current.next;
+
+    if (run.first == run.last) {
+      index.remove(key);
+    } else if (current == run.first) {
+      run.first = current.next;
+    } else if (current == run.last) {
+      run.last = previous;
+    }
+
+    return true;
   }
 
   @Override
   public VALUE first(KEY key) {
-    final StoreLink<KEY, VALUE> link = index.get(key);
-    return link == null ? null : link.value;
+    final Run<KEY, VALUE> run = index.get(key);
+    return run == null ? null : run.first.value;
   }
 
   @Override
@@ -102,23 +146,30 @@ public final class Store<KEY, VALUE> implements StoreAccessor<KEY, VALUE> {
     return new LinkIterable<KEY, VALUE>(comparator, ceiling(start), floor(end));
   }
 
+  // The link that any link for the given key should follow: the last link of
+  // the closest smaller key, or the root link if there is no smaller key.
+  private StoreLink<KEY, VALUE> lastBefore(KEY key) {
+    final Map.Entry<KEY, Run<KEY, VALUE>> lower = index.lowerEntry(key);
+    return lower == null ? rootLink : lower.getValue().last;
+  }
+
   private StoreLink<KEY, VALUE> first() {
-    return extract(index.firstEntry());
+    final Map.Entry<KEY, Run<KEY, VALUE>> entry = index.firstEntry();
+    return entry == null ? null : entry.getValue().first;
   }
 
   private StoreLink<KEY, VALUE> last() {
-    return extract(index.lastEntry());
+    final Map.Entry<KEY, Run<KEY, VALUE>> entry = index.lastEntry();
+    return entry == null ? null : entry.getValue().last;
   }
 
   private StoreLink<KEY, VALUE> ceiling(KEY key) {
-    return extract(index.ceilingEntry(key));
+    final Map.Entry<KEY, Run<KEY, VALUE>> entry = index.ceilingEntry(key);
+    return entry == null ? null : entry.getValue().first;
   }
 
   private StoreLink<KEY, VALUE> floor(KEY key) {
-    return extract(index.floorEntry(key));
-  }
-
-  private StoreLink<KEY, VALUE> extract(Map.Entry<KEY, StoreLink<KEY, VALUE>> entry) {
-    return entry == null ? null : entry.getValue();
+    final Map.Entry<KEY, Run<KEY, VALUE>> entry = index.floorEntry(key);
+    return entry == null ? null : entry.getValue().last;
   }
 }
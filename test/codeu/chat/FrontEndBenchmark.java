@@ -0,0 +1,257 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat;
+
+import codeu.chat.client.core.Context;
+import codeu.chat.client.core.SessionConnectionSource;
+import codeu.chat.common.Secret;
+import codeu.chat.server.NoOpRelay;
+import codeu.chat.server.SelectorFrontEnd;
+import codeu.chat.server.Server;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.WriteAheadLog;
+import codeu.chat.util.connections.Connection;
+import codeu.chat.util.connections.ConnectionSource;
+import codeu.chat.util.connections.ServerConnectionSource;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+
+// FRONT END BENCHMARK
+//
+// Times many clients at once against each of the server's front ends:
+//
+//   blocking : accept on one thread and run each request on the workers
+//              (the original dispatch).
+//   threads  : serve each connection on a thread of its own. ServerMain
+//              uses virtual threads when the runtime has them; this uses
+//              platform threads, which is what ServerMain falls back to.
+//   nio      : accept and read every connection from one selector thread.
+//
+// Each client sends SERVER_INFO requests, either on a new connection every
+// time ("plain") or over one long-lived session ("session"). Every client
+// connects from its own loopback address so that the per-address rate limits
+// do not decide the result. Requests over the server's queue limit are
+// answered SERVER_BUSY; those are counted separately from the ones answered.
+//
+// This is not part of the tests. Run it with:
+//
+//   $ python build.py run codeu.chat.FrontEndBenchmark [ clients [ requests ] ]
+public final class FrontEndBenchmark {
+
+  private static final String[] FRONT_ENDS = { "blocking", "threads", "nio" };
+
+  public static void main(String[] args) throws Exception {
+
+    final int clients = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+    final int requests = args.length > 1 ? Integer.parseInt(args[1]) : 100;
+
+    // Logging every request would cost more than serving it.
+    java.util.logging.Logger.getLogger("codeu.chat").setLevel(Level.WARNING);
+
+    for (final String frontEnd : FRONT_ENDS) {
+
+      final int port = freePort();
+      final File directory = Files.createTempDirectory("benchmark").toFile();
+      final Server server = new Server(
+          new Uuid(1),
+          Secret.parse("ABCDEF"),
+          new NoOpRelay(),
+          Runtime.getRuntime().availableProcessors(),
+          directory,
+          WriteAheadLog.Durability.PERIODIC);
+
+      final Closeable running = start(frontEnd, server, port);
+
+      // Warm up so that the first timing is not mostly the JIT.
+      time(port, clients / 4 + 1, requests, false);
+      time(port, clients / 4 + 1, requests, true);
+
+      for (final boolean session : new boolean[] { false, true }) {
+        final long start = System.nanoTime();
+        final int done = time(port, clients, requests, session);
+        final long ms = Math.max(1, (System.nanoTime() - start) / 1000000);
+        System.out.format(
+            "%-8s %-7s : %,6d clients x %,5d requests : %,8d ms | %,9d answered/s | %,7d busy\n",
+            frontEnd, session ? "session" : "plain", clients, requests, ms,
+            done * 1000L / ms, clients * requests - done);
+      }
+
+      running.close();
+      for (final File file : directory.listFiles()) {
+        file.delete();
+      }
+      directory.delete();
+    }
+
+    // The server has no way to stop its workers.
+    System.exit(0);
+  }
+
+  // Start accepting connections for the server on a thread of its own.
+  // Closing the result stops accepting.
+  private static Closeable start(String frontEnd, final Server server, int port)
+      throws IOException {
+
+    if ("nio".equals(frontEnd)) {
+      final SelectorFrontEnd selector = new SelectorFrontEnd(server, port);
+      daemon(new Runnable() {
+        @Override
+        public void run() {
+          try {
+            selector.run();
+          } catch (IOException ex) {
+            // Closed.
+          }
+        }
+      });
+      return selector;
+    }
+
+    final boolean threads = "threads".equals(frontEnd);
+    final ConnectionSource source = ServerConnectionSource.forPort(port);
+
+    daemon(new Runnable() {
+      @Override
+      public void run() {
+        try {
+          while (true) {
+            final Connection connection = source.connect();
+            if (threads) {
+              daemon(new Runnable() {
+                @Override
+                public void run() {
+                  server.serveConnection(connection);
+                }
+              });
+            } else {
+              server.handleConnection(connection);
+            }
+          }
+        } catch (IOException ex) {
+          // Closed.
+        }
+      }
+    });
+
+    return source;
+  }
+
+  // Run the clients together and return how many requests were answered.
+  private static int time(final int port, int clients, final int requests, final boolean session)
+      throws InterruptedException {
+
+    final CountDownLatch go = new CountDownLatch(1);
+    final AtomicInteger answered = new AtomicInteger();
+    final Thread[] threads = new Thread[clients];
+
+    for (int i = 0; i < clients; i++) {
+      final int client = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            final ConnectionSource transport = fromAddress(client, port);
+            final ConnectionSource source = session
+                ? new SessionConnectionSource(transport, 1, SessionConnectionSource.DEFAULT_IDLE_MS)
+                : transport;
+            final Context context = new Context(source);
+            go.await();
+            for (int j = 0; j < requests; j++) {
+              if (context.getInfo() != null) {
+                answered.incrementAndGet();
+              }
+            }
+            source.close();
+          } catch (Exception ex) {
+            ex.printStackTrace();
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    go.countDown();
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    return answered.get();
+  }
+
+  // Connections to the local server from 127.0.x.y, a different address for
+  // every client.
+  private static ConnectionSource fromAddress(int client, final int port) throws IOException {
+
+    final InetAddress local = InetAddress.getByAddress(
+        new byte[] { 127, 0, (byte) (client / 250), (byte) (client % 250 + 2) });
+
+    return new ConnectionSource() {
+
+      @Override
+      public Connection connect() throws IOException {
+
+        final Socket socket = new Socket(InetAddress.getLoopbackAddress(), port, local, 0);
+
+        return new Connection() {
+
+          @Override
+          public InputStream in() throws IOException {
+            return socket.getInputStream();
+          }
+
+          @Override
+          public OutputStream out() throws IOException {
+            return socket.getOutputStream();
+          }
+
+          @Override
+          public InetAddress remoteAddress() {
+            return socket.getInetAddress();
+          }
+
+          @Override
+          public void close() throws IOException {
+            socket.close();
+          }
+        };
+      }
+
+      @Override
+      public void close() { }
+    };
+  }
+
+  private static int freePort() throws IOException {
+    try (final ServerSocket socket = new ServerSocket(0)) {
+      return socket.getLocalPort();
+    }
+  }
+
+  private static void daemon(Runnable task) {
+    final Thread thread = new Thread(task);
+    thread.setDaemon(true);
+    thread.start();
+  }
+}
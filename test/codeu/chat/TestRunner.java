@@ -25,10 +25,25 @@ public final class TestRunner {
              codeu.chat.common.SecretTest.class,
              codeu.chat.relay.ServerTest.class,
              codeu.chat.server.BasicControllerTest.class,
+             codeu.chat.server.ChangeFeedTest.class,
+             codeu.chat.server.MessageWaitersTest.class,
              codeu.chat.server.RawControllerTest.class,
+             codeu.chat.server.ModelLogTest.class,
+             codeu.chat.server.SearchIndexTest.class,
+             codeu.chat.server.SubscriptionsTest.class,
+             codeu.chat.server.ViewTest.class,
+             codeu.chat.util.BufferSerializersTest.class,
+             codeu.chat.util.CompactSerializersTest.class,
+             codeu.chat.util.LruCacheTest.class,
+             codeu.chat.util.RateLimiterTest.class,
+             codeu.chat.util.SerialExecutorTest.class,
+             codeu.chat.util.SerializersTest.class,
              codeu.chat.util.TimeTest.class,
+             codeu.chat.util.TimelineTest.class,
              codeu.chat.util.UuidTest.class,
+             codeu.chat.util.WriteAheadLogTest.class,
              codeu.chat.util.TokenizerTest.class,
+             codeu.chat.util.store.ConcurrentStoreTest.class,
              codeu.chat.util.store.StoreTest.class,
              codeu.chat.relay.ServerTest.class
          );
@@ -21,7 +21,10 @@ import codeu.chat.common.Secret;
 import codeu.chat.common.UserType;
 import codeu.chat.util.Time;
 import codeu.chat.util.Uuid;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.List;
 import org.junit.Test;
 
 public final class ServerTest {
@@ -313,4 +316,57 @@ public final class ServerTest {
       assertTrue(Uuid.equals(bundle.id(), new Uuid(3)));
     }
   }
+
+  @Test
+  public void testWriteAllAndRead() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte) 0x00, (byte) 0x01, (byte) 0x02);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    final Relay.Bundle.ConversationComponent conversation =
+        relay.pack(new Uuid(5), "Conversation", Time.now(), new Uuid(6), UserType.MEMBER);
+
+    assertEquals(2, relay.writeAll(
+        team,
+        secret,
+        conversation,
+        Arrays.asList(relay.pack(new Uuid(4), "User", Time.now()),
+                      relay.pack(new Uuid(8), "Other", Time.now())),
+        Arrays.asList(relay.pack(new Uuid(7), "Hello", Time.now()),
+                      relay.pack(new Uuid(9), "World", Time.now()))));
+
+    // Each message is a bundle of its own, in the order written.
+    final List<Relay.Bundle> read = new ArrayList<>(relay.read(team, secret, Uuid.NULL, 8));
+    assertEquals(2, read.size());
+    assertEquals(new Uuid(4), read.get(0).user().id());
+    assertEquals("Hello", read.get(0).message().text());
+    assertEquals(new Uuid(8), read.get(1).user().id());
+    assertEquals("World", read.get(1).message().text());
+    assertEquals(new Uuid(5), read.get(1).conversation().id());
+  }
+
+  @Test
+  public void testWriteAllFailWrongSecret() {
+
+    final Server relay = new Server(8, 8);
+
+    final Uuid team = new Uuid(3);
+    final Secret secret = new Secret((byte) 0x00, (byte) 0x01, (byte) 0x02);
+    final Secret wrongSecret = new Secret((byte) 0x00, (byte) 0x01, (byte) 0x03);
+
+    assertTrue(relay.addTeam(team, secret));
+
+    assertEquals(0, relay.writeAll(
+        team,
+        wrongSecret,
+        relay.pack(new Uuid(5), "Conversation", Time.now(), new Uuid(6), UserType.MEMBER),
+        Arrays.asList(relay.pack(new Uuid(4), "User", Time.now())),
+        Arrays.asList(relay.pack(new Uuid(7), "Hello", Time.now()))));
+
+    assertTrue(relay.read(team, secret, Uuid.NULL, 8).isEmpty());
+  }
 }
@@ -19,9 +19,12 @@ import static org.junit.Assert.*;
 import codeu.chat.common.BasicController;
 import codeu.chat.common.ConversationHeader;
 import codeu.chat.common.Message;
+import codeu.chat.common.MessageDraft;
 import codeu.chat.common.User;
 import codeu.chat.common.UserType;
 import codeu.chat.util.Uuid;
+import java.util.Arrays;
+import java.util.List;
 import org.junit.Before;
 import org.junit.Test;
 
@@ -73,4 +76,37 @@ public final class BasicControllerTest {
 
     assertFalse("Check that the message has a valid reference", message == null);
   }
+
+  @Test
+  public void testAddMessages() {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader conversation =
+        controller.newConversation("conversation", user.id, UserType.NOTSET);
+
+    final List<Message> messages = ((Controller) controller).newMessages(Arrays.asList(
+        new MessageDraft(user.id, conversation.id, "first"),
+        new MessageDraft(Uuid.NULL, conversation.id, "no author"),
+        new MessageDraft(user.id, conversation.id, "second")));
+
+    assertEquals(3, messages.size());
+    assertEquals("first", messages.get(0).content);
+    assertNull(messages.get(1));
+    assertEquals("second", messages.get(2).content);
+    assertEquals(messages.get(0).id, messages.get(2).previous);
+  }
+
+  @Test
+  public void testChangesOnlyCountWhatChanged() {
+
+    final User user = controller.newUser("user");
+    final long changes = model.changes();
+
+    // A message to a conversation that does not exist changes nothing.
+    assertNull(controller.newMessage(user.id, Uuid.NULL, "lost"));
+    assertEquals(changes, model.changes());
+
+    controller.newConversation("conversation", user.id, UserType.NOTSET);
+    assertTrue(model.changes() > changes);
+  }
 }
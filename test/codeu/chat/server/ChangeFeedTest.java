@@ -0,0 +1,113 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import codeu.chat.common.Changes;
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.User;
+import codeu.chat.common.UserType;
+import codeu.chat.util.Uuid;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ChangeFeedTest {
+
+  private Model model;
+  private Controller controller;
+  private ChangeFeed feed;
+
+  @Before
+  public void doBefore() {
+    model = new Model();
+    controller = new Controller(Uuid.NULL, model);
+    feed = new ChangeFeed(Long.MAX_VALUE - 1, 4);
+  }
+
+  @Test
+  public void testNothingChanged() {
+
+    final long start = feed.generation();
+    final Changes changes = feed.since(start);
+
+    assertFalse(changes.all);
+    assertEquals(start, changes.generation);
+    assertTrue(changes.conversations.isEmpty());
+  }
+
+  @Test
+  public void testOnlyChangedConversations() {
+
+    final User user = controller.newUser("user");
+    final ConversationHeader a = controller.newConversation("a", user.id, UserType.NOTSET);
+    final ConversationHeader b = controller.newConversation("b", user.id, UserType.NOTSET);
+    feed.advance(model);
+
+    final long before = feed.generation();
+
+    controller.newMessage(user.id, a.id, "hello");
+    feed.advance(model);
+
+    // The generation wraps around without losing track of what changed.
+    assertEquals(Long.MIN_VALUE, feed.generation());
+
+    final Changes changes = feed.since(before);
+    assertFalse(changes.all);
+    assertFalse(changes.users);
+    assertFalse(changes.conversationList);
+    assertTrue(changes.conversations.contains(a.id));
+    assertFalse(changes.conversations.contains(b.id));
+    assertTrue(changes.removed.isEmpty());
+  }
+
+  @Test
+  public void testChangesAreMerged() {
+
+    final long start = feed.generation();
+
+    final User user = controller.newUser("user");
+    feed.advance(model);
+    final ConversationHeader a = controller.newConversation("a", user.id, UserType.NOTSET);
+    feed.advance(model);
+    controller.removeConversation(a);
+    feed.advance(model);
+
+    final Changes changes = feed.since(start);
+    assertFalse(changes.all);
+    assertTrue(changes.users);
+    assertTrue(changes.conversationList);
+    assertTrue(changes.removed.contains(a.id));
+    assertEquals(feed.generation(), changes.generation);
+  }
+
+  @Test
+  public void testTooOldIsEverything() {
+
+    final long start = feed.generation();
+
+    for (int i = 0; i < 5; i++) {
+      controller.newUser("user" + i);
+      feed.advance(model);
+    }
+
+    // Only the last four generations are kept.
+    assertTrue(feed.since(start).all);
+    assertFalse(feed.since(start + 1).all);
+
+    // Nor can the feed say anything about a generation it never reached.
+    assertTrue(feed.since(feed.generation() + 1).all);
+  }
+}
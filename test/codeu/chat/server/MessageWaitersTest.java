@@ -0,0 +1,75 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.User;
+import codeu.chat.common.UserType;
+import codeu.chat.util.Uuid;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class MessageWaitersTest {
+
+  private final AtomicInteger woken = new AtomicInteger();
+
+  private final MessageWaiters.Waiter waiter = new MessageWaiters.Waiter() {
+    @Override
+    public void onNewMessage() {
+      woken.incrementAndGet();
+    }
+  };
+
+  private Controller controller;
+  private MessageWaiters waiters;
+  private User user;
+  private ConversationHeader conversation;
+
+  @Before
+  public void doBefore() {
+    controller = new Controller(Uuid.NULL, new Model());
+    waiters = new MessageWaiters();
+    controller.addListener(waiters);
+    user = controller.newUser("user");
+    conversation = controller.newConversation("conversation", user.id, UserType.NOTSET);
+  }
+
+  @Test
+  public void testWokenOnceByNewMessage() {
+
+    waiters.park(conversation.id, waiter);
+
+    controller.newMessage(user.id, conversation.id, "first");
+    controller.newMessage(user.id, conversation.id, "second");
+
+    assertEquals(1, woken.get());
+    assertFalse("A woken waiter cannot also time out", waiters.remove(conversation.id, waiter));
+  }
+
+  @Test
+  public void testRemovedWaiterIsNotWoken() {
+
+    waiters.park(conversation.id, waiter);
+
+    assertTrue(waiters.remove(conversation.id, waiter));
+
+    controller.newMessage(user.id, conversation.id, "message");
+
+    assertEquals(0, woken.get());
+  }
+}
@@ -0,0 +1,249 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.ConversationPayload;
+import codeu.chat.common.ConversationPermission;
+import codeu.chat.common.InterestType;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.common.UserType;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.WriteAheadLog;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Type;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.Map;
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.reflect.TypeToken;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ModelLogTest {
+
+  private File directory;
+
+  @Before
+  public void doBefore() throws IOException {
+    directory = Files.createTempDirectory("model").toFile();
+  }
+
+  @After
+  public void doAfter() {
+    for (final File file : directory.listFiles()) {
+      file.delete();
+    }
+    directory.delete();
+  }
+
+  @Test
+  public void testReplay() throws IOException {
+
+    final Model model = open();
+    final Controller controller = new Controller(Uuid.NULL, model);
+
+    final User owner = controller.newUser("owner");
+    final User guest = controller.newUser("guest");
+    final ConversationHeader kept =
+        controller.newConversation("kept", owner.id, UserType.MEMBER);
+    final ConversationHeader removed =
+        controller.newConversation("removed", owner.id, UserType.MEMBER);
+
+    final Message first = controller.newMessage(owner.id, kept.id, "first");
+    final Message second = controller.newMessage(owner.id, kept.id, "second");
+    controller.newMessage(owner.id, removed.id, "gone");
+
+    controller.addUser(owner.id, guest.id, kept.id, UserType.MEMBER);
+    controller.removeConversation(removed);
+    model.syncLog();
+
+    final Model replayed = open();
+
+    assertEquals("guest", replayed.userById().first(guest.id).name);
+    assertNull(replayed.conversationById().first(removed.id));
+    assertEquals("kept", replayed.conversationById().first(kept.id).title);
+
+    final ConversationPayload payload = replayed.conversationPayloadById().first(kept.id);
+    assertTrue(Uuid.equals(first.id, payload.firstMessage));
+    assertTrue(Uuid.equals(second.id, payload.lastMessage));
+    assertTrue(Uuid.equals(second.id, replayed.messageById().first(first.id).next));
+    assertEquals("second", replayed.messageById().first(second.id).content);
+
+    assertTrue(replayed.permissionById().first(kept.id).containsUser(guest.id));
+
+    // New changes go on the end of the same log.
+    new Controller(Uuid.NULL, replayed).newMessage(guest.id, kept.id, "third");
+    replayed.syncLog();
+
+    final Model last = open();
+    final ConversationPayload again = last.conversationPayloadById().first(kept.id);
+    assertEquals("third", last.messageById().first(again.lastMessage).content);
+  }
+
+  @Test
+  public void testMigrateSnapshot() throws IOException {
+
+    final User user = new User(new Uuid(1), "user", Time.now());
+    final ConversationHeader kept =
+        new ConversationHeader(new Uuid(2), user.id, Time.now(), "kept", UserType.MEMBER);
+    final ConversationHeader bare =
+        new ConversationHeader(new Uuid(3), user.id, Time.now(), "bare", UserType.MEMBER);
+    final Message message =
+        new Message(new Uuid(4), Uuid.NULL, Uuid.NULL, Time.now(), user.id, "hello", bare.id);
+    final ConversationPayload payload = new ConversationPayload(bare.id);
+    payload.firstMessage = message.id;
+    payload.lastMessage = message.id;
+
+    // A snapshot as old servers wrote it: users, conversations, permissions,
+    // messages, interests and payloads, one JSON list per line. The second
+    // conversation has no permission.
+    final Type mapType = new TypeToken<Map<Uuid, UserType>>(){}.getType();
+    final Gson gson = new GsonBuilder()
+        .registerTypeAdapter(mapType, new Model().new PermissionAdapter())
+        .create();
+    final String snapshot =
+        gson.toJson(Arrays.asList(user)) + "\n"
+        + gson.toJson(Arrays.asList(kept, bare)) + "\n"
+        + gson.toJson(Arrays.asList(new ConversationPermission(kept.id, user.id, UserType.MEMBER)))
+        + "\n"
+        + gson.toJson(Arrays.asList(message)) + "\n"
+        + "[]\n"
+        + gson.toJson(Arrays.asList(new ConversationPayload(kept.id), payload));
+    Files.write(new File(directory, "serverLog.txt").toPath(), snapshot.getBytes("UTF-8"));
+
+    final Model migrated = open();
+
+    assertEquals("user", migrated.userById().first(user.id).name);
+    assertEquals("kept", migrated.conversationById().first(kept.id).title);
+    assertEquals("bare", migrated.conversationById().first(bare.id).title);
+    assertTrue(migrated.permissionById().first(kept.id).containsUser(user.id));
+    assertNull(migrated.permissionById().first(bare.id));
+
+    final ConversationPayload migratedPayload = migrated.conversationPayloadById().first(bare.id);
+    assertEquals("hello", migrated.messageById().first(migratedPayload.firstMessage).content);
+
+    // The log now holds everything, and the snapshot is not read again.
+    assertTrue(new File(directory, "serverLog.txt").delete());
+    assertEquals("bare", open().conversationById().first(bare.id).title);
+  }
+
+  @Test
+  public void testCompactLog() throws IOException {
+
+    final Model model = open();
+    final Controller controller = new Controller(Uuid.NULL, model);
+
+    final User owner = controller.newUser("owner");
+    final User guest = controller.newUser("guest");
+    final ConversationHeader kept =
+        controller.newConversation("kept", owner.id, UserType.MEMBER);
+    final ConversationHeader removed =
+        controller.newConversation("removed", owner.id, UserType.MEMBER);
+
+    final Message first = controller.newMessage(owner.id, kept.id, "first");
+    final Message second = controller.newMessage(owner.id, kept.id, "second");
+    for (int i = 0; i < 100; i++) {
+      controller.newMessage(owner.id, removed.id, "gone " + i);
+    }
+    controller.addUser(owner.id, guest.id, kept.id, UserType.MEMBER);
+    controller.removeConversation(removed);
+    model.syncLog();
+
+    final File log = new File(directory, "serverLog.wal");
+    final long before = log.length();
+    final long changes = model.changes();
+
+    model.compactLog();
+
+    assertTrue(log.length() < before);
+    assertEquals(changes, model.changes());
+    assertFalse(new File(directory, "serverLog.wal.tmp").exists());
+
+    // Changes made after compacting go on the end of the new log.
+    final Message third = controller.newMessage(guest.id, kept.id, "third");
+    model.syncLog();
+
+    final Model replayed = open();
+
+    assertEquals("guest", replayed.userById().first(guest.id).name);
+    assertNull(replayed.conversationById().first(removed.id));
+    assertTrue(replayed.permissionById().first(kept.id).containsUser(guest.id));
+
+    final ConversationPayload payload = replayed.conversationPayloadById().first(kept.id);
+    assertTrue(Uuid.equals(first.id, payload.firstMessage));
+    assertTrue(Uuid.equals(third.id, payload.lastMessage));
+    assertTrue(Uuid.equals(second.id, replayed.messageById().first(first.id).next));
+    assertTrue(Uuid.equals(third.id, replayed.messageById().first(second.id).next));
+  }
+
+  @Test
+  public void testOpenCompactsLongLog() throws IOException {
+
+    final Model model = open();
+    final Controller controller = new Controller(Uuid.NULL, model);
+
+    final User owner = controller.newUser("owner");
+    final User guest = controller.newUser("guest");
+    final ConversationHeader conversation =
+        controller.newConversation("busy", owner.id, UserType.MEMBER);
+
+    // Every permission change is a record, but only the last one is needed.
+    controller.addUser(owner.id, guest.id, conversation.id, UserType.MEMBER);
+    for (int i = 0; i < 10000; i++) {
+      model.update(model.permissionById().first(conversation.id));
+    }
+    model.syncLog();
+
+    final File log = new File(directory, "serverLog.wal");
+    final long before = log.length();
+
+    final Model replayed = open();
+
+    assertTrue(log.length() < before / 100);
+    assertTrue(replayed.permissionById().first(conversation.id).containsUser(guest.id));
+    assertFalse(replayed.logNeedsCompaction());
+  }
+
+  @Test
+  public void testCompactRemovedInterests() throws IOException {
+
+    final Model model = open();
+
+    final Uuid user = new Uuid(1);
+    final Uuid kept = new Uuid(2);
+    final Uuid dropped = new Uuid(3);
+    model.addInterest(new Uuid(4), user, kept, InterestType.USER, Time.now());
+    model.addInterest(new Uuid(5), user, dropped, InterestType.USER, Time.now());
+    model.removeInterest(user, dropped);
+
+    model.compactLog();
+
+    assertEquals(Arrays.asList(kept), open().interests.get(user));
+  }
+
+  private Model open() throws IOException {
+    final Model model = new Model();
+    model.openLog(directory, WriteAheadLog.Durability.PERIODIC);
+    return model;
+  }
+}
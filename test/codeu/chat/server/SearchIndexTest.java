@@ -0,0 +1,193 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import codeu.chat.common.Message;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SearchIndexTest {
+
+  private static final SearchIndex.Filter EVERYTHING = new SearchIndex.Filter() {
+    @Override
+    public boolean accept(Message message) {
+      return true;
+    }
+  };
+
+  private SearchIndex index;
+  private int nextId;
+
+  @Before
+  public void doBefore() {
+    index = new SearchIndex();
+    nextId = 1;
+  }
+
+  @Test
+  public void testTerms() {
+    assertEquals(
+        Arrays.asList("hello", "world", "42"),
+        Arrays.asList(SearchIndex.terms("Hello, WORLD! hello... 42").toArray()));
+  }
+
+  @Test
+  public void testEveryTermMustMatch() {
+
+    final Message a = add("the quick brown fox");
+    final Message b = add("the lazy dog");
+    final Message c = add("a quick dog");
+
+    assertEquals(Arrays.asList(c, b), index.search("dog", 10, EVERYTHING));
+    assertEquals(Arrays.asList(c), index.search("Quick dog", 10, EVERYTHING));
+    assertEquals(Arrays.asList(a), index.search("fox the", 10, EVERYTHING));
+    assertTrue(index.search("quick cat", 10, EVERYTHING).isEmpty());
+    assertTrue(index.search("", 10, EVERYTHING).isEmpty());
+  }
+
+  @Test
+  public void testNewestFirstUpToLimit() {
+
+    Message last = null;
+    for (int i = 0; i < 1000; i++) {
+      add("filler " + i);
+      last = add("needle " + i);
+    }
+
+    final List<Message> found = index.search("needle", 3, EVERYTHING);
+
+    assertEquals(3, found.size());
+    assertEquals(last, found.get(0));
+    assertEquals("needle 997", found.get(2).content);
+
+    // A rare word next to a common one.
+    final List<Message> rare = index.search("needle 500", 10, EVERYTHING);
+    assertEquals(1, rare.size());
+    assertEquals("needle 500", rare.get(0).content);
+  }
+
+  @Test
+  public void testRemove() {
+
+    final Message a = add("hello there");
+    final Message b = add("hello again");
+
+    index.remove(b);
+
+    assertEquals(Arrays.asList(a), index.search("hello", 10, EVERYTHING));
+  }
+
+  @Test
+  public void testRemovedNumbersAreReclaimed() {
+
+    final List<Message> kept = new ArrayList<>();
+    for (int i = 0; i < 3000; i++) {
+      final Message message = add("common " + (i % 3 == 0 ? "kept" : "gone") + " " + i);
+      if (i % 3 == 0) {
+        kept.add(message);
+      } else {
+        index.remove(message);
+      }
+    }
+
+    // Two thirds of the numbers died, so the index was compacted along the
+    // way and only holds a little more than the live messages.
+    assertTrue(index.documents() < 2 * kept.size());
+
+    assertTrue(index.search("gone", 10, EVERYTHING).isEmpty());
+    assertEquals(Arrays.asList(kept.get(999), kept.get(998)),
+                 index.search("common", 2, EVERYTHING));
+    assertEquals(Arrays.asList(kept.get(500)), index.search("kept 1500", 10, EVERYTHING));
+
+    // Messages added after compacting are still the newest, and removing
+    // one that was renumbered still works.
+    final Message last = add("common newest");
+    index.remove(kept.get(999));
+    assertEquals(Arrays.asList(last, kept.get(998)), index.search("common", 2, EVERYTHING));
+  }
+
+  @Test
+  public void testSearchOneConversation() {
+
+    final Uuid first = new Uuid(1000);
+    final Uuid second = new Uuid(1001);
+
+    final Message a = add(first, "hello there");
+    final Message b = add(second, "hello again");
+    final Message c = add(first, "hello once more");
+
+    assertEquals(Arrays.asList(c, a), index.search(first, "hello", 10, EVERYTHING));
+    assertEquals(Arrays.asList(b), index.search(second, "hello", 10, EVERYTHING));
+    assertTrue(index.search(second, "there", 10, EVERYTHING).isEmpty());
+    assertTrue(index.search(new Uuid(1002), "hello", 10, EVERYTHING).isEmpty());
+
+    // Removing every message in a conversation drops its postings.
+    index.remove(b);
+    assertTrue(index.search(second, "hello", 10, EVERYTHING).isEmpty());
+    assertEquals(Arrays.asList(c, a), index.search("hello", 10, EVERYTHING));
+  }
+
+  @Test
+  public void testOneConversationAfterCompacting() {
+
+    final Uuid busy = new Uuid(1000);
+    final Uuid quiet = new Uuid(1001);
+
+    final Message first = add(busy, "rare first");
+    for (int i = 0; i < 3000; i++) {
+      index.remove(add(busy, "rare noise " + i));
+    }
+    final Message kept = add(quiet, "rare word");
+    final Message last = add(busy, "rare again");
+
+    assertTrue(index.documents() < 3000);
+    assertEquals(Arrays.asList(kept), index.search(quiet, "rare", 10, EVERYTHING));
+    assertEquals(Arrays.asList(last, first), index.search(busy, "rare", 10, EVERYTHING));
+  }
+
+  @Test
+  public void testFilter() {
+
+    final Message a = add("hello there");
+    add("hello again");
+
+    final SearchIndex.Filter onlyA = new SearchIndex.Filter() {
+      @Override
+      public boolean accept(Message message) {
+        return message == a;
+      }
+    };
+
+    assertEquals(Arrays.asList(a), index.search("hello", 10, onlyA));
+  }
+
+  private Message add(String content) {
+    return add(Uuid.NULL, content);
+  }
+
+  private Message add(Uuid conversation, String content) {
+    final Message message = new Message(
+        new Uuid(nextId++), Uuid.NULL, Uuid.NULL, Time.now(), Uuid.NULL, content, conversation);
+    index.add(message);
+    return message;
+  }
+}
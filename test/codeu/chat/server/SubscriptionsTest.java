@@ -0,0 +1,227 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.NetworkCode;
+import codeu.chat.common.User;
+import codeu.chat.common.UserType;
+import codeu.chat.util.Serializers;
+import codeu.chat.util.Uuid;
+import codeu.chat.util.connections.Connection;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SubscriptionsTest {
+
+  private static final Executor DIRECT = new Executor() {
+    @Override
+    public void execute(Runnable task) {
+      task.run();
+    }
+  };
+
+  // Takes tasks and never runs them, like a subscriber that stopped reading.
+  private static final Executor STUCK = new Executor() {
+    @Override
+    public void execute(Runnable task) { }
+  };
+
+  private final ByteArrayOutputStream pushed = new ByteArrayOutputStream();
+  private boolean closed;
+
+  private final Connection connection = new Connection() {
+
+    @Override
+    public InputStream in() {
+      return new ByteArrayInputStream(new byte[0]);
+    }
+
+    @Override
+    public OutputStream out() {
+      return pushed;
+    }
+
+    @Override
+    public InetAddress remoteAddress() {
+      return null;
+    }
+
+    @Override
+    public void close() {
+      closed = true;
+    }
+  };
+
+  private Controller controller;
+  private Subscriptions subscriptions;
+  private User user;
+
+  @Before
+  public void doBefore() {
+    controller = new Controller(Uuid.NULL, new Model());
+    subscriptions = new Subscriptions();
+    controller.addListener(subscriptions);
+    user = controller.newUser("user");
+  }
+
+  @Test
+  public void testPushesOnlySubscribedConversations() throws IOException {
+
+    final ConversationHeader followed =
+        controller.newConversation("followed", user.id, UserType.NOTSET);
+    final ConversationHeader ignored =
+        controller.newConversation("ignored", user.id, UserType.NOTSET);
+
+    subscriptions.subscribe(connection, DIRECT, Arrays.asList(followed.id));
+
+    controller.newMessage(user.id, ignored.id, "not pushed");
+    final Message message = controller.newMessage(user.id, followed.id, "pushed");
+
+    final InputStream in = new ByteArrayInputStream(pushed.toByteArray());
+    assertEquals(NetworkCode.SUBSCRIBE_RESPONSE, (int) Serializers.INTEGER.read(in));
+    assertEquals(NetworkCode.NEW_MESSAGE_EVENT, (int) Serializers.INTEGER.read(in));
+    assertEquals(message.id, Message.SERIALIZER.read(in).id);
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testUnsubscribe() {
+
+    final ConversationHeader conversation =
+        controller.newConversation("conversation", user.id, UserType.NOTSET);
+
+    subscriptions.unsubscribe(
+        subscriptions.subscribe(connection, DIRECT, Arrays.asList(conversation.id)));
+    final int before = pushed.size();
+
+    controller.newMessage(user.id, conversation.id, "not pushed");
+
+    assertEquals(before, pushed.size());
+  }
+
+  @Test
+  public void testSlowSubscriberIsDropped() {
+
+    final ConversationHeader conversation =
+        controller.newConversation("conversation", user.id, UserType.NOTSET);
+
+    subscriptions.subscribe(connection, STUCK, Arrays.asList(conversation.id));
+
+    final char[] body = new char[64 * 1024];
+    Arrays.fill(body, 'x');
+
+    for (int i = 0; i < 32 && !closed; i++) {
+      controller.newMessage(user.id, conversation.id, new String(body));
+    }
+
+    assertTrue(closed);
+  }
+
+  @Test
+  public void testStuckWriteIsDropped() throws Exception {
+
+    final ConversationHeader conversation =
+        controller.newConversation("conversation", user.id, UserType.NOTSET);
+
+    // A connection whose writes block until it is closed, like one whose
+    // reader has stopped and whose socket buffer is full.
+    final CountDownLatch writing = new CountDownLatch(1);
+    final CountDownLatch released = new CountDownLatch(1);
+    final Connection blocked = new Connection() {
+
+      @Override
+      public InputStream in() {
+        return new ByteArrayInputStream(new byte[0]);
+      }
+
+      @Override
+      public OutputStream out() {
+        return new OutputStream() {
+          @Override
+          public void write(int b) throws IOException {
+            writing.countDown();
+            try {
+              released.await();
+            } catch (InterruptedException ex) {
+              throw new IOException(ex);
+            }
+            throw new IOException("closed");
+          }
+        };
+      }
+
+      @Override
+      public InetAddress remoteAddress() {
+        return null;
+      }
+
+      @Override
+      public void close() {
+        released.countDown();
+      }
+    };
+
+    final ExecutorService executor = Executors.newSingleThreadExecutor();
+    try {
+      subscriptions.subscribe(blocked, executor, Arrays.asList(conversation.id));
+      assertTrue(writing.await(10, TimeUnit.SECONDS));
+
+      // Not stuck for long enough yet.
+      assertEquals(0, subscriptions.dropStuck(System.nanoTime()));
+
+      final long later = System.nanoTime() + TimeUnit.SECONDS.toNanos(11);
+      assertEquals(1, subscriptions.dropStuck(later));
+      assertEquals(0, released.getCount());
+
+      // The thread the write held is free again.
+      executor.submit(new Runnable() {
+        @Override
+        public void run() { }
+      }).get(10, TimeUnit.SECONDS);
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  @Test
+  public void testWaitingForThreadIsNotStuck() {
+
+    final ConversationHeader conversation =
+        controller.newConversation("conversation", user.id, UserType.NOTSET);
+
+    subscriptions.subscribe(connection, STUCK, Arrays.asList(conversation.id));
+    controller.newMessage(user.id, conversation.id, "queued");
+
+    final long later = System.nanoTime() + TimeUnit.SECONDS.toNanos(11);
+    assertEquals(0, subscriptions.dropStuck(later));
+    assertFalse(closed);
+  }
+}
@@ -0,0 +1,134 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.server;
+
+import static org.junit.Assert.*;
+
+import codeu.chat.common.ConversationHeader;
+import codeu.chat.common.Message;
+import codeu.chat.common.User;
+import codeu.chat.common.UserType;
+import codeu.chat.util.Time;
+import codeu.chat.util.Uuid;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ViewTest {
+
+  private Controller controller;
+  private View view;
+
+  private ConversationHeader conversation;
+  private final List<Message> messages = new ArrayList<>();
+
+  @Before
+  public void doBefore() {
+
+    final Model model = new Model();
+    controller = new Controller(Uuid.NULL, model);
+    view = new View(model);
+
+    final User user = controller.newUser("user");
+    conversation = controller.newConversation("conversation", user.id, UserType.NOTSET);
+
+    for (int i = 0; i < 5; i++) {
+      messages.add(controller.newMessage(user.id, conversation.id, "message " + i));
+    }
+  }
+
+  @Test
+  public void testMessagesRangeFromStart() {
+
+    final List<Message> page = new ArrayList<>(view.getMessages(conversation.id, Uuid.NULL, 3));
+
+    assertEquals(messages.subList(0, 3), page);
+  }
+
+  @Test
+  public void testMessagesRangeFromCursor() {
+
+    final List<Message> page =
+        new ArrayList<>(view.getMessages(conversation.id, messages.get(2).id, 10));
+
+    assertEquals(messages.subList(3, 5), page);
+  }
+
+  @Test
+  public void testMessagesRangeWithForeignCursor() {
+
+    final User other = controller.newUser("other");
+    final ConversationHeader otherConversation =
+        controller.newConversation("other", other.id, UserType.NOTSET);
+
+    assertTrue(view.getMessages(otherConversation.id, messages.get(0).id, 10).isEmpty());
+  }
+
+  @Test
+  public void testConversationsSince() {
+
+    final Time before = Time.now();
+    final User other = controller.newUser("other");
+    final ConversationHeader added = controller.newConversation("added", other.id, UserType.NOTSET);
+
+    assertTrue(view.getConversationsSince(before).contains(added));
+    assertTrue(view.getRemovedConversationsSince(before).isEmpty());
+
+    controller.removeConversation(added);
+
+    assertFalse(view.getConversationsSince(before).contains(added));
+    assertTrue(view.getRemovedConversationsSince(before).contains(added.id));
+  }
+
+  @Test
+  public void testRemoveConversation() {
+
+    final User user = controller.userById(conversation.creator);
+    final ConversationHeader sameTitle =
+        controller.newConversation("conversation", user.id, UserType.NOTSET);
+
+    controller.removeConversation(conversation);
+
+    assertNull(view.findConversation(conversation.id));
+    assertTrue(view.getConversationPayloads(Arrays.asList(conversation.id)).isEmpty());
+    for (final Message message : messages) {
+      assertNull(view.findMessage(message.id));
+    }
+
+    // Another conversation with the same title is not touched.
+    assertEquals(sameTitle, view.findConversation(sameTitle.id));
+    assertTrue(view.getConversations().contains(sameTitle));
+    assertFalse(view.getConversations().contains(conversation));
+  }
+
+  @Test
+  public void testSearchMessages() {
+
+    final User user = controller.userById(conversation.creator);
+    final User stranger = controller.newUser("stranger");
+
+    final List<Message> found =
+        new ArrayList<>(view.searchMessages(user.id, Uuid.NULL, "MESSAGE", 2));
+
+    // Newest first.
+    assertEquals(Arrays.asList(messages.get(4), messages.get(3)), found);
+
+    // Only members of the conversation can find its messages.
+    assertTrue(view.searchMessages(stranger.id, Uuid.NULL, "message", 10).isEmpty());
+    assertTrue(view.searchMessages(stranger.id, conversation.id, "message", 10).isEmpty());
+  }
+}
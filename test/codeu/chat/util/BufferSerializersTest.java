@@ -0,0 +1,88 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Collection;
+import org.junit.Test;
+
+public final class BufferSerializersTest {
+
+  @Test
+  public void testSameBytesAsStreams() throws IOException {
+
+    final Uuid id = new Uuid(new Uuid(7), 42);
+    final Time time = Time.fromMs(123456789L);
+    final Collection<String> strings = Arrays.asList("a", "bc", "");
+
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(stream, id);
+    Time.SERIALIZER.write(stream, time);
+    Serializers.COLLECTION(Serializers.STRING).write(stream, strings);
+    Serializers.NULLABLE(Serializers.INTEGER).write(stream, null);
+
+    final ByteBuffer buffer = ByteBuffer.allocateDirect(stream.size());
+    Uuid.BUFFER_SERIALIZER.write(buffer, id);
+    Time.BUFFER_SERIALIZER.write(buffer, time);
+    BufferSerializers.COLLECTION(BufferSerializers.STRING).write(buffer, strings);
+    BufferSerializers.NULLABLE(BufferSerializers.INTEGER).write(buffer, null);
+    buffer.flip();
+
+    final byte[] bytes = new byte[buffer.remaining()];
+    buffer.duplicate().get(bytes);
+    assertArrayEquals(stream.toByteArray(), bytes);
+
+    assertEquals(id, Uuid.BUFFER_SERIALIZER.read(buffer));
+    assertEquals(time.inMs(), Time.BUFFER_SERIALIZER.read(buffer).inMs());
+    assertEquals(strings, BufferSerializers.COLLECTION(BufferSerializers.STRING).read(buffer));
+    assertNull(BufferSerializers.NULLABLE(BufferSerializers.INTEGER).read(buffer));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test
+  public void testReadsHeapBufferWrittenByStream() throws IOException {
+
+    final ByteArrayOutputStream stream = new ByteArrayOutputStream();
+    stream.write(99);  // so the string does not start at the array's start
+    Serializers.STRING.write(stream, "hello");
+
+    final ByteBuffer buffer = ByteBuffer.wrap(stream.toByteArray());
+    buffer.get();
+
+    assertEquals("hello", BufferSerializers.STRING.read(buffer));
+    assertFalse(buffer.hasRemaining());
+  }
+
+  @Test(expected = IOException.class)
+  public void testBadLength() throws IOException {
+
+    final ByteBuffer buffer = ByteBuffer.allocate(8);
+    buffer.putInt(1000);
+    buffer.flip();
+
+    BufferSerializers.BYTES.read(buffer);
+  }
+
+  @Test(expected = IOException.class)
+  public void testEmptyUuidChain() throws IOException {
+    Uuid.BUFFER_SERIALIZER.read(ByteBuffer.wrap(new byte[] { 0 }));
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+
+public final class CompactSerializersTest {
+
+  private static final int[] INTS = { 0, 1, 127, 128, 16383, 16384, Integer.MAX_VALUE, -1 };
+  private static final long[] LONGS = { 0, 1, -1, 63, -64, 64, Long.MAX_VALUE, Long.MIN_VALUE };
+
+  @Test
+  public void testVarintRoundTrip() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (final int value : INTS) {
+      CompactSerializers.VARINT.write(out, value);
+    }
+
+    final InputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (final int value : INTS) {
+      assertEquals(value, (int) CompactSerializers.VARINT.read(in));
+    }
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testVarlongRoundTrip() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    for (final long value : LONGS) {
+      CompactSerializers.VARLONG.write(out, value);
+    }
+
+    final InputStream in = new ByteArrayInputStream(out.toByteArray());
+    for (final long value : LONGS) {
+      assertEquals(value, (long) CompactSerializers.VARLONG.read(in));
+    }
+    assertEquals(-1, in.read());
+  }
+
+  @Test
+  public void testSmallValuesAreOneByte() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    CompactSerializers.VARINT.write(out, 127);
+    CompactSerializers.VARLONG.write(out, -64L);
+    CompactSerializers.STRING.write(out, "");
+
+    assertEquals(3, out.size());
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import org.junit.Test;
+
+public final class LruCacheTest {
+
+  @Test
+  public void testEvictsLeastRecentlyUsed() {
+
+    final LruCache<Integer, String> cache = new LruCache<>(2);
+
+    cache.put(1, "one");
+    cache.put(2, "two");
+    cache.get(1);
+    cache.put(3, "three");
+
+    assertEquals(2, cache.size());
+    assertEquals("one", cache.get(1));
+    assertNull(cache.get(2));
+    assertEquals("three", cache.get(3));
+  }
+
+  @Test
+  public void testClear() {
+
+    final LruCache<Integer, String> cache = new LruCache<>(2);
+
+    cache.put(1, "one");
+    cache.clear();
+
+    assertEquals(0, cache.size());
+    assertNull(cache.get(1));
+  }
+
+  @Test
+  public void testRemove() {
+
+    final LruCache<Integer, String> cache = new LruCache<>(2);
+
+    cache.put(1, "one");
+    cache.put(2, "two");
+
+    assertEquals("one", cache.remove(1));
+    assertNull(cache.remove(1));
+    assertEquals(1, cache.size());
+    assertEquals("two", cache.values().iterator().next());
+
+    // Reading the values does not count as a use.
+    cache.put(1, "one");
+    cache.values();
+    cache.put(3, "three");
+    assertNull(cache.get(2));
+  }
+}
@@ -0,0 +1,105 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.TimeUnit;
+import org.junit.Test;
+
+public final class RateLimiterTest {
+
+  private static final long SECOND = TimeUnit.SECONDS.toNanos(1);
+
+  @Test
+  public void testBurst() {
+
+    final RateLimiter<String> limiter = new RateLimiter<>(10, 5);
+    final long now = System.nanoTime();
+
+    for (int i = 0; i < 5; i++) {
+      assertTrue(limiter.tryAcquire("a", 1, now));
+    }
+    assertFalse(limiter.tryAcquire("a", 1, now));
+
+    // Other keys have their own buckets.
+    assertTrue(limiter.tryAcquire("b", 5, now));
+  }
+
+  @Test
+  public void testRefill() {
+
+    final RateLimiter<String> limiter = new RateLimiter<>(10, 5);
+    final long now = System.nanoTime();
+
+    assertTrue(limiter.tryAcquire("a", 5, now));
+    assertFalse(limiter.tryAcquire("a", 1, now));
+
+    // A tenth of a second earns one permit.
+    assertTrue(limiter.tryAcquire("a", 1, now + SECOND / 10));
+    assertFalse(limiter.tryAcquire("a", 1, now + SECOND / 10));
+
+    // A long wait never earns more than the burst.
+    assertFalse(limiter.tryAcquire("a", 6, now + 10 * SECOND));
+    assertTrue(limiter.tryAcquire("a", 5, now + 10 * SECOND));
+  }
+
+  @Test
+  public void testTooManyPermits() {
+
+    final RateLimiter<String> limiter = new RateLimiter<>(10, 5);
+    final long now = System.nanoTime();
+
+    assertFalse(limiter.tryAcquire("a", 6, now));
+
+    // The failed attempt took nothing.
+    assertTrue(limiter.tryAcquire("a", 5, now));
+  }
+
+  @Test
+  public void testRelease() {
+
+    final RateLimiter<String> limiter = new RateLimiter<>(10, 5);
+    final long now = System.nanoTime();
+
+    assertTrue(limiter.tryAcquire("a", 5, now));
+    assertFalse(limiter.tryAcquire("a", 3, now));
+
+    // Permits given back can be taken again.
+    limiter.release("a", 3);
+    assertTrue(limiter.tryAcquire("a", 3, now));
+    assertFalse(limiter.tryAcquire("a", 1, now));
+
+    // Giving back to a key without a bucket does nothing.
+    limiter.release("b", 5);
+    assertEquals(1, limiter.size());
+  }
+
+  @Test
+  public void testIdleBucketsExpire() {
+
+    final RateLimiter<String> limiter = new RateLimiter<>(10, 5);
+    final long now = System.nanoTime();
+
+    assertTrue(limiter.tryAcquire("a", 1, now));
+    assertTrue(limiter.tryAcquire("b", 5, now));
+    assertEquals(2, limiter.size());
+
+    // Both buckets are full again a second later, so only the new key's
+    // bucket is kept.
+    assertTrue(limiter.tryAcquire("c", 1, now + SECOND));
+    assertEquals(1, limiter.size());
+  }
+}
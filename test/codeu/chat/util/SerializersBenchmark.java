@@ -0,0 +1,205 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+// SERIALIZERS BENCHMARK
+//
+// Times writing and reading records shaped like the ones the server sends (an
+// int, a long and a short byte array) two ways:
+//
+//   per-byte : the serializers as they used to be, reading and writing one
+//              byte per call on unbuffered streams.
+//   bulk     : "Serializers" as it is now, writing whole values at once and
+//              reading with "readFully", on buffered streams the way
+//              "SocketConnection" sets them up.
+//
+// Each is timed in memory, where only the cost of the calls shows, and over a
+// loopback socket, where every unbuffered call is a system call.
+//
+// This is not part of the tests. Run it with:
+//
+//   $ python build.py run codeu.chat.util.SerializersBenchmark [ records ]
+public final class SerializersBenchmark {
+
+  // How many bytes of payload each record carries.
+  private static final int PAYLOAD_BYTES = 64;
+
+  // The serializers before bulk reads and writes.
+  private static final Serializer<Integer> PER_BYTE_INTEGER = new Serializer<Integer>() {
+
+    @Override
+    public void write(OutputStream out, Integer value) throws IOException {
+      for (int i = 24; i >= 0; i -= 8) {
+        out.write(0xFF & (value >>> i));
+      }
+    }
+
+    @Override
+    public Integer read(InputStream in) throws IOException {
+      int value = 0;
+      for (int i = 0; i < 4; i++) {
+        value = (value << 8) | in.read();
+      }
+      return value;
+    }
+  };
+
+  private static final Serializer<Long> PER_BYTE_LONG = new Serializer<Long>() {
+
+    @Override
+    public void write(OutputStream out, Long value) throws IOException {
+      for (int i = 56; i >= 0; i -= 8) {
+        out.write((int) (0xFF & (value >>> i)));
+      }
+    }
+
+    @Override
+    public Long read(InputStream in) throws IOException {
+      long value = 0;
+      for (int i = 0; i < 8; i++) {
+        value = (value << 8) | in.read();
+      }
+      return value;
+    }
+  };
+
+  private static final Serializer<byte[]> PER_BYTE_BYTES = new Serializer<byte[]>() {
+
+    @Override
+    public void write(OutputStream out, byte[] value) throws IOException {
+      PER_BYTE_INTEGER.write(out, value.length);
+      out.write(value);
+    }
+
+    @Override
+    public byte[] read(InputStream in) throws IOException {
+      final byte[] array = new byte[PER_BYTE_INTEGER.read(in)];
+      for (int i = 0; i < array.length; i++) {
+        array[i] = (byte) in.read();
+      }
+      return array;
+    }
+  };
+
+  public static void main(String[] args) throws Exception {
+
+    final int records = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+
+    // Warm up both so that the first timing is not mostly the JIT.
+    timeMemory(records / 10, false);
+    timeMemory(records / 10, true);
+    timeSocket(records / 10, false);
+    timeSocket(records / 10, true);
+
+    System.out.format("%,10d records in memory : per-byte %,8d ms | bulk %,8d ms\n",
+        records, timeMemory(records, false), timeMemory(records, true));
+    System.out.format("%,10d records on socket : per-byte %,8d ms | bulk %,8d ms\n",
+        records, timeSocket(records, false), timeSocket(records, true));
+  }
+
+  private static long timeMemory(int records, boolean bulk) throws IOException {
+
+    final long start = System.nanoTime();
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    write(bulk ? new BufferedOutputStream(bytes) : bytes, records, bulk);
+
+    final InputStream in = new ByteArrayInputStream(bytes.toByteArray());
+    read(bulk ? new BufferedInputStream(in) : in, records, bulk);
+
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  private static long timeSocket(final int records, final boolean bulk) throws Exception {
+
+    try (final ServerSocket server = new ServerSocket(0, 1, InetAddress.getLoopbackAddress())) {
+
+      final Thread writer = new Thread() {
+        @Override
+        public void run() {
+          try (final Socket socket = new Socket(server.getInetAddress(), server.getLocalPort())) {
+            final OutputStream out = socket.getOutputStream();
+            write(bulk ? new BufferedOutputStream(out) : out, records, bulk);
+          } catch (IOException ex) {
+            ex.printStackTrace();
+          }
+        }
+      };
+
+      final long start = System.nanoTime();
+      writer.start();
+
+      try (final Socket socket = server.accept()) {
+        final InputStream in = socket.getInputStream();
+        read(bulk ? new BufferedInputStream(in) : in, records, bulk);
+      }
+
+      writer.join();
+      return (System.nanoTime() - start) / 1000000;
+    }
+  }
+
+  private static void write(OutputStream out, int records, boolean bulk) throws IOException {
+
+    final byte[] payload = new byte[PAYLOAD_BYTES];
+
+    for (int i = 0; i < records; i++) {
+      if (bulk) {
+        Serializers.INTEGER.write(out, i);
+        Serializers.LONG.write(out, (long) i);
+        Serializers.BYTES.write(out, payload);
+      } else {
+        PER_BYTE_INTEGER.write(out, i);
+        PER_BYTE_LONG.write(out, (long) i);
+        PER_BYTE_BYTES.write(out, payload);
+      }
+    }
+
+    out.flush();
+  }
+
+  private static void read(InputStream in, int records, boolean bulk) throws IOException {
+
+    long check = 0;
+
+    for (int i = 0; i < records; i++) {
+      if (bulk) {
+        check += Serializers.INTEGER.read(in);
+        check += Serializers.LONG.read(in);
+        check += Serializers.BYTES.read(in).length;
+      } else {
+        check += PER_BYTE_INTEGER.read(in);
+        check += PER_BYTE_LONG.read(in);
+        check += PER_BYTE_BYTES.read(in).length;
+      }
+    }
+
+    final long expected = (long) records * (records - 1) + (long) records * PAYLOAD_BYTES;
+    if (check != expected) {
+      throw new IOException("Records did not read back as written.");
+    }
+  }
+}
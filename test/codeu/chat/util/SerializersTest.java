@@ -0,0 +1,90 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import org.junit.Test;
+
+public final class SerializersTest {
+
+  // A stream that hands out one byte per read, like a socket where only part
+  // of a value has arrived.
+  private static InputStream trickle(byte[] bytes) {
+    return new ByteArrayInputStream(bytes) {
+      @Override
+      public synchronized int read(byte[] b, int off, int len) {
+        return super.read(b, off, Math.min(len, 1));
+      }
+    };
+  }
+
+  @Test
+  public void testRoundTrip() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, -123456789);
+    Serializers.LONG.write(out, Long.MIN_VALUE + 42);
+    Serializers.BOOLEAN.write(out, true);
+    Serializers.STRING.write(out, "hello");
+
+    final InputStream in = trickle(out.toByteArray());
+    assertEquals(-123456789, (int) Serializers.INTEGER.read(in));
+    assertEquals(Long.MIN_VALUE + 42, (long) Serializers.LONG.read(in));
+    assertTrue(Serializers.BOOLEAN.read(in));
+    assertEquals("hello", Serializers.STRING.read(in));
+  }
+
+  @Test(expected = EOFException.class)
+  public void testTruncatedBytes() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.BYTES.write(out, new byte[] { 1, 2, 3 });
+
+    final byte[] truncated = new byte[out.size() - 1];
+    System.arraycopy(out.toByteArray(), 0, truncated, 0, truncated.length);
+
+    Serializers.BYTES.read(new ByteArrayInputStream(truncated));
+  }
+
+  @Test
+  public void testBytesOverLimit() throws IOException {
+
+    // Only the length is sent. Reading must fail on it without waiting for,
+    // or allocating, the 2 GB it claims.
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Serializers.INTEGER.write(out, Integer.MAX_VALUE);
+
+    try {
+      Serializers.BYTES(1024).read(new ByteArrayInputStream(out.toByteArray()));
+      fail("Read an array over the limit");
+    } catch (EOFException ex) {
+      fail("Read past the length before checking it");
+    } catch (IOException ex) {
+      // Expected.
+    }
+
+    final ByteArrayOutputStream fits = new ByteArrayOutputStream();
+    Serializers.BYTES(3).write(fits, new byte[] { 1, 2, 3 });
+    assertArrayEquals(
+        new byte[] { 1, 2, 3 },
+        Serializers.BYTES(3).read(new ByteArrayInputStream(fits.toByteArray())));
+  }
+}
@@ -15,6 +15,8 @@
 package codeu.chat.util;
 
 import static org.junit.Assert.*;
+
+import com.google.gson.Gson;
 import org.junit.Test;
 
 public final class TimeTest {
@@ -29,4 +31,31 @@ public final class TimeTest {
   public void testDurationConversion() {
     assertEquals(10, Time.duration(Time.fromMs(0), Time.fromMs(10)).inMs());
   }
+
+  @Test
+  public void testParsingToString() {
+    final Time start = Time.fromMs(1500000000123L);
+    assertEquals(start, Time.parse(start.toString()));
+  }
+
+  @Test
+  public void testJson() {
+
+    final Gson gson = new Gson();
+    final Time start = Time.fromMs(1500000000123L);
+
+    assertEquals("{\"ms\":1500000000123}", gson.toJson(start));
+    assertEquals(start, gson.fromJson(gson.toJson(start), Time.class));
+  }
+
+  @Test
+  public void testOldJson() {
+
+    // Logs from before kept the time as a java.util.Date, which Gson writes
+    // to the second.
+    final Time start = Time.fromMs(1500000000000L);
+    final String json = "{\"date\":" + new Gson().toJson(new java.util.Date(start.inMs())) + "}";
+
+    assertEquals(start, new Gson().fromJson(json, Time.class));
+  }
 }
@@ -0,0 +1,74 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class TimelineTest {
+
+  private static final Runnable NOTHING = new Runnable() {
+    @Override
+    public void run() { }
+  };
+
+  private Timeline timeline;
+
+  @Before
+  public void doBefore() {
+    timeline = new Timeline(2);
+  }
+
+  @After
+  public void doAfter() {
+    timeline.stop();
+    timeline.join();
+  }
+
+  @Test
+  public void testOfferRefusedWhenFull() {
+
+    assertTrue(timeline.offerIn(60000, NOTHING));
+    assertTrue(timeline.offerIn(60000, NOTHING));
+    assertFalse(timeline.offerIn(60000, NOTHING));
+
+    // Work that must not be lost is still accepted.
+    timeline.scheduleIn(60000, NOTHING);
+    assertEquals(3, timeline.size());
+  }
+
+  @Test
+  public void testRoomIsFreedWhenEventsRun() throws Exception {
+
+    final CountDownLatch ran = new CountDownLatch(2);
+    final Runnable countDown = new Runnable() {
+      @Override
+      public void run() {
+        ran.countDown();
+      }
+    };
+
+    assertTrue(timeline.offerNow(countDown));
+    assertTrue(timeline.offerNow(countDown));
+    assertTrue(ran.await(5, TimeUnit.SECONDS));
+
+    assertTrue(timeline.offerIn(60000, NOTHING));
+  }
+}
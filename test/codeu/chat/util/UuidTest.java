@@ -14,8 +14,14 @@
 
 package codeu.chat.util;
 
+import com.google.gson.Gson;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.util.Arrays;
 import static org.junit.Assert.*;
+import static org.junit.Assume.assumeFalse;
 import org.junit.Test;
 
 public final class UuidTest {
@@ -149,4 +155,87 @@ public final class UuidTest {
 
     assertEquals(start, end);
   }
+
+  @Test
+  public void testCompare() {
+
+    final Uuid root = new Uuid(1);
+
+    assertEquals(0, Uuid.compare(new Uuid(root, 2), new Uuid(new Uuid(1), 2)));
+    assertTrue(Uuid.compare(new Uuid(root, 2), new Uuid(root, 3)) < 0);
+
+    // The tail decides before the root does.
+    assertTrue(Uuid.compare(new Uuid(new Uuid(9), 2), new Uuid(root, 3)) < 0);
+
+    // A chain that runs out first comes first.
+    assertTrue(Uuid.compare(new Uuid(2), new Uuid(root, 2)) < 0);
+    assertTrue(Uuid.compare(new Uuid(root, 2), new Uuid(2)) > 0);
+
+    assertTrue(Uuid.compare(null, root) < 0);
+  }
+
+  @Test
+  public void testSerializer() throws IOException {
+
+    final Uuid start = new Uuid(new Uuid(new Uuid(1), 2), 3);
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(out, start);
+
+    // The length, then the ids from the tail up to the root.
+    final ByteArrayInputStream in = new ByteArrayInputStream(out.toByteArray());
+    assertEquals(3, in.read());
+    assertEquals(3, (int) Serializers.INTEGER.read(in));
+    assertEquals(2, (int) Serializers.INTEGER.read(in));
+    assertEquals(1, (int) Serializers.INTEGER.read(in));
+
+    final Uuid end = Uuid.SERIALIZER.read(new ByteArrayInputStream(out.toByteArray()));
+
+    assertEquals(start, end);
+    assertEquals(start.hashCode(), end.hashCode());
+  }
+
+  @Test
+  public void testTruncatedReadFails() throws IOException {
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(out, new Uuid(new Uuid(1), 2));
+    final byte[] bytes = out.toByteArray();
+
+    for (int length = 0; length < bytes.length; length++) {
+      try {
+        Uuid.SERIALIZER.read(new ByteArrayInputStream(Arrays.copyOf(bytes, length)));
+        fail("Read a Uuid from " + length + " of " + bytes.length + " bytes");
+      } catch (EOFException ex) {
+        // Expected.
+      }
+    }
+  }
+
+  @Test
+  public void testJson() {
+
+    final Gson gson = new Gson();
+    final Uuid start = new Uuid(new Uuid(1), 2);
+
+    assertEquals("{\"root\":{\"id\":1},\"id\":2}", gson.toJson(start));
+    assertEquals(start, gson.fromJson(gson.toJson(start), Uuid.class));
+  }
+
+  @Test
+  public void testReadsAreInterned() throws IOException {
+
+    // Interning can be turned off for the whole JVM.
+    assumeFalse("false".equalsIgnoreCase(System.getProperty("codeu.chat.internUuids")));
+
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    Uuid.SERIALIZER.write(out, new Uuid(new Uuid(1), 2));
+    final byte[] bytes = out.toByteArray();
+
+    final Uuid first = Uuid.SERIALIZER.read(new ByteArrayInputStream(bytes));
+    final Uuid second = Uuid.SERIALIZER.read(new ByteArrayInputStream(bytes));
+
+    assertSame(first, second);
+    assertSame(first, Uuid.intern(new Uuid(new Uuid(1), 2)));
+  }
 }
@@ -0,0 +1,201 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util;
+
+import static org.junit.Assert.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.List;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class WriteAheadLogTest {
+
+  private File file;
+
+  @Before
+  public void doBefore() throws IOException {
+    file = File.createTempFile("wal", ".log");
+    assertTrue(file.delete());
+  }
+
+  @After
+  public void doAfter() {
+    file.delete();
+  }
+
+  @Test
+  public void testReadBack() throws IOException {
+
+    try (final WriteAheadLog log = WriteAheadLog.open(file, collect(new ArrayList<String>()))) {
+      log.append("one".getBytes());
+      log.append("".getBytes());
+      log.append("three".getBytes());
+      log.sync();
+    }
+
+    final List<String> records = new ArrayList<>();
+    WriteAheadLog.open(file, collect(records)).close();
+
+    assertEquals(3, records.size());
+    assertEquals("one", records.get(0));
+    assertEquals("", records.get(1));
+    assertEquals("three", records.get(2));
+  }
+
+  @Test
+  public void testDamagedTailIsDropped() throws IOException {
+
+    try (final WriteAheadLog log = WriteAheadLog.open(file, collect(new ArrayList<String>()))) {
+      log.append("kept".getBytes());
+      log.append("torn".getBytes());
+    }
+
+    // Cut the last record short, as if the process stopped while writing it.
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.setLength(raw.length() - 2);
+    }
+
+    try (final WriteAheadLog log = WriteAheadLog.open(file, collect(new ArrayList<String>()))) {
+      log.append("after".getBytes());
+    }
+
+    final List<String> records = new ArrayList<>();
+    WriteAheadLog.open(file, collect(records)).close();
+
+    assertEquals(2, records.size());
+    assertEquals("kept", records.get(0));
+    assertEquals("after", records.get(1));
+  }
+
+  @Test
+  public void testCorruptLastRecordIsDropped() throws IOException {
+
+    try (final WriteAheadLog log = WriteAheadLog.open(file, collect(new ArrayList<String>()))) {
+      log.append("good".getBytes());
+      log.append("torn".getBytes());
+    }
+
+    // Flip a byte in the body of the last record, as if only part of its
+    // page reached the disk. It is the last record, so it is dropped.
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.seek(8 + 4 + 8);
+      raw.write('T');
+    }
+
+    final List<String> records = new ArrayList<>();
+    WriteAheadLog.open(file, collect(records)).close();
+
+    assertEquals(1, records.size());
+    assertEquals("good", records.get(0));
+    assertEquals(8 + 4, file.length());
+  }
+
+  @Test
+  public void testCorruptRecordInMiddleFails() throws IOException {
+
+    try (final WriteAheadLog log = WriteAheadLog.open(file, collect(new ArrayList<String>()))) {
+      log.append("good".getBytes());
+      log.append("bad".getBytes());
+      log.append("kept".getBytes());
+    }
+
+    // Flip a byte in the body of the second record. There is a record after
+    // it, so the file is damaged rather than torn and nothing is cut off.
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.seek(8 + 4 + 8);
+      raw.write('B');
+    }
+
+    final long length = file.length();
+
+    try {
+      WriteAheadLog.open(file, collect(new ArrayList<String>())).close();
+      fail("A damaged record in the middle of the log was not reported");
+    } catch (IOException ex) {
+      // Expected
+    }
+
+    assertEquals(length, file.length());
+  }
+
+  @Test
+  public void testBadLengthInMiddleFails() throws IOException {
+
+    try (final WriteAheadLog log = WriteAheadLog.open(file, collect(new ArrayList<String>()))) {
+      log.append("good".getBytes());
+      log.append("bad".getBytes());
+    }
+
+    // A negative length can not come from a torn write.
+    try (final RandomAccessFile raw = new RandomAccessFile(file, "rw")) {
+      raw.seek(8 + 4);
+      raw.writeInt(-1);
+    }
+
+    try {
+      WriteAheadLog.open(file, collect(new ArrayList<String>())).close();
+      fail("A damaged length was not reported");
+    } catch (IOException ex) {
+      // Expected
+    }
+  }
+
+  @Test
+  public void testConcurrentSync() throws Exception {
+
+    final WriteAheadLog log = WriteAheadLog.open(file, collect(new ArrayList<String>()));
+
+    final Thread[] threads = new Thread[8];
+    for (int i = 0; i < threads.length; i++) {
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          try {
+            for (int j = 0; j < 50; j++) {
+              log.append("record".getBytes());
+              log.sync();
+            }
+          } catch (IOException ex) {
+            throw new IllegalStateException(ex);
+          }
+        }
+      };
+      threads[i].start();
+    }
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+    log.close();
+
+    final List<String> records = new ArrayList<>();
+    WriteAheadLog.open(file, collect(records)).close();
+
+    assertEquals(400, records.size());
+  }
+
+  private static WriteAheadLog.Reader collect(final List<String> records) {
+    return new WriteAheadLog.Reader() {
+      @Override
+      public void onRecord(byte[] record) {
+        records.add(new String(record));
+      }
+    };
+  }
+}
@@ -0,0 +1,166 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+
+import static org.junit.Assert.*;
+import org.junit.Test;
+import org.junit.Before;
+
+public final class ConcurrentStoreTest {
+
+  private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) { return a.compareTo(b); }
+  };
+
+  private ConcurrentStore<Integer, Integer> store;
+
+  @Before
+  public void doBefore() {
+    store = new ConcurrentStore<>(COMPARATOR);
+  }
+
+  @Test
+  public void testOrderPingPongOrderInsert() {
+
+    store.insert(0, 0);
+    store.insert(4, 40);
+    store.insert(1, 10);
+    store.insert(3, 30);
+    store.insert(2, 20);
+
+    final int[] order = { 0, 10, 20, 30, 40 };
+    assertOrder(store.all(), order);
+  }
+
+  @Test
+  public void testQueries() {
+
+    store.insert(0, 0);
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(2, 22);
+    store.insert(3, 30);
+    store.insert(4, 40);
+
+    assertOrder(store.before(1), new int[] { 0, 10 });
+    assertOrder(store.after(3), new int[] { 30, 40 });
+    assertOrder(store.range(1, 3), new int[] { 10, 20, 21, 22, 30 });
+    assertOrder(store.range(3, 1), new int[] { });
+    assertOrder(store.at(2), new int[] { 20, 21, 22 });
+    assertOrder(store.at(5), new int[] { });
+
+    assertTrue(store.first(2) == 20);
+    assertNull(store.first(5));
+  }
+
+  @Test
+  public void testRemove() {
+
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(3, 30);
+
+    store.remove(2);
+
+    assertNull(store.first(2));
+    assertOrder(store.all(), new int[] { 10, 30 });
+  }
+
+  @Test
+  public void testReadWhileWriting() throws Exception {
+
+    final int writers = 4;
+    final int perWriter = 5000;
+
+    final Thread[] threads = new Thread[writers];
+    for (int i = 0; i < writers; i++) {
+      final int writer = i;
+      threads[i] = new Thread() {
+        @Override
+        public void run() {
+          for (int j = 0; j < perWriter; j++) {
+            // Every writer adds to the same keys.
+            store.insert(j % 100, writer * perWriter + j);
+          }
+        }
+      };
+      threads[i].start();
+    }
+
+    // Reading while the writers run must never fail or go out of order.
+    boolean done = false;
+    while (!done) {
+      done = true;
+      for (final Thread thread : threads) {
+        done &= !thread.isAlive();
+      }
+      int last = -1;
+      for (final Integer value : store.all()) {
+        assertTrue(value % perWriter % 100 >= last);
+        last = value % perWriter % 100;
+      }
+    }
+
+    for (final Thread thread : threads) {
+      thread.join();
+    }
+
+    int count = 0;
+    for (final Integer value : store.all()) {
+      count += 1;
+    }
+    assertEquals(writers * perWriter, count);
+  }
+
+  @Test
+  public void testRemoveValue() {
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(2, 22);
+    store.insert(3, 30);
+
+    assertTrue(store.remove(2, 21));
+    assertFalse(store.remove(2, 21));
+    assertOrder(store.at(2), new int[] { 20, 22 });
+
+    assertTrue(store.remove(2, 20));
+    assertTrue(store.first(2) == 22);
+
+    assertTrue(store.remove(2, 22));
+    assertNull(store.first(2));
+    assertOrder(store.all(), new int[] { 10, 30 });
+
+    store.insert(2, 23);
+    assertOrder(store.all(), new int[] { 10, 23, 30 });
+  }
+
+  private static void assertOrder(Iterable<Integer> actual, int[] expected) {
+
+    int at = 0;
+
+    for (final Integer i : actual) {
+      assertTrue(i == expected[at]);
+      at += 1;
+    }
+
+    assertTrue(at == expected.length);
+  }
+}
@@ -0,0 +1,112 @@
+// Copyright 2017 Google Inc.
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//    http://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package codeu.chat.util.store;
+
+import java.util.Comparator;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.TreeMap;
+
+// STORE BENCHMARK
+//
+// Times inserting values that all share a few keys, the way messages pile up
+// on the same millisecond in "messageByTime", and values that all share a
+// single key, which is the worst case for a run. Store is compared with the
+// layout it used to have, where each insert walked over every link with an
+// equal key to reach the end of the run. That walk makes the old layout
+// quadratic, so it is only timed at sizes where it finishes.
+//
+// This is not part of the tests. Run it with:
+//
+//   $ python build.py run codeu.chat.util.store.StoreBenchmark [ values ]
+public final class StoreBenchmark {
+
+  private static final Comparator<Integer> COMPARATOR = new Comparator<Integer>() {
+    @Override
+    public int compare(Integer a, Integer b) { return a.compareTo(b); }
+  };
+
+  // The most values the old layout is timed with.
+  private static final int MAX_WALKING_VALUES = 64000;
+
+  // How many different keys the values are spread over in each pass. One key
+  // puts every value in a single run.
+  private static final int[] KEYS = { 4, 1 };
+
+  // The insert that Store used before runs were kept in the index: find the
+  // closest link in the index then walk forward past every equal key.
+  private static final class WalkingStore {
+
+    private final StoreLink<Integer, Integer> rootLink = new StoreLink<>(null, null, null);
+    private final NavigableMap<Integer, StoreLink<Integer, Integer>> index =
+        new TreeMap<>(COMPARATOR);
+
+    public void insert(Integer key, Integer value) {
+
+      final Map.Entry<Integer, StoreLink<Integer, Integer>> floor = index.floorEntry(key);
+      final StoreLink<Integer, Integer> closestLink = floor == null ? null : floor.getValue();
+
+      StoreLink<Integer, Integer> current = closestLink == null ? rootLink : closestLink;
+      while (current.next != null && COMPARATOR.compare(current.next.key, key) <= 0) {
+        current = current.next;
+      }
+
+      final StoreLink<Integer, Integer> newLink = new StoreLink<>(key, value, current.next);
+      current.next = newLink;
+
+      if (closestLink == null || COMPARATOR.compare(key, closestLink.key) != 0) {
+        index.put(key, newLink);
+      }
+    }
+  }
+
+  public static void main(String[] args) {
+
+    final int values = args.length > 0 ? Integer.parseInt(args[0]) : 1000000;
+
+    // Warm up both so that the first timing is not mostly the JIT.
+    timeStore(values / 10, KEYS[0]);
+    timeWalking(Math.min(values, MAX_WALKING_VALUES) / 10, KEYS[0]);
+
+    for (final int keys : KEYS) {
+
+      for (int size = 8000; size <= Math.min(values, MAX_WALKING_VALUES); size *= 2) {
+        System.out.format("%d key(s) : %,10d values : store %,8d ms | walking %,8d ms\n",
+            keys, size, timeStore(size, keys), timeWalking(size, keys));
+      }
+
+      System.out.format("%d key(s) : %,10d values : store %,8d ms | walking (too slow to run)\n",
+          keys, values, timeStore(values, keys));
+    }
+  }
+
+  private static long timeStore(int values, int keys) {
+    final Store<Integer, Integer> store = new Store<>(COMPARATOR);
+    final long start = System.nanoTime();
+    for (int i = 0; i < values; i++) {
+      store.insert(i % keys, i);
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+
+  private static long timeWalking(int values, int keys) {
+    final WalkingStore store = new WalkingStore();
+    final long start = System.nanoTime();
+    for (int i = 0; i < values; i++) {
+      store.insert(i % keys, i);
+    }
+    return (System.nanoTime() - start) / 1000000;
+  }
+}
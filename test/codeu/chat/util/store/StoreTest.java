@@ -147,6 +147,68 @@ public final class StoreTest {
     assertTrue(store.first(4) == 40);
   }
 
+  @Test
+  public void testDuplicatesStayInInsertOrder() {
+
+    store.insert(2, 20);
+    store.insert(0, 0);
+    store.insert(2, 21);
+    store.insert(1, 10);
+    store.insert(2, 22);
+    store.insert(0, 1);
+
+    final int[] order = { 0, 1, 10, 20, 21, 22 };
+    assertOrder(store.all(), order);
+  }
+
+  @Test
+  public void testBeforeEverything() {
+    store.insert(1, 10);
+    store.insert(2, 20);
+
+    final int[] order = { };
+    assertOrder(store.before(0), order);
+  }
+
+  @Test
+  public void testRemove() {
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(3, 30);
+
+    store.remove(2);
+    assertNull(store.first(2));
+    assertOrder(store.all(), new int[] { 10, 30 });
+
+    // Keys removed and added again go back in the right place.
+    store.insert(2, 22);
+    assertOrder(store.all(), new int[] { 10, 22, 30 });
+  }
+
+  @Test
+  public void testRemoveValue() {
+    store.insert(1, 10);
+    store.insert(2, 20);
+    store.insert(2, 21);
+    store.insert(2, 22);
+    store.insert(3, 30);
+
+    assertTrue(store.remove(2, 21));
+    assertFalse(store.remove(2, 21));
+    assertOrder(store.at(2), new int[] { 20, 22 });
+
+    assertTrue(store.remove(2, 20));
+    assertTrue(store.first(2) == 22);
+
+    assertTrue(store.remove(2, 22));
+    assertNull(store.first(2));
+    assertOrder(store.all(), new int[] { 10, 30 });
+
+    store.insert(2, 23);
+    assertOrder(store.all(), new int[] { 10, 23, 30 });
+  }
+
   private static void assertOrder(Iterable<Integer> actual, int[] expected) {
 
     int at = 0;